@@ -0,0 +1,123 @@
+package bdv.volume;
+
+import java.util.function.IntPredicate;
+
+/**
+ * The Adaptive Replacement Cache (ARC) policy of Megiddo and Modha.
+ * <p>
+ * Resident slots are kept in two LRU lists, {@code T1} for keys seen once
+ * recently and {@code T2} for keys seen at least twice. Evicted keys are
+ * remembered in ghost lists {@code B1} and {@code B2}. Hits in the ghost lists
+ * adapt the target size {@code p} of {@code T1}, balancing recency against
+ * frequency depending on the workload.
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public class ARCEvictionPolicy implements EvictionPolicy
+{
+	private static final int T1 = 0;
+
+	private static final int T2 = 1;
+
+	private final int capacity;
+
+	private final SlotLists lists;
+
+	private final GhostList b1;
+
+	private final GhostList b2;
+
+	/**
+	 * Target size of {@code T1}.
+	 */
+	private double p;
+
+	/**
+	 * Whether {@code p} was already adapted for {@link #adaptedKey} (in
+	 * {@link #victim(long)}) before it is {@link #inserted(int, long)}.
+	 */
+	private boolean adapted;
+
+	private long adaptedKey;
+
+	public ARCEvictionPolicy( final int capacity )
+	{
+		this.capacity = capacity;
+		lists = new SlotLists( capacity, 2 );
+		b1 = new GhostList( capacity );
+		b2 = new GhostList( capacity );
+		p = 0;
+		adapted = false;
+	}
+
+	@Override
+	public void inserted( final int slot, final long key )
+	{
+		if ( !adapted || adaptedKey != key )
+			adapt( key );
+		adapted = false;
+
+		if ( b1.remove( key ) || b2.remove( key ) )
+			lists.addFirst( T2, slot );
+		else
+		{
+			// complete miss: bound the size of the directory
+			final int l1 = lists.size( T1 ) + b1.size();
+			final int total = l1 + lists.size( T2 ) + b2.size();
+			if ( l1 >= capacity && b1.size() > 0 )
+				b1.removeOldest();
+			else if ( total >= 2 * capacity && b2.size() > 0 )
+				b2.removeOldest();
+			lists.addFirst( T1, slot );
+		}
+	}
+
+	@Override
+	public void accessed( final int slot )
+	{
+		if ( lists.first( T2 ) != slot )
+			lists.addFirst( T2, slot );
+	}
+
+	@Override
+	public void removed( final int slot, final long key )
+	{
+		if ( lists.listOf( slot ) == T1 )
+			b1.add( key );
+		else
+			b2.add( key );
+		lists.remove( slot );
+	}
+
+	@Override
+	public int victim( final long key, final IntPredicate evictable )
+	{
+		adapt( key );
+		adapted = true;
+		adaptedKey = key;
+
+		final int t1 = lists.size( T1 );
+		final int first = ( t1 > 0 && ( t1 > p || ( t1 == p && b2.contains( key ) ) ) ) ? T1 : T2;
+		final int slot = lists.lastMatching( first, evictable );
+		return slot != SlotLists.NIL
+				? slot
+				: lists.lastMatching( 1 - first, evictable );
+	}
+
+	/**
+	 * Adapt the target size of {@code T1} if {@code key} is a ghost hit.
+	 */
+	private void adapt( final long key )
+	{
+		if ( b1.contains( key ) )
+		{
+			final double delta = Math.max( 1.0, ( double ) b2.size() / b1.size() );
+			p = Math.min( capacity, p + delta );
+		}
+		else if ( b2.contains( key ) )
+		{
+			final double delta = Math.max( 1.0, ( double ) b1.size() / b2.size() );
+			p = Math.max( 0, p - delta );
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package bdv.volume;
+
+import static org.jocl.CL.*;
+
+/**
+ * Chooses the grid size of a block texture for a {@link DeviceProfile}.
+ * <p>
+ * Unlike {@link LRUBlockCache#findSuitableGridSize(int[], int, int)}, which
+ * picks a cube from a memory budget only, the grid is chosen such that
+ * <ul>
+ * <li>the texture fits into the budget and into a single allocation
+ * ({@code CL_DEVICE_MAX_MEM_ALLOC_SIZE}),</li>
+ * <li>each side of the texture is within the maximum 3D image size,</li>
+ * <li>each side of the grid can be addressed by {@link PageTable} entries,
+ * and</li>
+ * <li>the image format is supported.</li>
+ * </ul>
+ * Among the legal grids, one with the most blocks is chosen, and among
+ * those, the one that is closest to a cube. The grid does not need to be a
+ * cube, so the budget is used up to less than one block when the limits
+ * allow.
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public class AtlasSizing
+{
+	private final DeviceProfile profile;
+
+	public AtlasSizing( final DeviceProfile profile )
+	{
+		this.profile = profile;
+	}
+
+	public DeviceProfile getProfile()
+	{
+		return profile;
+	}
+
+	/**
+	 * Find the grid size of a block texture.
+	 *
+	 * @param blockSize
+	 *            size of an individual block.
+	 * @param channelOrder
+	 *            image channel order, e.g., {@code CL_R}.
+	 * @param channelDataType
+	 *            image channel data type, e.g., {@code CL_UNORM_INT16}.
+	 * @param maxBytes
+	 *            memory budget for the texture.
+	 * @return size of the texture in multiples of {@code blockSize}.
+	 * @throws IllegalArgumentException
+	 *             if the format is not supported, or not even one block fits.
+	 */
+	public int[] findGridSize( final int[] blockSize, final int channelOrder, final int channelDataType, final long maxBytes )
+	{
+		if ( !profile.isImageFormatSupported( channelOrder, channelDataType ) )
+			throw new IllegalArgumentException( "image format not supported by " + profile.getName() );
+
+		final long blockBytes = ( long ) blockSize[ 0 ] * blockSize[ 1 ] * blockSize[ 2 ] * bytesPerVoxel( channelOrder, channelDataType );
+		final long maxBlocks = Math.min( maxBytes, profile.getMaxMemAllocSize() ) / blockBytes;
+		final int[] maxGridSize = new int[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			maxGridSize[ d ] = ( int ) Math.min( PageTable.MAX_GRID_SIZE, profile.getImage3dMaxSize( d ) / blockSize[ d ] );
+		if ( maxBlocks < 1 || maxGridSize[ 0 ] < 1 || maxGridSize[ 1 ] < 1 || maxGridSize[ 2 ] < 1 )
+			throw new IllegalArgumentException( "no block of size " + blockSize[ 0 ] + "x" + blockSize[ 1 ] + "x" + blockSize[ 2 ] + " fits" );
+
+		final int[] best = new int[ 3 ];
+		long bestBlocks = 0;
+		long bestMaxSide = Long.MAX_VALUE;
+		for ( int z = 1; z <= maxGridSize[ 2 ] && z <= maxBlocks; ++z )
+		{
+			for ( int y = 1; y <= maxGridSize[ 1 ] && ( long ) y * z <= maxBlocks; ++y )
+			{
+				final int x = ( int ) Math.min( maxGridSize[ 0 ], maxBlocks / ( ( long ) y * z ) );
+				final long blocks = ( long ) x * y * z;
+				final long maxSide = Math.max( ( long ) x * blockSize[ 0 ], Math.max( ( long ) y * blockSize[ 1 ], ( long ) z * blockSize[ 2 ] ) );
+				if ( blocks > bestBlocks || ( blocks == bestBlocks && maxSide < bestMaxSide ) )
+				{
+					bestBlocks = blocks;
+					bestMaxSide = maxSide;
+					best[ 0 ] = x;
+					best[ 1 ] = y;
+					best[ 2 ] = z;
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Get the number of bytes per voxel of an image format.
+	 *
+	 * @throws IllegalArgumentException
+	 *             for packed formats, such as {@code CL_UNORM_SHORT_565}.
+	 */
+	public static int bytesPerVoxel( final int channelOrder, final int channelDataType )
+	{
+		final int channels;
+		switch ( channelOrder )
+		{
+		case CL_R:
+		case CL_A:
+		case CL_Rx:
+		case CL_INTENSITY:
+		case CL_LUMINANCE:
+			channels = 1;
+			break;
+		case CL_RG:
+		case CL_RA:
+		case CL_RGx:
+			channels = 2;
+			break;
+		case CL_RGBA:
+		case CL_BGRA:
+		case CL_ARGB:
+			channels = 4;
+			break;
+		default:
+			throw new IllegalArgumentException( "unsupported channel order " + channelOrder );
+		}
+
+		final int bytes;
+		switch ( channelDataType )
+		{
+		case CL_SNORM_INT8:
+		case CL_UNORM_INT8:
+		case CL_SIGNED_INT8:
+		case CL_UNSIGNED_INT8:
+			bytes = 1;
+			break;
+		case CL_SNORM_INT16:
+		case CL_UNORM_INT16:
+		case CL_SIGNED_INT16:
+		case CL_UNSIGNED_INT16:
+		case CL_HALF_FLOAT:
+			bytes = 2;
+			break;
+		case CL_SIGNED_INT32:
+		case CL_UNSIGNED_INT32:
+		case CL_FLOAT:
+			bytes = 4;
+			break;
+		default:
+			throw new IllegalArgumentException( "unsupported channel data type " + channelDataType );
+		}
+
+		return channels * bytes;
+	}
+}
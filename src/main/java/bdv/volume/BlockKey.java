@@ -1,20 +1,57 @@
 package bdv.volume;
 
-import java.util.Arrays;
-
 /**
- * Represents an
- *
+ * Identifies a block of a multi-resolution source: its cell grid coordinates,
+ * timepoint, setup, and resolution level.
+ * <p>
+ * A key can be packed into a single {@code long} (see
+ * {@link #pack(int, int, int, int, int, int)}), which is what the primitive
+ * caches use to avoid allocating a {@link BlockKey} for every lookup. The
+ * packed layout (from least to most significant bit) is
+ * <ul>
+ * <li>{@value #CELL_BITS} bits for each cell grid coordinate x, y, z,</li>
+ * <li>{@value #TIMEPOINT_BITS} bits for the timepoint,</li>
+ * <li>{@value #SETUP_BITS} bits for the setup,</li>
+ * <li>{@value #LEVEL_BITS} bits for the resolution level.</li>
+ * </ul>
  *
  * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
  */
 public class BlockKey
 {
+	public static final int CELL_BITS = 13;
+
+	public static final int TIMEPOINT_BITS = 13;
+
+	public static final int SETUP_BITS = 8;
+
+	public static final int LEVEL_BITS = 4;
+
+	private static final int TIMEPOINT_SHIFT = 3 * CELL_BITS;
+
+	private static final int SETUP_SHIFT = TIMEPOINT_SHIFT + TIMEPOINT_BITS;
+
+	private static final int LEVEL_SHIFT = SETUP_SHIFT + SETUP_BITS;
+
+	private static final long CELL_MASK = ( 1L << CELL_BITS ) - 1;
+
+	private static final long TIMEPOINT_MASK = ( 1L << TIMEPOINT_BITS ) - 1;
+
+	private static final long SETUP_MASK = ( 1L << SETUP_BITS ) - 1;
+
+	private static final long LEVEL_MASK = ( 1L << LEVEL_BITS ) - 1;
+
 	/**
 	 * The cell grid coordinates of the source data.
 	 */
 	private final int[] cellPos;
 
+	private final int timepoint;
+
+	private final int setup;
+
+	private final int level;
+
 	private final int hashcode;
 
 	public BlockKey(
@@ -24,6 +61,9 @@ public class BlockKey
 			final int level )
 	{
 		this.cellPos = cellGridPos.clone();
+		this.timepoint = timepoint;
+		this.setup = setup;
+		this.level = level;
 
 		int value = 17;
 		value = 31 * value + cellGridPos[ 0 ];
@@ -35,13 +75,48 @@ public class BlockKey
 		hashcode = value;
 	}
 
+	/**
+	 * Get this key packed into a {@code long}.
+	 *
+	 * @return packed representation of this key.
+	 */
+	public long getPacked()
+	{
+		return pack( cellPos[ 0 ], cellPos[ 1 ], cellPos[ 2 ], timepoint, setup, level );
+	}
+
+	public int[] getCellPos()
+	{
+		return cellPos;
+	}
+
+	public int getTimepoint()
+	{
+		return timepoint;
+	}
+
+	public int getSetup()
+	{
+		return setup;
+	}
+
+	public int getLevel()
+	{
+		return level;
+	}
+
 	@Override
 	public boolean equals( final Object obj )
 	{
 		if ( obj instanceof BlockKey )
 		{
 			final BlockKey b = ( BlockKey ) obj;
-			return Arrays.equals( cellPos, b.cellPos );
+			return cellPos[ 0 ] == b.cellPos[ 0 ]
+					&& cellPos[ 1 ] == b.cellPos[ 1 ]
+					&& cellPos[ 2 ] == b.cellPos[ 2 ]
+					&& timepoint == b.timepoint
+					&& setup == b.setup
+					&& level == b.level;
 		}
 		return false;
 	}
@@ -51,4 +126,104 @@ public class BlockKey
 	{
 		return hashcode;
 	}
-}
\ No newline at end of file
+
+	@Override
+	public String toString()
+	{
+		return String.format( "BlockKey(%d, %d, %d; t=%d, s=%d, l=%d)",
+				cellPos[ 0 ], cellPos[ 1 ], cellPos[ 2 ], timepoint, setup, level );
+	}
+
+	/**
+	 * Pack block coordinates into a {@code long}. All arguments must be
+	 * non-negative and fit into the number of bits reserved for them.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if any argument is out of range.
+	 */
+	public static long pack(
+			final int x,
+			final int y,
+			final int z,
+			final int timepoint,
+			final int setup,
+			final int level )
+	{
+		if ( ( x & ~CELL_MASK ) != 0 || ( y & ~CELL_MASK ) != 0 || ( z & ~CELL_MASK ) != 0
+				|| ( timepoint & ~TIMEPOINT_MASK ) != 0
+				|| ( setup & ~SETUP_MASK ) != 0
+				|| ( level & ~LEVEL_MASK ) != 0 )
+			throw new IllegalArgumentException();
+		return x
+				| ( ( long ) y << CELL_BITS )
+				| ( ( long ) z << ( 2 * CELL_BITS ) )
+				| ( ( long ) timepoint << TIMEPOINT_SHIFT )
+				| ( ( long ) setup << SETUP_SHIFT )
+				| ( ( long ) level << LEVEL_SHIFT );
+	}
+
+	public static long pack(
+			final int[] cellGridPos,
+			final int timepoint,
+			final int setup,
+			final int level )
+	{
+		return pack( cellGridPos[ 0 ], cellGridPos[ 1 ], cellGridPos[ 2 ], timepoint, setup, level );
+	}
+
+	public static int cellX( final long packed )
+	{
+		return ( int ) ( packed & CELL_MASK );
+	}
+
+	public static int cellY( final long packed )
+	{
+		return ( int ) ( ( packed >>> CELL_BITS ) & CELL_MASK );
+	}
+
+	public static int cellZ( final long packed )
+	{
+		return ( int ) ( ( packed >>> ( 2 * CELL_BITS ) ) & CELL_MASK );
+	}
+
+	public static int timepoint( final long packed )
+	{
+		return ( int ) ( ( packed >>> TIMEPOINT_SHIFT ) & TIMEPOINT_MASK );
+	}
+
+	public static int setup( final long packed )
+	{
+		return ( int ) ( ( packed >>> SETUP_SHIFT ) & SETUP_MASK );
+	}
+
+	public static int level( final long packed )
+	{
+		return ( int ) ( ( packed >>> LEVEL_SHIFT ) & LEVEL_MASK );
+	}
+
+	/**
+	 * Replace the setup of a {@link #pack(int, int, int, int, int, int) packed}
+	 * key.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if {@code setup} is out of range.
+	 */
+	public static long withSetup( final long packed, final int setup )
+	{
+		if ( ( setup & ~SETUP_MASK ) != 0 )
+			throw new IllegalArgumentException();
+		return ( packed & ~( SETUP_MASK << SETUP_SHIFT ) ) | ( ( long ) setup << SETUP_SHIFT );
+	}
+
+	/**
+	 * Unpack a {@link #pack(int, int, int, int, int, int) packed} key.
+	 */
+	public static BlockKey unpack( final long packed )
+	{
+		return new BlockKey(
+				new int[] { cellX( packed ), cellY( packed ), cellZ( packed ) },
+				timepoint( packed ),
+				setup( packed ),
+				level( packed ) );
+	}
+}
@@ -0,0 +1,149 @@
+package bdv.volume;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+import bdv.volume.BlockUploader.BlockLoader;
+
+/**
+ * Side table of the minimum and maximum voxel value of blocks, keyed by
+ * {@link BlockKey#pack(int, int, int, int, int, int) packed} {@code long}
+ * keys.
+ * <p>
+ * Values are recorded once, when a block is loaded (see
+ * {@link #recording(BlockLoader)}). The {@link BlockRequestPlanner} uses them
+ * to skip blocks that the current {@link TransferFunction} maps to fully
+ * transparent, so that these are never loaded, uploaded, or assigned a texture
+ * slot again.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public class BlockMinMax
+{
+	private final LongIntHash indices;
+
+	private float[] min;
+
+	private float[] max;
+
+	private int size;
+
+	public BlockMinMax()
+	{
+		this( 1024 );
+	}
+
+	/**
+	 * @param expectedSize
+	 *            expected number of blocks.
+	 */
+	public BlockMinMax( final int expectedSize )
+	{
+		indices = new LongIntHash( expectedSize );
+		min = new float[ expectedSize ];
+		max = new float[ expectedSize ];
+		size = 0;
+	}
+
+	/**
+	 * Record minimum and maximum value of the block {@code key}.
+	 */
+	public synchronized void put( final long key, final float min, final float max )
+	{
+		int i = indices.get( key );
+		if ( i == LongIntHash.NO_ENTRY )
+		{
+			i = size++;
+			if ( i >= this.min.length )
+			{
+				final int n = Math.max( 16, 2 * i );
+				this.min = Arrays.copyOf( this.min, n );
+				this.max = Arrays.copyOf( this.max, n );
+			}
+			indices.put( key, i );
+		}
+		this.min[ i ] = min;
+		this.max[ i ] = max;
+	}
+
+	/**
+	 * Record minimum and maximum value of the block {@code key}, computed
+	 * from the unsigned 16 bit voxel data between position and limit of
+	 * {@code data}.
+	 */
+	public void putUnsignedShorts( final long key, final ShortBuffer data )
+	{
+		int lo = 0xffff;
+		int hi = 0;
+		for ( int i = data.position(); i < data.limit(); ++i )
+		{
+			final int v = data.get( i ) & 0xffff;
+			lo = Math.min( lo, v );
+			hi = Math.max( hi, v );
+		}
+		put( key, lo, hi );
+	}
+
+	public synchronized boolean contains( final long key )
+	{
+		return indices.containsKey( key );
+	}
+
+	/**
+	 * Whether block {@code key} is known to be completely transparent under
+	 * {@code tf}. Returns {@code false} for blocks that have not been
+	 * recorded.
+	 */
+	public synchronized boolean isTransparent( final long key, final TransferFunction tf )
+	{
+		final int i = indices.get( key );
+		return i != LongIntHash.NO_ENTRY && tf.isTransparent( min[ i ], max[ i ] );
+	}
+
+	/**
+	 * Get the minimum value of block {@code key}, or {@code NaN} if it has not
+	 * been recorded.
+	 */
+	public synchronized float getMin( final long key )
+	{
+		final int i = indices.get( key );
+		return i == LongIntHash.NO_ENTRY ? Float.NaN : min[ i ];
+	}
+
+	/**
+	 * Get the maximum value of block {@code key}, or {@code NaN} if it has not
+	 * been recorded.
+	 */
+	public synchronized float getMax( final long key )
+	{
+		final int i = indices.get( key );
+		return i == LongIntHash.NO_ENTRY ? Float.NaN : max[ i ];
+	}
+
+	/**
+	 * Get the number of recorded blocks.
+	 */
+	public synchronized int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Wrap a {@link BlockLoader} (for unsigned 16 bit data) such that minimum
+	 * and maximum of every loaded block is recorded in this table.
+	 */
+	public BlockLoader recording( final BlockLoader loader )
+	{
+		return ( key, blockSize, target ) -> {
+			final int start = target.position();
+			loader.load( key, blockSize, target );
+			final ByteBuffer written = target.duplicate().order( target.order() );
+			written.limit( written.position() );
+			written.position( start );
+			putUnsignedShorts( key, written.asShortBuffer() );
+		};
+	}
+}
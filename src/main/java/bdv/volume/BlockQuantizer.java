@@ -0,0 +1,177 @@
+package bdv.volume;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import bdv.volume.BlockUploader.BlockLoader;
+
+/**
+ * Conversion of unsigned 16 bit blocks to 8 bit, with a per-block linear
+ * mapping.
+ * <p>
+ * A block with minimum value {@code min} and maximum value {@code max} is
+ * quantized as
+ *
+ * <pre>
+ * q = round( ( v - min ) * 255 / ( max - min ) )
+ * </pre>
+ *
+ * and reconstructed as
+ *
+ * <pre>
+ * v' = min + q * ( max - min ) / 255
+ * </pre>
+ *
+ * The reconstruction error {@code |v - v'|} is at most half a quantization
+ * step, {@link #maxError(int, int) (max - min) / 510}, so blocks with
+ * {@code max - min < 255} are reconstructed exactly after rounding
+ * {@code v'} to the nearest integer. ({@link #dequantize(byte, int, int)}
+ * computes {@code v'} in single precision, which adds a rounding error below
+ * 0.004 for 16 bit values.)
+ * <p>
+ * In an 8 bit texture ({@code CL_UNORM_INT8}), the sampled value is
+ * {@code q / 255}. Multiplying by {@link #normalizedScale(int, int)} and
+ * adding {@link #normalizedOffset(int)} gives {@code v' / 65535}, i.e., the
+ * value that would be sampled from a {@code CL_UNORM_INT16} texture (see
+ * {@code sample_quantized} in {@code quantized.cl}).
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public class BlockQuantizer
+{
+	/**
+	 * Quantize {@code numVoxels} unsigned 16 bit values in {@code src} (in
+	 * native byte order, starting at byte {@code srcOffset}) to 8 bit values
+	 * in {@code dst} (starting at byte {@code dstOffset}). Positions and limits
+	 * of the buffers are not modified.
+	 * <p>
+	 * {@code src} and {@code dst} may be the same buffer, with
+	 * {@code dstOffset <= srcOffset}: voxel {@code i} is read before voxel
+	 * {@code i} is written, and writing never overtakes reading.
+	 *
+	 * @param min
+	 *            minimum value of the block.
+	 * @param max
+	 *            maximum value of the block.
+	 */
+	public static void quantize(
+			final ByteBuffer src,
+			final int srcOffset,
+			final ByteBuffer dst,
+			final int dstOffset,
+			final int numVoxels,
+			final int min,
+			final int max )
+	{
+		final ByteOrder order = src.order();
+		if ( order != ByteOrder.nativeOrder() )
+			src.order( ByteOrder.nativeOrder() );
+		final int range = max - min;
+		if ( range <= 0 )
+		{
+			for ( int i = 0; i < numVoxels; ++i )
+				dst.put( dstOffset + i, ( byte ) 0 );
+		}
+		else
+		{
+			// round( ( v - min ) * 255 / range ) in exact integer arithmetic.
+			// (In single precision, values close to the middle between two
+			// steps may be rounded to the wrong step.)
+			final int twoRange = 2 * range;
+			for ( int i = 0; i < numVoxels; ++i )
+			{
+				final int v = src.getShort( srcOffset + 2 * i ) & 0xffff;
+				dst.put( dstOffset + i, ( byte ) ( ( ( v - min ) * 510 + range ) / twoRange ) );
+			}
+		}
+		if ( order != ByteOrder.nativeOrder() )
+			src.order( order );
+	}
+
+	/**
+	 * Compute minimum and maximum of {@code numVoxels} unsigned 16 bit values
+	 * in {@code src} (in native byte order, starting at byte
+	 * {@code srcOffset}).
+	 *
+	 * @return {@code min | max << 16}.
+	 */
+	public static long minMax( final ByteBuffer src, final int srcOffset, final int numVoxels )
+	{
+		final ByteOrder order = src.order();
+		if ( order != ByteOrder.nativeOrder() )
+			src.order( ByteOrder.nativeOrder() );
+		int lo = 0xffff;
+		int hi = 0;
+		for ( int i = 0; i < numVoxels; ++i )
+		{
+			final int v = src.getShort( srcOffset + 2 * i ) & 0xffff;
+			lo = Math.min( lo, v );
+			hi = Math.max( hi, v );
+		}
+		if ( order != ByteOrder.nativeOrder() )
+			src.order( order );
+		return lo | ( ( long ) hi << 16 );
+	}
+
+	/**
+	 * Reconstruct the value of a quantized voxel.
+	 */
+	public static float dequantize( final byte q, final int min, final int max )
+	{
+		return min + ( q & 0xff ) * ( ( max - min ) / 255f );
+	}
+
+	/**
+	 * Get the maximum reconstruction error of a block with the given value
+	 * range.
+	 */
+	public static float maxError( final int min, final int max )
+	{
+		return ( max - min ) / 510f;
+	}
+
+	/**
+	 * Get the factor that maps values sampled from the 8 bit texture to
+	 * values of a 16 bit texture.
+	 */
+	public static float normalizedScale( final int min, final int max )
+	{
+		return ( max - min ) / 65535f;
+	}
+
+	/**
+	 * Get the offset that maps values sampled from the 8 bit texture to
+	 * values of a 16 bit texture.
+	 */
+	public static float normalizedOffset( final int min )
+	{
+		return min / 65535f;
+	}
+
+	/**
+	 * Wrap a {@link BlockLoader} for unsigned 16 bit data such that the loaded
+	 * blocks are quantized to 8 bit in place, and their value range is
+	 * recorded in {@code minMax} (which must then be consulted by
+	 * {@link BlockScaleOffsets}).
+	 * <p>
+	 * Staging buffers must still be large enough for the 16 bit data. The
+	 * wrapped loader does not allocate.
+	 */
+	public static BlockLoader quantizing( final BlockLoader loader, final BlockMinMax minMax )
+	{
+		return ( key, blockSize, target ) -> {
+			final int start = target.position();
+			loader.load( key, blockSize, target );
+			final int numVoxels = ( target.position() - start ) / 2;
+			final long mm = minMax( target, start, numVoxels );
+			final int min = ( int ) ( mm & 0xffff );
+			final int max = ( int ) ( mm >>> 16 );
+			quantize( target, start, target, start, numVoxels, min, max );
+			target.position( start + numVoxels );
+			minMax.put( key, min, max );
+		};
+	}
+
+	private BlockQuantizer()
+	{}
+}
@@ -0,0 +1,546 @@
+package bdv.volume;
+
+import java.util.Arrays;
+
+import bdv.viewer.Source;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Decides which blocks of a {@link Source} are needed to render a view.
+ * <p>
+ * Starting from the blocks of the coarsest resolution level that intersect
+ * the view frustum, a block is refined (replaced by the overlapping blocks of
+ * the next finer level) as long as its voxels appear larger than
+ * {@link #setMaxScreenVoxelSize(double) maxScreenVoxelSize} pixels on screen,
+ * measured at the point of the block nearest to the viewer. Blocks outside the
+ * frustum are culled.
+ * <p>
+ * The resulting {@link BlockKey#pack(int, int, int, int, int, int) packed}
+ * keys are sorted by priority: coarse levels before fine levels (so that the
+ * coarse fallback is always available when the cache overflows) and, within a
+ * level, near blocks before far blocks. With
+ * {@link #setRequestFallback(boolean)}, refined blocks are requested as well.
+ * <p>
+ * Optionally, blocks that are known (from a {@link BlockMinMax} table) to be
+ * completely transparent under the current {@link TransferFunction} are
+ * skipped.
+ * <p>
+ * The planner re-uses its buffers between calls and does not allocate once
+ * they have grown to the size of the working set.
+ * <p>
+ * Screen coordinates are those of the BDV viewer transform: x and y in pixels,
+ * z pointing away from the viewer. By default, the projection is orthographic.
+ * With {@link #setPerspective(double, double, double)}, a perspective
+ * projection with the eye at distance {@code dCam} in front of the screen
+ * plane {@code z = 0} is used.
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public class BlockRequestPlanner
+{
+	private final Source< ? > source;
+
+	private final int setup;
+
+	private final int[] blockSize;
+
+	private final int numLevels;
+
+	/**
+	 * Transforms from source voxel coordinates of each level to screen
+	 * coordinates, as row-major 3x4 matrices.
+	 */
+	private final double[][] toScreen;
+
+	/**
+	 * Transforms from source voxel coordinates of each level {@code l > 0} to
+	 * source voxel coordinates of level {@code l-1}.
+	 */
+	private final double[][] toFiner;
+
+	/**
+	 * Screen size of a voxel of each level, without perspective.
+	 */
+	private final double[] voxelScreenSize;
+
+	/**
+	 * Size of the cell grid of each level.
+	 */
+	private final int[][] gridSizes;
+
+	/**
+	 * Source transforms of each level, for {@link #levelsTimepoint}. The
+	 * {@link #toFiner} transforms and {@link #gridSizes} are derived from these
+	 * and only recomputed when they change.
+	 */
+	private final AffineTransform3D[] sourceTransforms;
+
+	/**
+	 * The timepoint for which {@link #sourceTransforms}, {@link #toFiner} and
+	 * {@link #gridSizes} are set up, or -1.
+	 */
+	private int levelsTimepoint = -1;
+
+	private final AffineTransform3D tmpTransform = new AffineTransform3D();
+
+	private final AffineTransform3D tmpTransform2 = new AffineTransform3D();
+
+	private double maxScreenVoxelSize = 1.0;
+
+	private double dCam = 0;
+
+	private double clipNear = Double.NEGATIVE_INFINITY;
+
+	private double clipFar = Double.POSITIVE_INFINITY;
+
+	private boolean requestFallback;
+
+	private BlockMinMax minMax;
+
+	private TransferFunction transferFunction;
+
+	private boolean pruneTransparentSubtrees;
+
+	private long[] stack = new long[ 1024 ];
+
+	private long[] keys = new long[ 1024 ];
+
+	private double[] depths = new double[ 1024 ];
+
+	private long[] sortKeys = new long[ 1024 ];
+
+	private int numKeys;
+
+	private final LongIntHash visited = new LongIntHash( 1024 );
+
+	/**
+	 * Screen-space bounds computed by {@link #project(int, int, int, int)}.
+	 */
+	private double minX, minY, maxX, maxY, minZ, maxZ;
+
+	/**
+	 * Viewport size of the current {@link #plan(AffineTransform3D, int, int, int)}.
+	 */
+	private int viewportWidth, viewportHeight;
+
+	private final double[] cellMin = new double[ 3 ];
+
+	private final double[] cellMax = new double[ 3 ];
+
+	/**
+	 * @param source
+	 *            the source to plan block requests for.
+	 * @param setup
+	 *            setup id that will be used in the planned keys.
+	 * @param blockSize
+	 *            size of a block (equal for all levels).
+	 */
+	public BlockRequestPlanner( final Source< ? > source, final int setup, final int[] blockSize )
+	{
+		this.source = source;
+		this.setup = setup;
+		this.blockSize = blockSize.clone();
+		numLevels = source.getNumMipmapLevels();
+		toScreen = new double[ numLevels ][ 12 ];
+		toFiner = new double[ numLevels ][ 12 ];
+		voxelScreenSize = new double[ numLevels ];
+		gridSizes = new int[ numLevels ][ 3 ];
+		sourceTransforms = new AffineTransform3D[ numLevels ];
+		for ( int l = 0; l < numLevels; ++l )
+			sourceTransforms[ l ] = new AffineTransform3D();
+	}
+
+	/**
+	 * Set the largest acceptable size (in pixels) of a voxel on screen. Blocks
+	 * with larger voxels are refined, if a finer level exists.
+	 */
+	public void setMaxScreenVoxelSize( final double maxScreenVoxelSize )
+	{
+		this.maxScreenVoxelSize = maxScreenVoxelSize;
+	}
+
+	/**
+	 * Use perspective projection.
+	 *
+	 * @param dCam
+	 *            distance from the eye to the screen plane {@code z = 0} (in
+	 *            pixels).
+	 * @param clipNear
+	 *            near clipping plane (screen z), must be larger than
+	 *            {@code -dCam}.
+	 * @param clipFar
+	 *            far clipping plane (screen z).
+	 */
+	public void setPerspective( final double dCam, final double clipNear, final double clipFar )
+	{
+		if ( dCam <= 0 || clipNear <= -dCam || clipFar <= clipNear )
+			throw new IllegalArgumentException();
+		this.dCam = dCam;
+		this.clipNear = clipNear;
+		this.clipFar = clipFar;
+	}
+
+	/**
+	 * Use orthographic projection.
+	 *
+	 * @param clipNear
+	 *            near clipping plane (screen z).
+	 * @param clipFar
+	 *            far clipping plane (screen z).
+	 */
+	public void setOrthographic( final double clipNear, final double clipFar )
+	{
+		if ( clipFar <= clipNear )
+			throw new IllegalArgumentException();
+		this.dCam = 0;
+		this.clipNear = clipNear;
+		this.clipFar = clipFar;
+	}
+
+	/**
+	 * Whether to also request the blocks that are refined, so that they are
+	 * available as coarser fallback while the finer blocks are missing. This
+	 * is useful for progressive rendering.
+	 */
+	public void setRequestFallback( final boolean requestFallback )
+	{
+		this.requestFallback = requestFallback;
+	}
+
+	/**
+	 * Skip blocks that are known to be transparent.
+	 *
+	 * @param minMax
+	 *            minimum and maximum values of blocks, or {@code null} to
+	 *            disable skipping.
+	 * @param transferFunction
+	 *            the current transfer function.
+	 * @param pruneTransparentSubtrees
+	 *            whether to also skip all finer blocks overlapping a
+	 *            transparent block. This is only correct if the value range
+	 *            of coarse blocks bounds the values of the finer levels,
+	 *            which is not the case for averaging downsampling.
+	 */
+	public void setTransparencySkipping( final BlockMinMax minMax, final TransferFunction transferFunction, final boolean pruneTransparentSubtrees )
+	{
+		this.minMax = minMax;
+		this.transferFunction = transferFunction;
+		this.pruneTransparentSubtrees = pruneTransparentSubtrees;
+	}
+
+	/**
+	 * Compute the blocks needed to render the given view. Get the result with
+	 * {@link #getKeys()} and {@link #getNumKeys()}.
+	 *
+	 * @param viewerTransform
+	 *            transforms global coordinates to screen coordinates.
+	 * @param width
+	 *            width of the viewport (in pixels).
+	 * @param height
+	 *            height of the viewport (in pixels).
+	 * @param timepoint
+	 *            the timepoint to render.
+	 * @return the number of planned keys.
+	 */
+	public int plan( final AffineTransform3D viewerTransform, final int width, final int height, final int timepoint )
+	{
+		numKeys = 0;
+		visited.clear();
+		viewportWidth = width;
+		viewportHeight = height;
+		if ( !source.isPresent( timepoint ) )
+			return 0;
+
+		setupLevels( viewerTransform, timepoint );
+
+		// push all blocks of the coarsest level
+		int stackSize = 0;
+		final int coarsest = numLevels - 1;
+		final int[] g = gridSizes[ coarsest ];
+		for ( int z = 0; z < g[ 2 ]; ++z )
+			for ( int y = 0; y < g[ 1 ]; ++y )
+				for ( int x = 0; x < g[ 0 ]; ++x )
+				{
+					stack = grow( stack, stackSize + 1 );
+					stack[ stackSize++ ] = BlockKey.pack( x, y, z, timepoint, setup, coarsest );
+				}
+
+		while ( stackSize > 0 )
+		{
+			final long key = stack[ --stackSize ];
+			final int level = BlockKey.level( key );
+			final int cx = BlockKey.cellX( key );
+			final int cy = BlockKey.cellY( key );
+			final int cz = BlockKey.cellZ( key );
+
+			project( level, cx, cy, cz );
+			if ( maxX < 0 || maxY < 0 || minX > width || minY > height || maxZ < clipNear || minZ > clipFar )
+				continue;
+
+			final boolean transparent = minMax != null && minMax.isTransparent( key, transferFunction );
+			final double size = voxelScreenSize[ level ] * perspectiveScale( Math.max( minZ, clipNear ) );
+			if ( level == 0 || size <= maxScreenVoxelSize )
+			{
+				if ( !transparent )
+					emit( key, 0.5 * ( minZ + maxZ ) );
+				continue;
+			}
+			if ( transparent && pruneTransparentSubtrees )
+				continue;
+			if ( requestFallback && !transparent )
+				emit( key, 0.5 * ( minZ + maxZ ) );
+
+			// refine: push overlapping blocks of the next finer level
+			final int finer = level - 1;
+			finerCellRange( level, cx, cy, cz );
+			final int[] fg = gridSizes[ finer ];
+			final int x0 = Math.max( 0, ( int ) cellMin[ 0 ] );
+			final int y0 = Math.max( 0, ( int ) cellMin[ 1 ] );
+			final int z0 = Math.max( 0, ( int ) cellMin[ 2 ] );
+			final int x1 = Math.min( fg[ 0 ] - 1, ( int ) cellMax[ 0 ] );
+			final int y1 = Math.min( fg[ 1 ] - 1, ( int ) cellMax[ 1 ] );
+			final int z1 = Math.min( fg[ 2 ] - 1, ( int ) cellMax[ 2 ] );
+			for ( int z = z0; z <= z1; ++z )
+				for ( int y = y0; y <= y1; ++y )
+					for ( int x = x0; x <= x1; ++x )
+					{
+						final long child = BlockKey.pack( x, y, z, timepoint, setup, finer );
+						if ( visited.put( child, 0 ) == LongIntHash.NO_ENTRY )
+						{
+							stack = grow( stack, stackSize + 1 );
+							stack[ stackSize++ ] = child;
+						}
+					}
+		}
+
+		sort();
+		return numKeys;
+	}
+
+	/**
+	 * Get the keys planned by the last {@link #plan(AffineTransform3D, int, int, int)},
+	 * sorted by priority. Only the first {@link #getNumKeys()} elements are
+	 * valid. The array is re-used by the next call.
+	 */
+	public long[] getKeys()
+	{
+		return keys;
+	}
+
+	public int getNumKeys()
+	{
+		return numKeys;
+	}
+
+	/**
+	 * Get the size of the cell grid of the given level, as computed by the
+	 * last {@link #plan(AffineTransform3D, int, int, int)}.
+	 */
+	public int[] getGridSize( final int level )
+	{
+		return gridSizes[ level ];
+	}
+
+	public int getNumLevels()
+	{
+		return numLevels;
+	}
+
+	public int[] getBlockSize()
+	{
+		return blockSize;
+	}
+
+	private void setupLevels( final AffineTransform3D viewerTransform, final int timepoint )
+	{
+		boolean changed = timepoint != levelsTimepoint;
+		for ( int l = 0; l < numLevels; ++l )
+		{
+			source.getSourceTransform( timepoint, l, tmpTransform );
+			if ( !equals( tmpTransform, sourceTransforms[ l ] ) )
+			{
+				sourceTransforms[ l ].set( tmpTransform );
+				changed = true;
+			}
+		}
+		if ( changed )
+		{
+			setupLevelGeometry( timepoint );
+			levelsTimepoint = timepoint;
+		}
+
+		for ( int l = 0; l < numLevels; ++l )
+		{
+			tmpTransform.set( sourceTransforms[ l ] );
+			tmpTransform.preConcatenate( viewerTransform );
+			toArray( tmpTransform, toScreen[ l ] );
+
+			double s = 0;
+			for ( int c = 0; c < 3; ++c )
+			{
+				final double[] m = toScreen[ l ];
+				final double n = Math.sqrt( m[ c ] * m[ c ] + m[ 4 + c ] * m[ 4 + c ] + m[ 8 + c ] * m[ 8 + c ] );
+				s = Math.max( s, n );
+			}
+			voxelScreenSize[ l ] = s;
+		}
+	}
+
+	/**
+	 * Set up the cell grid sizes and {@link #toFiner} transforms from the
+	 * {@link #sourceTransforms}. This allocates, so it is only done when the
+	 * timepoint or source transforms change.
+	 */
+	private void setupLevelGeometry( final int timepoint )
+	{
+		for ( int l = 0; l < numLevels; ++l )
+		{
+			final RandomAccessibleInterval< ? > img = source.getSource( timepoint, l );
+			for ( int d = 0; d < 3; ++d )
+				gridSizes[ l ][ d ] = ( int ) ( ( img.dimension( d ) + blockSize[ d ] - 1 ) / blockSize[ d ] );
+
+			if ( l > 0 )
+			{
+				tmpTransform2.set( sourceTransforms[ l ] );
+				tmpTransform2.preConcatenate( sourceTransforms[ l - 1 ].inverse() );
+				toArray( tmpTransform2, toFiner[ l ] );
+			}
+		}
+	}
+
+	/**
+	 * Compute the screen-space bounding box of a block.
+	 */
+	private void project( final int level, final int cx, final int cy, final int cz )
+	{
+		final double[] m = toScreen[ level ];
+		minX = minY = minZ = Double.POSITIVE_INFINITY;
+		maxX = maxY = maxZ = Double.NEGATIVE_INFINITY;
+		for ( int i = 0; i < 8; ++i )
+		{
+			final double x = cornerCoordinate( cx, ( i & 1 ), 0 );
+			final double y = cornerCoordinate( cy, ( i >> 1 ) & 1, 1 );
+			final double z = cornerCoordinate( cz, ( i >> 2 ) & 1, 2 );
+			final double sz = m[ 8 ] * x + m[ 9 ] * y + m[ 10 ] * z + m[ 11 ];
+			double sx = m[ 0 ] * x + m[ 1 ] * y + m[ 2 ] * z + m[ 3 ];
+			double sy = m[ 4 ] * x + m[ 5 ] * y + m[ 6 ] * z + m[ 7 ];
+			if ( dCam > 0 )
+			{
+				// corners in front of the near plane are projected as if on it
+				final double p = perspectiveScale( Math.max( sz, clipNear ) );
+				sx = 0.5 * viewportWidth + ( sx - 0.5 * viewportWidth ) * p;
+				sy = 0.5 * viewportHeight + ( sy - 0.5 * viewportHeight ) * p;
+			}
+			minX = Math.min( minX, sx );
+			maxX = Math.max( maxX, sx );
+			minY = Math.min( minY, sy );
+			maxY = Math.max( maxY, sy );
+			minZ = Math.min( minZ, sz );
+			maxZ = Math.max( maxZ, sz );
+		}
+	}
+
+	/**
+	 * Compute the range of cells of level {@code level-1} that overlap a block
+	 * of {@code level}. The (inclusive) range is stored in
+	 * {@link #cellMin} and {@link #cellMax}.
+	 */
+	private void finerCellRange( final int level, final int cx, final int cy, final int cz )
+	{
+		final double[] m = toFiner[ level ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			cellMin[ d ] = Double.POSITIVE_INFINITY;
+			cellMax[ d ] = Double.NEGATIVE_INFINITY;
+		}
+		for ( int i = 0; i < 8; ++i )
+		{
+			final double x = cornerCoordinate( cx, ( i & 1 ), 0 );
+			final double y = cornerCoordinate( cy, ( i >> 1 ) & 1, 1 );
+			final double z = cornerCoordinate( cz, ( i >> 2 ) & 1, 2 );
+			for ( int d = 0; d < 3; ++d )
+			{
+				final double v = m[ 4 * d ] * x + m[ 4 * d + 1 ] * y + m[ 4 * d + 2 ] * z + m[ 4 * d + 3 ];
+				cellMin[ d ] = Math.min( cellMin[ d ], v );
+				cellMax[ d ] = Math.max( cellMax[ d ], v );
+			}
+		}
+		for ( int d = 0; d < 3; ++d )
+		{
+			// voxel centers are at integer coordinates, a block covers
+			// [c * blockSize - 0.5, (c + 1) * blockSize - 0.5]
+			cellMin[ d ] = Math.floor( ( cellMin[ d ] + 0.5 ) / blockSize[ d ] );
+			cellMax[ d ] = Math.ceil( ( cellMax[ d ] + 0.5 ) / blockSize[ d ] ) - 1;
+		}
+	}
+
+	private double cornerCoordinate( final int cell, final int corner, final int d )
+	{
+		return ( cell + corner ) * blockSize[ d ] - 0.5;
+	}
+
+	private double perspectiveScale( final double z )
+	{
+		return dCam > 0 ? dCam / ( dCam + z ) : 1;
+	}
+
+	private void emit( final long key, final double depth )
+	{
+		keys = grow( keys, numKeys + 1 );
+		if ( depths.length < keys.length )
+			depths = Arrays.copyOf( depths, keys.length );
+		keys[ numKeys ] = key;
+		depths[ numKeys ] = depth;
+		++numKeys;
+	}
+
+	/**
+	 * Sort keys by level (coarse first), then by depth (near first).
+	 * <p>
+	 * Each key is represented by a {@code long} that contains, from most to
+	 * least significant, the inverted level (4 bits), an order-preserving
+	 * encoding of the depth as float (32 bits), and the index of the key (28
+	 * bits). Sorting these sorts the keys.
+	 */
+	private void sort()
+	{
+		if ( numKeys > ( 1 << 28 ) )
+			throw new IllegalStateException( "too many blocks" );
+		sortKeys = grow( sortKeys, numKeys );
+		for ( int i = 0; i < numKeys; ++i )
+		{
+			final long levelRank = ( ( 1 << BlockKey.LEVEL_BITS ) - 1 ) - BlockKey.level( keys[ i ] );
+			int depthBits = Float.floatToIntBits( ( float ) depths[ i ] );
+			depthBits ^= ( depthBits >> 31 ) & 0x7fffffff;
+			final long unsignedDepth = ( depthBits ^ 0x80000000 ) & 0xffffffffL;
+			sortKeys[ i ] = ( ( levelRank << 60 ) | ( unsignedDepth << 28 ) | i ) ^ Long.MIN_VALUE;
+		}
+		Arrays.sort( sortKeys, 0, numKeys );
+		final long[] sorted = stack.length >= numKeys ? stack : ( stack = new long[ keys.length ] );
+		for ( int i = 0; i < numKeys; ++i )
+			sorted[ i ] = keys[ ( int ) ( sortKeys[ i ] & ( ( 1 << 28 ) - 1 ) ) ];
+		System.arraycopy( sorted, 0, keys, 0, numKeys );
+	}
+
+	private static long[] grow( final long[] array, final int minSize )
+	{
+		return array.length >= minSize ? array : Arrays.copyOf( array, Math.max( minSize, 2 * array.length ) );
+	}
+
+	private static boolean equals( final AffineTransform3D a, final AffineTransform3D b )
+	{
+		for ( int r = 0; r < 3; ++r )
+			for ( int c = 0; c < 4; ++c )
+				if ( a.get( r, c ) != b.get( r, c ) )
+					return false;
+		return true;
+	}
+
+	private static void toArray( final AffineTransform3D t, final double[] m )
+	{
+		for ( int r = 0; r < 3; ++r )
+			for ( int c = 0; c < 4; ++c )
+				m[ 4 * r + c ] = t.get( r, c );
+	}
+}
@@ -0,0 +1,134 @@
+package bdv.volume;
+
+import static org.jocl.CL.CL_MEM_READ_ONLY;
+
+import org.jocl.Pointer;
+
+import bdv.volume.LongLRUBlockCache.ResidencyListener;
+import cl.CLBuffer;
+import cl.CLContext;
+
+/**
+ * Per-cell scale and offset for dequantizing an 8 bit block texture (see
+ * {@link BlockQuantizer}).
+ * <p>
+ * Register as {@link ResidencyListener} with the block cache, in the same way
+ * as {@link PageTables}. When a key becomes resident in a cell of the block
+ * texture, the value range recorded for the key in a {@link BlockMinMax}
+ * (typically by {@link BlockQuantizer#quantizing(BlockUploader.BlockLoader, BlockMinMax)})
+ * is converted to a {@code float2 (scale, offset)} for that cell. Call
+ * {@link #upload(CLContext)} once per frame to upload the changes. On the
+ * device, the buffer is indexed by the linear cell index
+ * {@code x + gridSize.x * (y + gridSize.y * z)}.
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public class BlockScaleOffsets implements ResidencyListener
+{
+	private final BlockMinMax minMax;
+
+	private final int numCells;
+
+	/**
+	 * (scale, offset) of each cell.
+	 */
+	private final float[] scaleOffsets;
+
+	private boolean dirty;
+
+	private CLBuffer buffer;
+
+	/**
+	 * @param textureGridSize
+	 *            size of the grid of blocks in the block texture.
+	 * @param minMax
+	 *            value ranges of quantized blocks.
+	 */
+	public BlockScaleOffsets( final int[] textureGridSize, final BlockMinMax minMax )
+	{
+		this.minMax = minMax;
+		numCells = textureGridSize[ 0 ] * textureGridSize[ 1 ] * textureGridSize[ 2 ];
+		scaleOffsets = new float[ 2 * numCells ];
+		dirty = true;
+	}
+
+	/**
+	 * @throws IllegalStateException
+	 *             if no value range was recorded for {@code key} (for
+	 *             example, because a block was read from a
+	 *             {@link DiskBlockCache} without
+	 *             {@link DiskBlockCache#caching(BlockUploader.BlockLoader, BlockMinMax)
+	 *             restoring} it).
+	 */
+	@Override
+	public synchronized void resident( final long key, final int gridIndex )
+	{
+		final float min = minMax.getMin( key );
+		final float max = minMax.getMax( key );
+		if ( Float.isNaN( min ) || Float.isNaN( max ) )
+			throw new IllegalStateException( "no value range recorded for block " + BlockKey.unpack( key ) );
+		scaleOffsets[ 2 * gridIndex ] = BlockQuantizer.normalizedScale( ( int ) min, ( int ) max );
+		scaleOffsets[ 2 * gridIndex + 1 ] = BlockQuantizer.normalizedOffset( ( int ) min );
+		dirty = true;
+	}
+
+	@Override
+	public void removed( final long key, final int gridIndex )
+	{
+		// the page table entry is removed, so the cell is not sampled anymore
+	}
+
+	/**
+	 * Get the scale of the given cell.
+	 */
+	public synchronized float getScale( final int gridIndex )
+	{
+		return scaleOffsets[ 2 * gridIndex ];
+	}
+
+	/**
+	 * Get the offset of the given cell.
+	 */
+	public synchronized float getOffset( final int gridIndex )
+	{
+		return scaleOffsets[ 2 * gridIndex + 1 ];
+	}
+
+	/**
+	 * Upload the scale and offset of all cells, if any has changed since the
+	 * last upload.
+	 */
+	public synchronized void upload( final CLContext context )
+	{
+		if ( buffer == null )
+			buffer = new CLBuffer( context, CL_MEM_READ_ONLY, 2L * Float.BYTES * numCells );
+		if ( dirty )
+		{
+			buffer.enqueueWrite( Pointer.to( scaleOffsets ), buffer.getSize() );
+			dirty = false;
+		}
+	}
+
+	/**
+	 * Get the buffer holding the {@code float2 (scale, offset)} of all cells,
+	 * or {@code null} if it has not been {@link #upload(CLContext) uploaded}
+	 * yet.
+	 */
+	public synchronized CLBuffer getBuffer()
+	{
+		return buffer;
+	}
+
+	/**
+	 * Release the buffer.
+	 */
+	public synchronized void release()
+	{
+		if ( buffer != null )
+		{
+			buffer.release();
+			buffer = null;
+		}
+		dirty = true;
+	}
+}
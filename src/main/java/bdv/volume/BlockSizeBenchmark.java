@@ -0,0 +1,369 @@
+package bdv.volume;
+
+import static org.jocl.CL.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.jocl.Pointer;
+
+import cl.CLContext;
+import cl.CLImage;
+
+/**
+ * Benchmarks candidate block sizes with a synthetic workload, and recommends
+ * one.
+ * <p>
+ * For each candidate, a texture is sized with {@link AtlasSizing}. The
+ * workload is to load a cubic region of {@link #setRegionSize(int)
+ * regionSize}{@code ^3} voxels at a random offset into the texture: all
+ * blocks that intersect the region are written to consecutive texture slots
+ * (wrapping around like an LRU cache that is full). Small blocks pay more
+ * per-block overhead, large blocks load more voxels outside of the region.
+ * The time of the workload is the median over a number of
+ * {@link #setRepetitions(int) repetitions}, after one warm-up run.
+ * <p>
+ * The texture is abstracted as an {@link Atlas}, with implementations that
+ * write to an OpenCL image ({@link #clAtlas(CLContext)}) or to a
+ * {@link HostBlockTexture} ({@link #hostAtlas()}, for running without a
+ * device).
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public class BlockSizeBenchmark
+{
+	/**
+	 * A block texture that blocks are written to.
+	 */
+	public static interface Atlas
+	{
+		/**
+		 * Write a block.
+		 *
+		 * @param gridPos
+		 *            position of the block in the block grid.
+		 * @param data
+		 *            voxel data of the block (in native byte order, flattened
+		 *            with x fastest, from position to limit).
+		 */
+		void write( int[] gridPos, ByteBuffer data );
+
+		/**
+		 * Wait until all writes are complete.
+		 */
+		default void finish()
+		{}
+
+		void release();
+	}
+
+	@FunctionalInterface
+	public static interface AtlasFactory
+	{
+		Atlas create( int[] blockSize, int[] gridSize, int channelOrder, int channelDataType );
+	}
+
+	/**
+	 * The benchmark result for one block size.
+	 */
+	public static class Result
+	{
+		private final int[] blockSize;
+
+		private final int[] gridSize;
+
+		private final int numBlocks;
+
+		private final long numVoxels;
+
+		private final long nanos;
+
+		Result( final int[] blockSize, final int[] gridSize, final int numBlocks, final long numVoxels, final long nanos )
+		{
+			this.blockSize = blockSize;
+			this.gridSize = gridSize;
+			this.numBlocks = numBlocks;
+			this.numVoxels = numVoxels;
+			this.nanos = nanos;
+		}
+
+		public int[] getBlockSize()
+		{
+			return blockSize;
+		}
+
+		/**
+		 * Get the grid size chosen by {@link AtlasSizing}.
+		 */
+		public int[] getGridSize()
+		{
+			return gridSize;
+		}
+
+		/**
+		 * Get the number of blocks written per workload (median repetition).
+		 */
+		public int getNumBlocks()
+		{
+			return numBlocks;
+		}
+
+		/**
+		 * Get the number of voxels written per workload (median repetition).
+		 */
+		public long getNumVoxels()
+		{
+			return numVoxels;
+		}
+
+		/**
+		 * Get the median time of the workload in nanoseconds.
+		 */
+		public long getNanos()
+		{
+			return nanos;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format( "blockSize = %d x %d x %d, gridSize = %d x %d x %d: %d blocks, %.1f MVoxels, %.2f ms",
+					blockSize[ 0 ], blockSize[ 1 ], blockSize[ 2 ],
+					gridSize[ 0 ], gridSize[ 1 ], gridSize[ 2 ],
+					numBlocks, numVoxels / 1e6, nanos / 1e6 );
+		}
+	}
+
+	private final AtlasSizing sizing;
+
+	private final int channelOrder;
+
+	private final int channelDataType;
+
+	private final long maxBytes;
+
+	private final AtlasFactory atlasFactory;
+
+	private int regionSize = 256;
+
+	private int repetitions = 5;
+
+	private long seed = 1;
+
+	/**
+	 * @param sizing
+	 *            sizes the texture for each candidate.
+	 * @param channelOrder
+	 *            image channel order of the texture.
+	 * @param channelDataType
+	 *            image channel data type of the texture.
+	 * @param maxBytes
+	 *            memory budget of the texture.
+	 * @param atlasFactory
+	 *            creates the textures.
+	 */
+	public BlockSizeBenchmark(
+			final AtlasSizing sizing,
+			final int channelOrder,
+			final int channelDataType,
+			final long maxBytes,
+			final AtlasFactory atlasFactory )
+	{
+		this.sizing = sizing;
+		this.channelOrder = channelOrder;
+		this.channelDataType = channelDataType;
+		this.maxBytes = maxBytes;
+		this.atlasFactory = atlasFactory;
+	}
+
+	/**
+	 * Set the side length (in voxels) of the region loaded by the workload.
+	 */
+	public void setRegionSize( final int regionSize )
+	{
+		if ( regionSize < 1 )
+			throw new IllegalArgumentException();
+		this.regionSize = regionSize;
+	}
+
+	public void setRepetitions( final int repetitions )
+	{
+		if ( repetitions < 1 )
+			throw new IllegalArgumentException();
+		this.repetitions = repetitions;
+	}
+
+	/**
+	 * Set the seed for the random region offsets. All candidates use the same
+	 * sequence of offsets (modulo their block size).
+	 */
+	public void setSeed( final long seed )
+	{
+		this.seed = seed;
+	}
+
+	/**
+	 * Run the workload for each candidate block size. Candidates for which
+	 * not even one block fits (or the format is unsupported) are skipped.
+	 */
+	public List< Result > run( final int[]... candidates )
+	{
+		final List< Result > results = new ArrayList<>();
+		for ( final int[] blockSize : candidates )
+		{
+			final int[] gridSize;
+			try
+			{
+				gridSize = sizing.findGridSize( blockSize, channelOrder, channelDataType, maxBytes );
+			}
+			catch ( final IllegalArgumentException e )
+			{
+				continue;
+			}
+			results.add( run( blockSize, gridSize ) );
+		}
+		return results;
+	}
+
+	/**
+	 * Run the workload for each candidate block size, and return the result of
+	 * the fastest one, or {@code null} if no candidate fits.
+	 */
+	public Result recommend( final int[]... candidates )
+	{
+		Result best = null;
+		for ( final Result result : run( candidates ) )
+			if ( best == null || result.getNanos() < best.getNanos() )
+				best = result;
+		return best;
+	}
+
+	private Result run( final int[] blockSize, final int[] gridSize )
+	{
+		final int blockBytes = blockSize[ 0 ] * blockSize[ 1 ] * blockSize[ 2 ] * AtlasSizing.bytesPerVoxel( channelOrder, channelDataType );
+		final ByteBuffer data = ByteBuffer.allocateDirect( blockBytes ).order( ByteOrder.nativeOrder() );
+		final Random fill = new Random( seed );
+		while ( data.hasRemaining() )
+			data.put( ( byte ) fill.nextInt() );
+
+		// separate generator, so that every block size sees the same offsets
+		final Random random = new Random( seed );
+
+		final Atlas atlas = atlasFactory.create( blockSize, gridSize, channelOrder, channelDataType );
+		try
+		{
+			final int capacity = gridSize[ 0 ] * gridSize[ 1 ] * gridSize[ 2 ];
+			final int[] gridPos = new int[ 3 ];
+			final int[] offset = new int[ 3 ];
+			final int[] numBlocks = new int[ 3 ];
+			final long[] nanos = new long[ repetitions ];
+			final int[] blocks = new int[ repetitions ];
+			int slot = 0;
+			for ( int r = -1; r < repetitions; ++r )
+			{
+				int n = 1;
+				for ( int d = 0; d < 3; ++d )
+				{
+					offset[ d ] = random.nextInt( blockSize[ d ] );
+					numBlocks[ d ] = ( offset[ d ] + regionSize + blockSize[ d ] - 1 ) / blockSize[ d ];
+					n *= numBlocks[ d ];
+				}
+
+				final long t0 = System.nanoTime();
+				for ( int i = 0; i < n; ++i )
+				{
+					gridPos[ 0 ] = slot % gridSize[ 0 ];
+					gridPos[ 1 ] = ( slot / gridSize[ 0 ] ) % gridSize[ 1 ];
+					gridPos[ 2 ] = slot / ( gridSize[ 0 ] * gridSize[ 1 ] );
+					slot = ( slot + 1 ) % capacity;
+					data.clear();
+					atlas.write( gridPos, data );
+				}
+				atlas.finish();
+				final long t = System.nanoTime() - t0;
+
+				// r == -1 is the warm-up run
+				if ( r >= 0 )
+				{
+					nanos[ r ] = t;
+					blocks[ r ] = n;
+				}
+			}
+
+			// median by time, reporting the block count of the same repetition
+			final Integer[] order = new Integer[ repetitions ];
+			for ( int r = 0; r < repetitions; ++r )
+				order[ r ] = r;
+			Arrays.sort( order, ( a, b ) -> Long.compare( nanos[ a ], nanos[ b ] ) );
+			final int median = order[ repetitions / 2 ];
+			final long voxelsPerBlock = ( long ) blockSize[ 0 ] * blockSize[ 1 ] * blockSize[ 2 ];
+			return new Result( blockSize.clone(), gridSize, blocks[ median ], blocks[ median ] * voxelsPerBlock, nanos[ median ] );
+		}
+		finally
+		{
+			atlas.release();
+		}
+	}
+
+	/**
+	 * Create textures as read-only OpenCL images, written with blocking
+	 * writes on the {@link CLContext#getUploadQueue() upload queue} of
+	 * {@code context}.
+	 */
+	public static AtlasFactory clAtlas( final CLContext context )
+	{
+		return ( blockSize, gridSize, channelOrder, channelDataType ) -> {
+			final CLImage image = new CLImage( context, CL_MEM_READ_ONLY, channelOrder, channelDataType,
+					gridSize[ 0 ] * blockSize[ 0 ],
+					gridSize[ 1 ] * blockSize[ 1 ],
+					gridSize[ 2 ] * blockSize[ 2 ] );
+			final long[] origin = new long[ 3 ];
+			final long[] region = new long[] { blockSize[ 0 ], blockSize[ 1 ], blockSize[ 2 ] };
+			return new Atlas()
+			{
+				@Override
+				public void write( final int[] gridPos, final ByteBuffer data )
+				{
+					for ( int d = 0; d < 3; ++d )
+						origin[ d ] = gridPos[ d ] * blockSize[ d ];
+					image.enqueueWrite( Pointer.to( data ), origin, region );
+				}
+
+				@Override
+				public void release()
+				{
+					image.release();
+				}
+			};
+		};
+	}
+
+	/**
+	 * Create textures as {@link HostBlockTexture}s. Only supports formats with
+	 * 2 bytes per voxel.
+	 */
+	public static AtlasFactory hostAtlas()
+	{
+		return ( blockSize, gridSize, channelOrder, channelDataType ) -> {
+			if ( AtlasSizing.bytesPerVoxel( channelOrder, channelDataType ) != 2 )
+				throw new IllegalArgumentException( "HostBlockTexture stores 16 bit voxels" );
+			final HostBlockTexture texture = new HostBlockTexture( blockSize, gridSize );
+			return new Atlas()
+			{
+				@Override
+				public void write( final int[] gridPos, final ByteBuffer data )
+				{
+					texture.setBlock( gridPos, data.asShortBuffer() );
+				}
+
+				@Override
+				public void release()
+				{}
+			};
+		};
+	}
+}
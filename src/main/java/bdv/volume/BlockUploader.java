@@ -0,0 +1,525 @@
+package bdv.volume;
+
+import static org.jocl.CL.CL_COMPLETE;
+import static org.jocl.CL.clFinish;
+import static org.jocl.CL.clFlush;
+import static org.jocl.CL.clReleaseEvent;
+import static org.jocl.CL.clRetainEvent;
+import static org.jocl.CL.clSetEventCallback;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jocl.CL;
+import org.jocl.CLException;
+import org.jocl.EventCallbackFunction;
+import org.jocl.Pointer;
+import org.jocl.cl_event;
+
+import cl.CLContext;
+import cl.CLImage;
+import cl.CLPinnedBuffers;
+
+/**
+ * Pipelined, asynchronous upload of blocks into a texture.
+ * <p>
+ * {@link #submit(long, int, int[], int[]) Submitted} blocks pass through three
+ * stages that run concurrently:
+ * <ol>
+ * <li>A pool of loader threads fills staging buffers with block data using a
+ * {@link BlockLoader}.</li>
+ * <li>A single uploader thread issues a non-blocking write of the staging
+ * buffer into the texture for every loaded block.</li>
+ * <li>When a write completes, the OpenCL event callback reports the key to the
+ * {@link UploadListener} (typically to
+ * {@link ConcurrentLRUBlockCache#markResident(long, int) mark it resident}
+ * in the grid cell that was written) and recycles the staging buffer.</li>
+ * </ol>
+ * Writes are issued on the {@link CLContext#getUploadQueue() upload queue},
+ * and a block is reported only when its write has completed, so kernels on
+ * another queue may use it from then on.
+ * <p>
+ * Loads finish in any order, so the data of a key that has been evicted may
+ * arrive after the data of the key that replaced it in the same texture cell.
+ * Therefore, blocks are written only if no other block has been submitted for
+ * the same cell (the same {@code texturePos}) since. Otherwise, and if loading
+ * or writing fails, the key is reported as
+ * {@link UploadListener#failed(long, Exception) failed}.
+ * <p>
+ * The queues may execute commands out of order, so a write waits for the
+ * previous write to the same cell, and for all kernels that were enqueued
+ * before (which may still read the block that is being replaced).
+ * <p>
+ * The number of blocks in flight is bounded by the number of staging buffers.
+ * If all are in use, {@link #submit(long, int, int[], int[])} returns {@code false}
+ * and the block should be requested again in a later frame.
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public class BlockUploader
+{
+	/**
+	 * Fills a staging buffer with the data of a block.
+	 */
+	@FunctionalInterface
+	public static interface BlockLoader
+	{
+		/**
+		 * Load the data for {@code key} into {@code target}. {@code target}
+		 * is cleared before, and will be flipped after this method returns.
+		 *
+		 * @param size
+		 *            size of the block (in voxels).
+		 */
+		void load( long key, int[] size, ByteBuffer target ) throws Exception;
+	}
+
+	/**
+	 * Notified when a block has been written to the texture, or could not be
+	 * written. This is called from an OpenCL driver thread or from the threads
+	 * of the {@link BlockUploader}.
+	 */
+	@FunctionalInterface
+	public static interface UploadListener
+	{
+		/**
+		 * The block for {@code key} has been written to the grid cell with
+		 * flattened index {@code gridIndex}. The key may have moved to
+		 * another cell since it was submitted, so this must only mark it
+		 * resident if {@code gridIndex} is still its cell.
+		 */
+		void uploaded( long key, int gridIndex );
+
+		/**
+		 * The block for {@code key} was not written to the grid cell with
+		 * flattened index {@code gridIndex}. The owner should remove
+		 * {@code key} from its cache, or submit it again.
+		 *
+		 * @param cause
+		 *            the exception thrown by the {@link BlockLoader} or the
+		 *            write, or {@code null} if the block was dropped because
+		 *            another block was submitted for the same texture cell.
+		 */
+		default void failed( final long key, final int gridIndex, final Exception cause )
+		{}
+	}
+
+	private static final class Task
+	{
+		final int index;
+
+		final ByteBuffer buffer;
+
+		final Pointer pointer;
+
+		final long[] origin = new long[ 3 ];
+
+		final long[] region = new long[ 3 ];
+
+		final int[] size = new int[ 3 ];
+
+		long key;
+
+		int gridIndex;
+
+		/**
+		 * The texture cell, packed from {@link #origin}.
+		 */
+		long cell;
+
+		/**
+		 * Identifies the submission of this task for its cell.
+		 */
+		int sequence;
+
+		cl_event event;
+
+		Task( final int index, final ByteBuffer buffer )
+		{
+			this.index = index;
+			this.buffer = buffer;
+			this.pointer = Pointer.to( buffer );
+		}
+	}
+
+	private final CLContext context;
+
+	private final CLImage texture;
+
+	private final BlockLoader loader;
+
+	private final UploadListener listener;
+
+	private final BlockingQueue< Task > free;
+
+	private final BlockingQueue< Task > toLoad;
+
+	private final BlockingQueue< Task > toUpload;
+
+	private final Thread[] loaderThreads;
+
+	private final Thread uploaderThread;
+
+	private final EventCallbackFunction completed;
+
+	/**
+	 * Maps texture cells to the {@link Task#sequence} of the last submission
+	 * for the cell. Guarded by {@code synchronized (cellSequences)}.
+	 */
+	private final LongIntHash cellSequences;
+
+	private int nextSequence;
+
+	// last writes, accessed only by the uploader thread
+
+	/**
+	 * Maps texture cells to the {@link Task#index} of the last write to the
+	 * cell.
+	 */
+	private final LongIntHash lastWrites;
+
+	/**
+	 * The event of the last write of each task (retained), or {@code null}.
+	 * When a task is written again, its previous write has completed, so
+	 * there is at most one relevant event per task.
+	 */
+	private final cl_event[] writeEvents;
+
+	/**
+	 * The cell of the last write of each task.
+	 */
+	private final long[] writeCells;
+
+	private final cl_event[] waitList1 = new cl_event[ 1 ];
+
+	private final cl_event[] waitList2 = new cl_event[ 2 ];
+
+	/**
+	 * Number of submitted blocks that have not finished loading.
+	 */
+	private final AtomicInteger numLoading = new AtomicInteger();
+
+	private volatile boolean closed;
+
+	/**
+	 * @param texture
+	 *            the texture to upload blocks into.
+	 * @param stagingBuffers
+	 *            buffers that hold block data between loading and upload.
+	 *            Each buffer must be large enough for the largest block. The
+	 *            buffers must be direct, and must not be used elsewhere.
+	 *            Preferably, use pinned memory from {@link CLPinnedBuffers}.
+	 *            Buffers are recycled in FIFO order as uploads complete.
+	 * @param numLoaderThreads
+	 *            number of threads that run the {@code loader}.
+	 */
+	public BlockUploader(
+			final CLContext context,
+			final CLImage texture,
+			final ByteBuffer[] stagingBuffers,
+			final int numLoaderThreads,
+			final BlockLoader loader,
+			final UploadListener listener )
+	{
+		this.context = context;
+		this.texture = texture;
+		this.loader = loader;
+		this.listener = listener;
+
+		final int n = stagingBuffers.length;
+		free = new ArrayBlockingQueue<>( n );
+		toLoad = new ArrayBlockingQueue<>( n );
+		toUpload = new ArrayBlockingQueue<>( n );
+		for ( int i = 0; i < n; ++i )
+		{
+			if ( !stagingBuffers[ i ].isDirect() )
+				throw new IllegalArgumentException( "staging buffers must be direct" );
+			free.add( new Task( i, stagingBuffers[ i ] ) );
+		}
+		lastWrites = new LongIntHash( n );
+		writeEvents = new cl_event[ n ];
+		writeCells = new long[ n ];
+
+		cellSequences = new LongIntHash( 1024 );
+		nextSequence = 0;
+
+		completed = ( event, status, userData ) -> {
+			final Task task = ( Task ) userData;
+			clReleaseEvent( task.event );
+			task.event = null;
+			if ( status != CL_COMPLETE )
+				failed( task, new CLException( "write failed: " + CL.stringFor_errorCode( status ), status ) );
+			else if ( !isCurrent( task ) )
+				failed( task, null );
+			else
+			{
+				listener.uploaded( task.key, task.gridIndex );
+				free.offer( task );
+			}
+		};
+
+		loaderThreads = new Thread[ numLoaderThreads ];
+		for ( int i = 0; i < numLoaderThreads; ++i )
+		{
+			loaderThreads[ i ] = new Thread( this::loadLoop, "BlockUploader-loader-" + i );
+			loaderThreads[ i ].setDaemon( true );
+			loaderThreads[ i ].start();
+		}
+		uploaderThread = new Thread( this::uploadLoop, "BlockUploader-uploader" );
+		uploaderThread.setDaemon( true );
+		uploaderThread.start();
+	}
+
+	/**
+	 * Submit a block for loading and upload.
+	 *
+	 * @param key
+	 *            the key to load.
+	 * @param gridIndex
+	 *            flattened index of the grid cell at {@code texturePos},
+	 *            reported back to the {@link UploadListener}.
+	 * @param texturePos
+	 *            minimum coordinate of the block in the texture (in voxels).
+	 * @param size
+	 *            size of the block (in voxels).
+	 * @return {@code false} if no staging buffer is available. The block is
+	 *         not submitted in this case.
+	 */
+	public boolean submit( final long key, final int gridIndex, final int[] texturePos, final int[] size )
+	{
+		if ( closed )
+			throw new IllegalStateException();
+
+		final Task task = free.poll();
+		if ( task == null )
+			return false;
+
+		task.key = key;
+		task.gridIndex = gridIndex;
+		for ( int d = 0; d < 3; ++d )
+		{
+			task.origin[ d ] = texturePos[ d ];
+			task.region[ d ] = size[ d ];
+			task.size[ d ] = size[ d ];
+		}
+		task.cell = ( long ) texturePos[ 0 ] | ( ( long ) texturePos[ 1 ] << 21 ) | ( ( long ) texturePos[ 2 ] << 42 );
+		synchronized ( cellSequences )
+		{
+			task.sequence = nextSequence;
+			nextSequence = ( nextSequence + 1 ) & Integer.MAX_VALUE;
+			cellSequences.put( task.cell, task.sequence );
+		}
+		numLoading.incrementAndGet();
+		toLoad.add( task );
+		return true;
+	}
+
+	/**
+	 * Get the number of staging buffers that are currently not in use.
+	 */
+	public int getNumFree()
+	{
+		return free.size();
+	}
+
+	/**
+	 * Whether there are submitted blocks that are waiting to be loaded or are
+	 * being loaded. Background work that competes for the same I/O (e.g.,
+	 * {@link CameraPrefetcher prefetching}) should pause while this is
+	 * {@code true}.
+	 */
+	public boolean isLoading()
+	{
+		return numLoading.get() > 0;
+	}
+
+	/**
+	 * Stop the loader and uploader threads. Blocks that are not yet loaded are
+	 * discarded. Uploads that are in flight are completed.
+	 */
+	public void close()
+	{
+		closed = true;
+		for ( final Thread t : loaderThreads )
+			t.interrupt();
+		uploaderThread.interrupt();
+		try
+		{
+			for ( final Thread t : loaderThreads )
+				t.join();
+			uploaderThread.join();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		clFinish( context.getUploadQueue() );
+		for ( int i = 0; i < writeEvents.length; ++i )
+			forgetWrite( i );
+	}
+
+	private void loadLoop()
+	{
+		try
+		{
+			while ( !closed )
+			{
+				final Task task = toLoad.take();
+				try
+				{
+					task.buffer.clear();
+					task.buffer.order( ByteOrder.nativeOrder() );
+					loader.load( task.key, task.size, task.buffer );
+					task.buffer.flip();
+					toUpload.put( task );
+				}
+				catch ( final InterruptedException e )
+				{
+					throw e;
+				}
+				catch ( final Exception e )
+				{
+					failed( task, e );
+				}
+				finally
+				{
+					numLoading.decrementAndGet();
+				}
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			// closed
+		}
+	}
+
+	private void uploadLoop()
+	{
+		try
+		{
+			while ( !closed )
+			{
+				Task task = toUpload.take();
+				final cl_event marker = context.enqueueKernelMarker();
+				while ( task != null )
+				{
+					if ( !isCurrent( task ) )
+						failed( task, null );
+					else
+						write( task, marker );
+					task = toUpload.poll();
+				}
+				if ( marker != null )
+					clReleaseEvent( marker );
+				clFlush( context.getUploadQueue() );
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			// closed
+		}
+	}
+
+	/**
+	 * Enqueue the write of {@code task}, after {@code marker} (may be
+	 * {@code null}) and the previous write to the same cell.
+	 */
+	private void write( final Task task, final cl_event marker )
+	{
+		// the previous write of this task has completed, because the task was recycled
+		forgetWrite( task.index );
+		final int previous = lastWrites.get( task.cell );
+		final cl_event previousEvent = previous == LongIntHash.NO_ENTRY ? null : writeEvents[ previous ];
+
+		final cl_event[] waitList;
+		if ( marker != null && previousEvent != null )
+		{
+			waitList = waitList2;
+			waitList[ 0 ] = marker;
+			waitList[ 1 ] = previousEvent;
+		}
+		else if ( marker != null || previousEvent != null )
+		{
+			waitList = waitList1;
+			waitList[ 0 ] = marker != null ? marker : previousEvent;
+		}
+		else
+			waitList = null;
+
+		try
+		{
+			final cl_event event = new cl_event();
+			texture.enqueueWrite( task.pointer, task.origin, task.region, false, waitList, event );
+			// retain before the callback may release it
+			clRetainEvent( event );
+			writeEvents[ task.index ] = event;
+			writeCells[ task.index ] = task.cell;
+			lastWrites.put( task.cell, task.index );
+			task.event = event;
+			clSetEventCallback( event, CL_COMPLETE, completed, task );
+		}
+		catch ( final CLException e )
+		{
+			task.event = null;
+			failed( task, e );
+		}
+	}
+
+	/**
+	 * Release the event of the last write of the task with the given index.
+	 */
+	private void forgetWrite( final int index )
+	{
+		final cl_event event = writeEvents[ index ];
+		if ( event != null )
+		{
+			if ( lastWrites.get( writeCells[ index ] ) == index )
+				lastWrites.remove( writeCells[ index ] );
+			clReleaseEvent( event );
+			writeEvents[ index ] = null;
+		}
+	}
+
+	/**
+	 * Whether no other block has been submitted for the cell of {@code task}
+	 * after {@code task}.
+	 */
+	private boolean isCurrent( final Task task )
+	{
+		synchronized ( cellSequences )
+		{
+			return cellSequences.get( task.cell ) == task.sequence;
+		}
+	}
+
+	/**
+	 * Report that {@code task} was not written, and recycle its staging
+	 * buffer.
+	 */
+	private void failed( final Task task, final Exception cause )
+	{
+		listener.failed( task.key, task.gridIndex, cause );
+		free.offer( task );
+	}
+
+	/**
+	 * Allocate direct buffers for use as staging buffers. Unlike
+	 * {@link CLPinnedBuffers}, these are pageable, so the driver may copy
+	 * through an intermediate buffer.
+	 *
+	 * @param numBuffers
+	 *            number of buffers.
+	 * @param bytesPerBuffer
+	 *            size of each buffer.
+	 */
+	public static ByteBuffer[] allocateStagingBuffers( final int numBuffers, final int bytesPerBuffer )
+	{
+		final ByteBuffer[] buffers = new ByteBuffer[ numBuffers ];
+		for ( int i = 0; i < numBuffers; ++i )
+			buffers[ i ] = ByteBuffer.allocateDirect( bytesPerBuffer ).order( ByteOrder.nativeOrder() );
+		return buffers;
+	}
+}
@@ -0,0 +1,255 @@
+package bdv.volume;
+
+import java.util.Arrays;
+
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+
+/**
+ * A 3D (octree) buddy allocator for regions of a texture.
+ * <p>
+ * The texture is a grid of {@code rootGridSize} root cubes. A region of order
+ * {@code o} is a cube with side length {@code 2^o} (in units of the smallest
+ * region). Root cubes have order {@code maxOrder}. To allocate a region of
+ * order {@code o} when none is free, a free region of order {@code o+1} is
+ * split into its 8 children. When a region is freed and all its 7 buddies are
+ * free too, they are merged back into their parent.
+ * <p>
+ * Regions are identified by their order and their index in the grid of
+ * regions of that order.
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public class BuddyAllocator
+{
+	/**
+	 * Returned by {@link #allocate(int)} if there is no free region.
+	 */
+	public static final int NONE = -1;
+
+	private final int maxOrder;
+
+	/**
+	 * Size of the grid of regions, for each order.
+	 */
+	private final int[][] gridSizes;
+
+	/**
+	 * Stack of free regions, for each order.
+	 */
+	private final int[][] freeStacks;
+
+	private final int[] numFree;
+
+	/**
+	 * Position of each region in the free stack of its order, or -1 if the
+	 * region is not free.
+	 */
+	private final int[][] stackPositions;
+
+	/**
+	 * Number of allocated regions of smallest order (that is, allocated
+	 * volume in units of the smallest region).
+	 */
+	private long allocatedUnits;
+
+	private final long totalUnits;
+
+	private final int[] tmp = new int[ 3 ];
+
+	/**
+	 * @param rootGridSize
+	 *            size of the grid of root regions.
+	 * @param maxOrder
+	 *            order of the root regions.
+	 */
+	public BuddyAllocator( final int[] rootGridSize, final int maxOrder )
+	{
+		if ( maxOrder < 0 || maxOrder > 8 )
+			throw new IllegalArgumentException();
+
+		this.maxOrder = maxOrder;
+		gridSizes = new int[ maxOrder + 1 ][];
+		freeStacks = new int[ maxOrder + 1 ][];
+		numFree = new int[ maxOrder + 1 ];
+		stackPositions = new int[ maxOrder + 1 ][];
+		for ( int o = 0; o <= maxOrder; ++o )
+		{
+			final int[] size = new int[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+				size[ d ] = rootGridSize[ d ] << ( maxOrder - o );
+			final long n = Intervals.numElements( size );
+			if ( n > Integer.MAX_VALUE )
+				throw new IllegalArgumentException( "grid too large" );
+			gridSizes[ o ] = size;
+			freeStacks[ o ] = new int[ ( int ) n ];
+			stackPositions[ o ] = new int[ ( int ) n ];
+			Arrays.fill( stackPositions[ o ], -1 );
+		}
+
+		final int numRoots = freeStacks[ maxOrder ].length;
+		for ( int i = numRoots - 1; i >= 0; --i )
+			push( maxOrder, i );
+
+		totalUnits = ( long ) numRoots << ( 3 * maxOrder );
+		allocatedUnits = 0;
+	}
+
+	/**
+	 * Allocate a region of the given order.
+	 *
+	 * @return the index of the allocated region, or {@link #NONE} if there is
+	 *         no free space.
+	 */
+	public int allocate( final int order )
+	{
+		final int index = allocateInternal( order );
+		if ( index != NONE )
+			allocatedUnits += 1L << ( 3 * order );
+		return index;
+	}
+
+	/**
+	 * Free a previously {@link #allocate(int) allocated} region.
+	 */
+	public void free( final int order, final int index )
+	{
+		if ( stackPositions[ order ][ index ] >= 0 )
+			throw new IllegalArgumentException( "region is already free" );
+		allocatedUnits -= 1L << ( 3 * order );
+		freeInternal( order, index );
+	}
+
+	/**
+	 * Get the position of a region, in units of the smallest region.
+	 */
+	public void getPosition( final int order, final int index, final int[] position )
+	{
+		IntervalIndexer.indexToPosition( index, gridSizes[ order ], position );
+		for ( int d = 0; d < 3; ++d )
+			position[ d ] <<= order;
+	}
+
+	public int getMaxOrder()
+	{
+		return maxOrder;
+	}
+
+	/**
+	 * Get the size of the grid of regions of the given order.
+	 */
+	public int[] getGridSize( final int order )
+	{
+		return gridSizes[ order ];
+	}
+
+	/**
+	 * Get the total volume, in units of the smallest region.
+	 */
+	public long getTotalUnits()
+	{
+		return totalUnits;
+	}
+
+	/**
+	 * Get the allocated volume, in units of the smallest region.
+	 */
+	public long getAllocatedUnits()
+	{
+		return allocatedUnits;
+	}
+
+	/**
+	 * Get the number of free regions of the given order. (Free regions of
+	 * higher order that could be split are not counted.)
+	 */
+	public int getNumFree( final int order )
+	{
+		return numFree[ order ];
+	}
+
+	private int allocateInternal( final int order )
+	{
+		if ( numFree[ order ] > 0 )
+			return pop( order );
+		if ( order == maxOrder )
+			return NONE;
+
+		final int parent = allocateInternal( order + 1 );
+		if ( parent == NONE )
+			return NONE;
+
+		// split parent: keep first child, free the other 7
+		IntervalIndexer.indexToPosition( parent, gridSizes[ order + 1 ], tmp );
+		final int[] size = gridSizes[ order ];
+		final int x0 = 2 * tmp[ 0 ];
+		final int y0 = 2 * tmp[ 1 ];
+		final int z0 = 2 * tmp[ 2 ];
+		for ( int i = 7; i > 0; --i )
+			push( order, childIndex( x0, y0, z0, i, size ) );
+		return childIndex( x0, y0, z0, 0, size );
+	}
+
+	private void freeInternal( final int order, final int index )
+	{
+		if ( order < maxOrder )
+		{
+			final int[] size = gridSizes[ order ];
+			IntervalIndexer.indexToPosition( index, size, tmp );
+			final int x0 = tmp[ 0 ] & ~1;
+			final int y0 = tmp[ 1 ] & ~1;
+			final int z0 = tmp[ 2 ] & ~1;
+			boolean allFree = true;
+			for ( int i = 0; i < 8 && allFree; ++i )
+			{
+				final int child = childIndex( x0, y0, z0, i, size );
+				allFree = child == index || stackPositions[ order ][ child ] >= 0;
+			}
+			if ( allFree )
+			{
+				for ( int i = 0; i < 8; ++i )
+				{
+					final int child = childIndex( x0, y0, z0, i, size );
+					if ( child != index )
+						remove( order, child );
+				}
+				final int[] parentSize = gridSizes[ order + 1 ];
+				final int parent = x0 / 2 + parentSize[ 0 ] * ( y0 / 2 + parentSize[ 1 ] * ( z0 / 2 ) );
+				freeInternal( order + 1, parent );
+				return;
+			}
+		}
+		push( order, index );
+	}
+
+	private static int childIndex( final int x0, final int y0, final int z0, final int i, final int[] size )
+	{
+		final int x = x0 + ( i & 1 );
+		final int y = y0 + ( ( i >> 1 ) & 1 );
+		final int z = z0 + ( ( i >> 2 ) & 1 );
+		return x + size[ 0 ] * ( y + size[ 1 ] * z );
+	}
+
+	private void push( final int order, final int index )
+	{
+		final int pos = numFree[ order ]++;
+		freeStacks[ order ][ pos ] = index;
+		stackPositions[ order ][ index ] = pos;
+	}
+
+	private int pop( final int order )
+	{
+		final int index = freeStacks[ order ][ --numFree[ order ] ];
+		stackPositions[ order ][ index ] = -1;
+		return index;
+	}
+
+	private void remove( final int order, final int index )
+	{
+		final int pos = stackPositions[ order ][ index ];
+		final int last = freeStacks[ order ][ --numFree[ order ] ];
+		freeStacks[ order ][ pos ] = last;
+		stackPositions[ order ][ last ] = pos;
+		stackPositions[ order ][ index ] = -1;
+	}
+}
@@ -0,0 +1,248 @@
+package bdv.volume;
+
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Estimates the motion of the camera from the last few viewer transforms,
+ * and extrapolates it.
+ * <p>
+ * The motion between consecutive frames is the screen-space transform
+ * {@code D = T[n] * T[n-1]^-1}. It is decomposed into zoom (the cube root of
+ * the determinant), rotation (as a rotation vector), and translation. These
+ * are averaged over the history, and recombined into a per-frame motion
+ * {@code D'}. The transform {@code k} frames ahead is predicted as
+ * {@code D'^k * T[n]}.
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+class CameraMotion
+{
+	private final double[][] history;
+
+	private int head;
+
+	private int size;
+
+	/**
+	 * Averaged per-frame motion (row-packed 3x4).
+	 */
+	private final double[] motion = new double[ 12 ];
+
+	private boolean moving;
+
+	private final double[] delta = new double[ 12 ];
+
+	private final double[] inv = new double[ 12 ];
+
+	private final double[] rot = new double[ 9 ];
+
+	private final double[] rotVec = new double[ 3 ];
+
+	/**
+	 * @param historySize
+	 *            number of transforms to estimate motion from (at least 2).
+	 */
+	public CameraMotion( final int historySize )
+	{
+		if ( historySize < 2 )
+			throw new IllegalArgumentException();
+		history = new double[ historySize ][ 12 ];
+	}
+
+	/**
+	 * Add the viewer transform of a new frame.
+	 */
+	public void add( final AffineTransform3D viewerTransform )
+	{
+		head = ( head + 1 ) % history.length;
+		final double[] m = history[ head ];
+		for ( int r = 0; r < 3; ++r )
+			for ( int c = 0; c < 4; ++c )
+				m[ 4 * r + c ] = viewerTransform.get( r, c );
+		size = Math.min( size + 1, history.length );
+		estimate();
+	}
+
+	/**
+	 * Forget all transforms, e.g., after a jump to a bookmark.
+	 */
+	public void clear()
+	{
+		size = 0;
+		moving = false;
+	}
+
+	/**
+	 * Whether the camera moved during the history.
+	 */
+	public boolean isMoving()
+	{
+		return moving;
+	}
+
+	/**
+	 * Predict the viewer transform {@code frames} frames after the last
+	 * {@link #add(AffineTransform3D) added} one.
+	 *
+	 * @return {@code false} if there is no motion to extrapolate.
+	 */
+	public boolean predict( final int frames, final AffineTransform3D target )
+	{
+		if ( !moving )
+			return false;
+		final double[] p = delta;
+		System.arraycopy( history[ head ], 0, p, 0, 12 );
+		for ( int k = 0; k < frames; ++k )
+		{
+			concatenate( motion, p, inv );
+			System.arraycopy( inv, 0, p, 0, 12 );
+		}
+		target.set( p );
+		return true;
+	}
+
+	private void estimate()
+	{
+		moving = false;
+		if ( size < 2 )
+			return;
+
+		double logScale = 0;
+		double rx = 0, ry = 0, rz = 0;
+		double tx = 0, ty = 0, tz = 0;
+		final int n = size - 1;
+		for ( int i = 0; i < n; ++i )
+		{
+			final double[] current = history[ ( head - i + history.length ) % history.length ];
+			final double[] previous = history[ ( head - i - 1 + history.length ) % history.length ];
+			invert( previous, inv );
+			concatenate( current, inv, delta );
+
+			final double det = det( delta );
+			if ( det <= 0 )
+				return;
+			final double s = Math.cbrt( det );
+			for ( int r = 0; r < 3; ++r )
+				for ( int c = 0; c < 3; ++c )
+					rot[ 3 * r + c ] = delta[ 4 * r + c ] / s;
+			rotationVector( rot, rotVec );
+
+			logScale += Math.log( s );
+			rx += rotVec[ 0 ];
+			ry += rotVec[ 1 ];
+			rz += rotVec[ 2 ];
+			tx += delta[ 3 ];
+			ty += delta[ 7 ];
+			tz += delta[ 11 ];
+		}
+
+		rotVec[ 0 ] = rx / n;
+		rotVec[ 1 ] = ry / n;
+		rotVec[ 2 ] = rz / n;
+		rotationMatrix( rotVec, rot );
+		final double s = Math.exp( logScale / n );
+		for ( int r = 0; r < 3; ++r )
+			for ( int c = 0; c < 3; ++c )
+				motion[ 4 * r + c ] = s * rot[ 3 * r + c ];
+		motion[ 3 ] = tx / n;
+		motion[ 7 ] = ty / n;
+		motion[ 11 ] = tz / n;
+
+		final double eps = 1e-9;
+		moving = Math.abs( logScale ) > eps
+				|| Math.abs( rx ) + Math.abs( ry ) + Math.abs( rz ) > eps
+				|| Math.abs( tx ) + Math.abs( ty ) + Math.abs( tz ) > eps;
+	}
+
+	/**
+	 * {@code result = a * b} for row-packed 3x4 affine matrices.
+	 */
+	private static void concatenate( final double[] a, final double[] b, final double[] result )
+	{
+		for ( int r = 0; r < 3; ++r )
+		{
+			for ( int c = 0; c < 4; ++c )
+			{
+				double v = a[ 4 * r ] * b[ c ] + a[ 4 * r + 1 ] * b[ 4 + c ] + a[ 4 * r + 2 ] * b[ 8 + c ];
+				if ( c == 3 )
+					v += a[ 4 * r + 3 ];
+				result[ 4 * r + c ] = v;
+			}
+		}
+	}
+
+	private static double det( final double[] m )
+	{
+		return m[ 0 ] * ( m[ 5 ] * m[ 10 ] - m[ 6 ] * m[ 9 ] )
+				- m[ 1 ] * ( m[ 4 ] * m[ 10 ] - m[ 6 ] * m[ 8 ] )
+				+ m[ 2 ] * ( m[ 4 ] * m[ 9 ] - m[ 5 ] * m[ 8 ] );
+	}
+
+	private static void invert( final double[] m, final double[] result )
+	{
+		final double d = det( m );
+		result[ 0 ] = ( m[ 5 ] * m[ 10 ] - m[ 6 ] * m[ 9 ] ) / d;
+		result[ 1 ] = ( m[ 2 ] * m[ 9 ] - m[ 1 ] * m[ 10 ] ) / d;
+		result[ 2 ] = ( m[ 1 ] * m[ 6 ] - m[ 2 ] * m[ 5 ] ) / d;
+		result[ 4 ] = ( m[ 6 ] * m[ 8 ] - m[ 4 ] * m[ 10 ] ) / d;
+		result[ 5 ] = ( m[ 0 ] * m[ 10 ] - m[ 2 ] * m[ 8 ] ) / d;
+		result[ 6 ] = ( m[ 2 ] * m[ 4 ] - m[ 0 ] * m[ 6 ] ) / d;
+		result[ 8 ] = ( m[ 4 ] * m[ 9 ] - m[ 5 ] * m[ 8 ] ) / d;
+		result[ 9 ] = ( m[ 1 ] * m[ 8 ] - m[ 0 ] * m[ 9 ] ) / d;
+		result[ 10 ] = ( m[ 0 ] * m[ 5 ] - m[ 1 ] * m[ 4 ] ) / d;
+		for ( int r = 0; r < 3; ++r )
+			result[ 4 * r + 3 ] = -( result[ 4 * r ] * m[ 3 ] + result[ 4 * r + 1 ] * m[ 7 ] + result[ 4 * r + 2 ] * m[ 11 ] );
+	}
+
+	/**
+	 * Convert a 3x3 rotation matrix to a rotation vector (axis times angle).
+	 */
+	private static void rotationVector( final double[] r, final double[] v )
+	{
+		final double cos = Math.max( -1, Math.min( 1, 0.5 * ( r[ 0 ] + r[ 4 ] + r[ 8 ] - 1 ) ) );
+		final double angle = Math.acos( cos );
+		final double x = r[ 7 ] - r[ 5 ];
+		final double y = r[ 2 ] - r[ 6 ];
+		final double z = r[ 3 ] - r[ 1 ];
+		final double sin2 = Math.sqrt( x * x + y * y + z * z );
+		if ( sin2 < 1e-12 )
+		{
+			// no rotation, or rotation by pi (which a camera does not do in one frame)
+			v[ 0 ] = v[ 1 ] = v[ 2 ] = 0;
+			return;
+		}
+		final double f = angle / sin2;
+		v[ 0 ] = x * f;
+		v[ 1 ] = y * f;
+		v[ 2 ] = z * f;
+	}
+
+	/**
+	 * Convert a rotation vector to a 3x3 rotation matrix (Rodrigues' formula).
+	 */
+	private static void rotationMatrix( final double[] v, final double[] r )
+	{
+		final double angle = Math.sqrt( v[ 0 ] * v[ 0 ] + v[ 1 ] * v[ 1 ] + v[ 2 ] * v[ 2 ] );
+		if ( angle < 1e-12 )
+		{
+			r[ 0 ] = r[ 4 ] = r[ 8 ] = 1;
+			r[ 1 ] = r[ 2 ] = r[ 3 ] = r[ 5 ] = r[ 6 ] = r[ 7 ] = 0;
+			return;
+		}
+		final double x = v[ 0 ] / angle;
+		final double y = v[ 1 ] / angle;
+		final double z = v[ 2 ] / angle;
+		final double c = Math.cos( angle );
+		final double s = Math.sin( angle );
+		final double t = 1 - c;
+		r[ 0 ] = t * x * x + c;
+		r[ 1 ] = t * x * y - s * z;
+		r[ 2 ] = t * x * z + s * y;
+		r[ 3 ] = t * x * y + s * z;
+		r[ 4 ] = t * y * y + c;
+		r[ 5 ] = t * y * z - s * x;
+		r[ 6 ] = t * x * z - s * y;
+		r[ 7 ] = t * y * z + s * x;
+		r[ 8 ] = t * z * z + c;
+	}
+}
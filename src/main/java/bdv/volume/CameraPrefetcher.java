@@ -0,0 +1,413 @@
+package bdv.volume;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.function.BooleanSupplier;
+
+import bdv.volume.BlockUploader.BlockLoader;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Prefetches blocks that will be needed in the next frames, based on the
+ * extrapolated camera motion.
+ * <p>
+ * Every frame, {@link #update(AffineTransform3D, int, int, int)} records the
+ * current viewer transform. The {@link CameraMotion camera motion}
+ * (translation, rotation, and zoom velocity) is estimated from the last few
+ * transforms and extrapolated {@link #setHorizon(int) a few frames} ahead. For
+ * each predicted transform, a dedicated {@link BlockRequestPlanner} computes
+ * the needed blocks. Blocks that are neither in the texture cache nor in the
+ * {@link HostBlockCache} are queued (nearest frame first), replacing the
+ * queue of the previous update.
+ * <p>
+ * Queued blocks are loaded by background threads into the
+ * {@link HostBlockCache} only. Prefetching never adds keys to the texture
+ * cache, so it cannot push the working set of the current frame out of the
+ * texture. When the blocks are actually requested, the
+ * {@link HostBlockCache#caching(BlockLoader) caching loader} of the
+ * {@link BlockUploader} finds them in host memory.
+ * <p>
+ * Prefetching has lower priority than loading visible blocks: the
+ * background threads pause while the foreground is busy, typically while the
+ * {@link BlockUploader#isLoading() uploader is loading}. (Thread priorities
+ * are not used, because they are ignored on most platforms.) Prefetching is
+ * limited by a {@link #setBandwidthBudget(long) bandwidth budget} (bytes
+ * loaded per second), and by a {@link #setMemoryBudget(long) memory budget}
+ * (bytes queued per update), which bounds how much of the host cache one
+ * prediction can displace.
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public class CameraPrefetcher implements AutoCloseable
+{
+	private final BlockRequestPlanner planner;
+
+	private final ConcurrentLRUBlockCache< ? > textureCache;
+
+	private final HostBlockCache hostCache;
+
+	private final BlockLoader loader;
+
+	private final BooleanSupplier foregroundBusy;
+
+	private final int stagingBytes;
+
+	private final CameraMotion motion;
+
+	private final Thread[] threads;
+
+	private final AffineTransform3D predicted = new AffineTransform3D();
+
+	/**
+	 * Keys queued in the current update, to avoid duplicates.
+	 */
+	private final LongIntHash queued = new LongIntHash( 1024 );
+
+	// queue, guarded by synchronized (this)
+
+	private long[] queue = new long[ 1024 ];
+
+	private int queueHead;
+
+	private int queueSize;
+
+	// settings
+
+	private int horizon = 5;
+
+	private long bytesPerSecond = Long.MAX_VALUE;
+
+	private long memoryBudget = Long.MAX_VALUE;
+
+	/**
+	 * Bandwidth tokens (in bytes), refilled at {@link #bytesPerSecond}.
+	 */
+	private double tokens;
+
+	private long lastRefill;
+
+	// statistics
+
+	private long numQueued;
+
+	private long numPrefetched;
+
+	private long bytesPrefetched;
+
+	private long numFailed;
+
+	private Exception lastFailure;
+
+	private volatile boolean closed;
+
+	/**
+	 * @param planner
+	 *            a planner for the source, configured like the one used for
+	 *            rendering. It must not be shared, because it is used from
+	 *            {@link #update(AffineTransform3D, int, int, int)}.
+	 * @param textureCache
+	 *            the texture cache. Blocks that are in the texture are not
+	 *            prefetched.
+	 * @param hostCache
+	 *            prefetched blocks are stored here.
+	 * @param loader
+	 *            loads blocks (the same loader that the host cache
+	 *            {@link HostBlockCache#caching(BlockLoader) wraps} for the
+	 *            {@link BlockUploader}).
+	 * @param foregroundBusy
+	 *            prefetching pauses while this is {@code true}, typically
+	 *            {@code uploader::isLoading} for the {@link BlockUploader} of
+	 *            the visible blocks.
+	 * @param stagingBytes
+	 *            size of the buffer each thread loads blocks into. Like the
+	 *            staging buffers of the {@link BlockUploader}, this must hold
+	 *            everything {@code loader} writes, which may be more than a
+	 *            slot of the host cache (e.g., a
+	 *            {@link BlockQuantizer#quantizing(BlockLoader, BlockMinMax)
+	 *            quantizing} loader writes 16 bit data before compacting it to
+	 *            8 bit).
+	 * @param numThreads
+	 *            number of background threads.
+	 */
+	public CameraPrefetcher(
+			final BlockRequestPlanner planner,
+			final ConcurrentLRUBlockCache< ? > textureCache,
+			final HostBlockCache hostCache,
+			final BlockLoader loader,
+			final BooleanSupplier foregroundBusy,
+			final int stagingBytes,
+			final int numThreads )
+	{
+		if ( stagingBytes < 1 )
+			throw new IllegalArgumentException();
+		this.planner = planner;
+		this.textureCache = textureCache;
+		this.hostCache = hostCache;
+		this.loader = loader;
+		this.foregroundBusy = foregroundBusy;
+		this.stagingBytes = stagingBytes;
+		motion = new CameraMotion( 4 );
+		lastRefill = System.nanoTime();
+		threads = new Thread[ numThreads ];
+		for ( int i = 0; i < numThreads; ++i )
+		{
+			threads[ i ] = new Thread( this::prefetchLoop, "CameraPrefetcher-" + i );
+			threads[ i ].setDaemon( true );
+			threads[ i ].start();
+		}
+	}
+
+	/**
+	 * Set how many frames ahead to predict.
+	 */
+	public synchronized void setHorizon( final int numFrames )
+	{
+		if ( numFrames < 1 )
+			throw new IllegalArgumentException();
+		this.horizon = numFrames;
+	}
+
+	/**
+	 * Set the maximum number of bytes to prefetch per second.
+	 */
+	public synchronized void setBandwidthBudget( final long bytesPerSecond )
+	{
+		if ( bytesPerSecond <= 0 )
+			throw new IllegalArgumentException();
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	/**
+	 * Set the maximum number of bytes (measured in
+	 * {@link HostBlockCache#getSlotBytes() slots} of the host cache) to queue
+	 * per update.
+	 */
+	public synchronized void setMemoryBudget( final long bytes )
+	{
+		if ( bytes < 0 )
+			throw new IllegalArgumentException();
+		this.memoryBudget = bytes;
+	}
+
+	/**
+	 * Record the viewer transform of the current frame, predict the blocks
+	 * for the next frames, and replace the prefetch queue.
+	 *
+	 * @param viewerTransform
+	 *            transforms global coordinates to screen coordinates.
+	 * @param timepoint
+	 *            the current timepoint.
+	 * @param width
+	 *            width of the viewport.
+	 * @param height
+	 *            height of the viewport.
+	 */
+	public void update( final AffineTransform3D viewerTransform, final int timepoint, final int width, final int height )
+	{
+		final int horizon;
+		final long maxBlocks;
+		synchronized ( this )
+		{
+			queueHead = 0;
+			queueSize = 0;
+			horizon = this.horizon;
+			maxBlocks = memoryBudget / hostCache.getSlotBytes();
+		}
+
+		motion.add( viewerTransform );
+		if ( !motion.isMoving() )
+			return;
+
+		queued.clear();
+		int n = 0;
+		for ( int k = 1; k <= horizon && n < maxBlocks; ++k )
+		{
+			motion.predict( k, predicted );
+			final int numKeys = planner.plan( predicted, width, height, timepoint );
+			final long[] keys = planner.getKeys();
+			for ( int i = 0; i < numKeys && n < maxBlocks; ++i )
+			{
+				final long key = keys[ i ];
+				if ( queued.containsKey( key ) || textureCache.contains( key ) || hostCache.contains( key ) )
+					continue;
+				queued.put( key, n );
+				if ( queue.length <= n )
+				{
+					final long[] q = new long[ 2 * queue.length ];
+					synchronized ( this )
+					{
+						System.arraycopy( queue, 0, q, 0, n );
+						queue = q;
+					}
+				}
+				queue[ n++ ] = key;
+			}
+		}
+
+		synchronized ( this )
+		{
+			queueSize = n;
+			numQueued += n;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Forget the camera history, e.g., after the view jumped.
+	 */
+	public void reset()
+	{
+		motion.clear();
+		synchronized ( this )
+		{
+			queueHead = 0;
+			queueSize = 0;
+		}
+	}
+
+	/**
+	 * Get the number of blocks currently waiting to be prefetched.
+	 */
+	public synchronized int getNumQueued()
+	{
+		return queueSize - queueHead;
+	}
+
+	/**
+	 * Get the total number of blocks that have been queued.
+	 */
+	public synchronized long getTotalQueued()
+	{
+		return numQueued;
+	}
+
+	/**
+	 * Get the total number of blocks that have been prefetched.
+	 */
+	public synchronized long getNumPrefetched()
+	{
+		return numPrefetched;
+	}
+
+	/**
+	 * Get the total number of bytes that have been prefetched.
+	 */
+	public synchronized long getBytesPrefetched()
+	{
+		return bytesPrefetched;
+	}
+
+	/**
+	 * Get the number of blocks that could not be loaded.
+	 */
+	public synchronized long getNumFailed()
+	{
+		return numFailed;
+	}
+
+	/**
+	 * Get the exception of the last block that could not be loaded, or
+	 * {@code null}.
+	 */
+	public synchronized Exception getLastFailure()
+	{
+		return lastFailure;
+	}
+
+	/**
+	 * Stop the background threads.
+	 */
+	@Override
+	public void close()
+	{
+		closed = true;
+		for ( final Thread t : threads )
+			t.interrupt();
+		try
+		{
+			for ( final Thread t : threads )
+				t.join();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Take the next key from the queue, waiting until one is available, the
+	 * foreground is not busy, and the bandwidth budget allows it.
+	 */
+	private synchronized long take() throws InterruptedException
+	{
+		while ( true )
+		{
+			if ( queueHead < queueSize && !foregroundBusy.getAsBoolean() )
+			{
+				final long now = System.nanoTime();
+				tokens = Math.min( bytesPerSecond, tokens + ( now - lastRefill ) * 1e-9 * bytesPerSecond );
+				lastRefill = now;
+				if ( tokens >= 0 )
+				{
+					// the actual size is charged after loading
+					return queue[ queueHead++ ];
+				}
+				final long waitMillis = ( long ) Math.ceil( -tokens * 1000 / bytesPerSecond );
+				wait( Math.max( 1, waitMillis ) );
+			}
+			else if ( queueHead < queueSize )
+				wait( 10 );
+			else
+				wait();
+		}
+	}
+
+	private synchronized void loaded( final int bytes )
+	{
+		tokens -= bytes;
+		++numPrefetched;
+		bytesPrefetched += bytes;
+	}
+
+	private synchronized void failed( final Exception e )
+	{
+		++numFailed;
+		lastFailure = e;
+	}
+
+	private void prefetchLoop()
+	{
+		final ByteBuffer buffer = ByteBuffer.allocateDirect( stagingBytes ).order( ByteOrder.nativeOrder() );
+		final int[] blockSize = planner.getBlockSize();
+		try
+		{
+			while ( !closed )
+			{
+				final long key = take();
+				if ( textureCache.contains( key ) || hostCache.contains( key ) )
+					continue;
+				try
+				{
+					buffer.clear();
+					loader.load( key, blockSize, buffer );
+					buffer.flip();
+					hostCache.put( key, buffer );
+					loaded( buffer.remaining() );
+				}
+				catch ( final InterruptedException e )
+				{
+					throw e;
+				}
+				catch ( final Exception e )
+				{
+					// a failed prefetch is not fatal, the block is loaded again when it is needed
+					failed( e );
+				}
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			// closed
+		}
+	}
+}
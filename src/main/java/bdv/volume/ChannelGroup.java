@@ -0,0 +1,168 @@
+package bdv.volume;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import bdv.volume.BlockUploader.BlockLoader;
+
+/**
+ * Up to four setups (channels) whose co-located blocks are packed into one
+ * slot of an RGBA block texture ({@code CL_RGBA / CL_UNORM_INT16}).
+ * <p>
+ * The blocks of a group are identified by
+ * {@link BlockKey#pack(int, int, int, int, int, int) packed} keys with the
+ * {@link #getGroupSetup() group setup} in place of the setup. Such a group
+ * key is requested from the block cache, uploaded, evicted, and looked up in
+ * the {@link PageTables page table} of the group setup as a unit. A ray step
+ * then needs a single texture fetch for all channels: channel {@code c} is
+ * component {@code c} of the sampled {@code float4}. Unused components are 0.
+ * A {@link BlockRequestPlanner} created with the group setup produces group
+ * keys directly (channels are assumed to share the geometry of the source it
+ * is created with).
+ * <p>
+ * The {@link #interleaving(BlockLoader) interleaving loader} loads the blocks
+ * of all channels for a group key and interleaves them into the staging
+ * buffer, which must hold {@code 4 * 2} bytes per voxel.
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public class ChannelGroup
+{
+	public static final int MAX_CHANNELS = 4;
+
+	private final int groupSetup;
+
+	private final int[] setups;
+
+	/**
+	 * Per-thread scratch buffers for the channels of a block.
+	 */
+	private final ThreadLocal< ByteBuffer[] > scratch = ThreadLocal.withInitial( () -> new ByteBuffer[ MAX_CHANNELS ] );
+
+	/**
+	 * @param groupSetup
+	 *            setup id used in the keys of the group. This must not be the
+	 *            id of an actual setup.
+	 * @param setups
+	 *            the setups in the group, in channel order.
+	 */
+	public ChannelGroup( final int groupSetup, final int... setups )
+	{
+		if ( setups.length < 1 || setups.length > MAX_CHANNELS )
+			throw new IllegalArgumentException( "a group has 1 to " + MAX_CHANNELS + " channels" );
+		for ( final int setup : setups )
+			if ( setup == groupSetup )
+				throw new IllegalArgumentException( "groupSetup must differ from the setups in the group" );
+		if ( groupSetup < 0 || groupSetup >= 1 << BlockKey.SETUP_BITS )
+			throw new IllegalArgumentException();
+		this.groupSetup = groupSetup;
+		this.setups = setups.clone();
+	}
+
+	public int getGroupSetup()
+	{
+		return groupSetup;
+	}
+
+	public int getNumChannels()
+	{
+		return setups.length;
+	}
+
+	/**
+	 * Get the setup of channel {@code c}.
+	 */
+	public int getSetup( final int c )
+	{
+		return setups[ c ];
+	}
+
+	/**
+	 * Get the channel of {@code setup}, or -1 if it is not in the group.
+	 */
+	public int getChannel( final int setup )
+	{
+		for ( int c = 0; c < setups.length; ++c )
+			if ( setups[ c ] == setup )
+				return c;
+		return -1;
+	}
+
+	/**
+	 * Get the group key for the key of a block of one of the channels.
+	 */
+	public long groupKey( final long channelKey )
+	{
+		return BlockKey.withSetup( channelKey, groupSetup );
+	}
+
+	/**
+	 * Get the key of the block of channel {@code c} for a group key.
+	 */
+	public long channelKey( final long groupKey, final int c )
+	{
+		return BlockKey.withSetup( groupKey, setups[ c ] );
+	}
+
+	/**
+	 * Wrap a {@link BlockLoader} for unsigned 16 bit single-channel blocks,
+	 * such that it loads group keys: the blocks of all channels are loaded
+	 * and interleaved into RGBA voxels. The wrapped loader does not allocate,
+	 * except for growing per-thread scratch buffers.
+	 */
+	public BlockLoader interleaving( final BlockLoader loader )
+	{
+		return ( key, blockSize, target ) -> {
+			final int numVoxels = blockSize[ 0 ] * blockSize[ 1 ] * blockSize[ 2 ];
+			final ByteBuffer[] channels = scratch.get();
+			for ( int c = 0; c < setups.length; ++c )
+			{
+				ByteBuffer buffer = channels[ c ];
+				if ( buffer == null || buffer.capacity() < 2 * numVoxels )
+				{
+					buffer = ByteBuffer.allocateDirect( 2 * numVoxels ).order( ByteOrder.nativeOrder() );
+					channels[ c ] = buffer;
+				}
+				buffer.clear();
+				loader.load( channelKey( key, c ), blockSize, buffer );
+				buffer.flip();
+			}
+			final int start = target.position();
+			interleave( channels, setups.length, numVoxels, target, start );
+			target.position( start + 8 * numVoxels );
+		};
+	}
+
+	/**
+	 * Interleave {@code numVoxels} unsigned 16 bit values from each of
+	 * {@code numChannels} buffers (in native byte order, starting at their
+	 * positions) into RGBA voxels in {@code target} (in native byte order,
+	 * starting at byte {@code offset}). Components without channel are set to
+	 * 0. Channels with less than {@code numVoxels} values are padded with 0.
+	 */
+	public static void interleave( final ByteBuffer[] channels, final int numChannels, final int numVoxels, final ByteBuffer target, final int offset )
+	{
+		final ByteBuffer t = target.duplicate().order( ByteOrder.nativeOrder() );
+		t.position( offset );
+		t.limit( offset + 8 * numVoxels );
+		final ShortBuffer dst = t.slice().order( ByteOrder.nativeOrder() ).asShortBuffer();
+		for ( int c = 0; c < MAX_CHANNELS; ++c )
+		{
+			if ( c < numChannels )
+			{
+				final ShortBuffer src = channels[ c ].duplicate().order( ByteOrder.nativeOrder() ).asShortBuffer();
+				final int n = Math.min( numVoxels, src.remaining() );
+				for ( int i = 0; i < n; ++i )
+					dst.put( 4 * i + c, src.get( i ) );
+				for ( int i = n; i < numVoxels; ++i )
+					dst.put( 4 * i + c, ( short ) 0 );
+			}
+			else
+			{
+				for ( int i = 0; i < numVoxels; ++i )
+					dst.put( 4 * i + c, ( short ) 0 );
+			}
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package bdv.volume;
+
+import java.util.function.IntPredicate;
+
+/**
+ * CLOCK (second chance) approximation of LRU. Each slot has a reference bit
+ * that is set when the slot is accessed. A clock hand sweeps over the slots,
+ * clearing reference bits, and evicts the first slot whose bit is already
+ * clear.
+ * <p>
+ * Newly inserted slots start with a clear reference bit, so blocks that are
+ * touched only once (for example during a scroll through the volume) are
+ * evicted before blocks that were used repeatedly.
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public class ClockEvictionPolicy implements EvictionPolicy
+{
+	private final boolean[] referenced;
+
+	private int hand;
+
+	public ClockEvictionPolicy( final int capacity )
+	{
+		referenced = new boolean[ capacity ];
+		hand = 0;
+	}
+
+	@Override
+	public void inserted( final int slot, final long key )
+	{
+		referenced[ slot ] = false;
+	}
+
+	@Override
+	public void accessed( final int slot )
+	{
+		referenced[ slot ] = true;
+	}
+
+	@Override
+	public void removed( final int slot, final long key )
+	{
+		referenced[ slot ] = false;
+	}
+
+	@Override
+	public int victim( final long key, final IntPredicate evictable )
+	{
+		// after one full sweep all reference bits of evictable slots are
+		// cleared, so the second sweep finds one if there is any
+		for ( int i = 0; i < 2 * referenced.length; ++i )
+		{
+			final int slot = hand;
+			hand = ( hand + 1 ) % referenced.length;
+			if ( !evictable.test( slot ) )
+				continue;
+			if ( referenced[ slot ] )
+				referenced[ slot ] = false;
+			else
+				return slot;
+		}
+		return NO_SLOT;
+	}
+}
@@ -0,0 +1,345 @@
+package bdv.volume;
+
+import bdv.volume.LRUBlockCache.BlockFactory;
+import net.imglib2.util.Intervals;
+
+/**
+ * A thread-safe variant of {@link LongLRUBlockCache}.
+ * <p>
+ * The block grid is split into disjoint ranges of slots, one for each of a
+ * number of stripes. Each stripe is a {@link LongLRUBlockCache} guarded by its
+ * own lock, and every key is assigned to a fixed stripe by its hash. Threads
+ * working on keys in different stripes never contend, and there is no global
+ * lock.
+ * <p>
+ * Because stripes own disjoint slot ranges, a grid cell can never be handed
+ * out for two keys at the same time, and no cell is lost when stripes evict
+ * concurrently. The price is that eviction order is decided per stripe, which
+ * approximates a global order as long as keys are spread evenly over
+ * stripes.
+ * <p>
+ * Frame pinning (see {@link LongLRUBlockCache#beginFrame()}) is supported as
+ * well. Note that a frame can overflow when the stripes of the requested keys
+ * are full, even if other stripes still have unpinned slots.
+ *
+ * @param <B>
+ *            block type
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public class ConcurrentLRUBlockCache< B >
+{
+	private final int[] gridSize;
+
+	private final int[] blockSize;
+
+	private final int capacity;
+
+	private final LongLRUBlockCache< B >[] stripes;
+
+	private final int stripeMask;
+
+	/**
+	 * Create a cache with a default number of stripes, depending on the number
+	 * of available processors.
+	 */
+	public ConcurrentLRUBlockCache( final int[] blockSize, final int[] gridSize, final BlockFactory< B > blockFactory )
+	{
+		this( blockSize, gridSize, 4 * Runtime.getRuntime().availableProcessors(), blockFactory );
+	}
+
+	public ConcurrentLRUBlockCache( final int[] blockSize, final int[] gridSize, final int numStripes, final BlockFactory< B > blockFactory )
+	{
+		this( blockSize, gridSize, numStripes, blockFactory, LRUEvictionPolicy::new );
+	}
+
+	/**
+	 * @param numStripes
+	 *            requested number of stripes. This is rounded up to the next
+	 *            power of two, but limited such that every stripe holds at
+	 *            least one block.
+	 * @param policyFactory
+	 *            creates the {@link EvictionPolicy} of each stripe.
+	 */
+	public ConcurrentLRUBlockCache(
+			final int[] blockSize,
+			final int[] gridSize,
+			final int numStripes,
+			final BlockFactory< B > blockFactory,
+			final EvictionPolicy.Factory policyFactory )
+	{
+		this.blockSize = blockSize.clone();
+		this.gridSize = gridSize.clone();
+		this.capacity = ( int ) Intervals.numElements( gridSize );
+		if ( capacity < 1 )
+			throw new IllegalArgumentException();
+
+		int n = 1;
+		while ( n < numStripes && 2 * n <= capacity )
+			n <<= 1;
+		stripeMask = n - 1;
+
+		@SuppressWarnings( "unchecked" )
+		final LongLRUBlockCache< B >[] s = ( LongLRUBlockCache< B >[] ) new LongLRUBlockCache< ? >[ n ];
+		stripes = s;
+		int offset = 0;
+		for ( int i = 0; i < n; ++i )
+		{
+			final int stripeCapacity = capacity / n + ( i < capacity % n ? 1 : 0 );
+			stripes[ i ] = new LongLRUBlockCache<>( blockSize, gridSize, offset, stripeCapacity, blockFactory, policyFactory );
+			offset += stripeCapacity;
+		}
+	}
+
+	public boolean contains( final long key )
+	{
+		final LongLRUBlockCache< B > stripe = stripe( key );
+		synchronized ( stripe )
+		{
+			return stripe.contains( key );
+		}
+	}
+
+	/**
+	 * Get the block associated with {@code key}, or {@code null} if
+	 * {@code key} is not in the cache.
+	 */
+	public B get( final long key )
+	{
+		final LongLRUBlockCache< B > stripe = stripe( key );
+		synchronized ( stripe )
+		{
+			return stripe.get( key );
+		}
+	}
+
+	/**
+	 * Put a new key into the map. The key must not be currently
+	 * {@link #contains(long) contained} in the map!
+	 *
+	 * @see LongLRUBlockCache#add(long)
+	 */
+	public B add( final long key )
+	{
+		final LongLRUBlockCache< B > stripe = stripe( key );
+		synchronized ( stripe )
+		{
+			return stripe.add( key );
+		}
+	}
+
+	/**
+	 * Get the block associated with {@code key}, adding {@code key} if it is
+	 * not in the cache yet. Unlike a {@link #contains(long)} check followed by
+	 * {@link #add(long)}, this is atomic.
+	 */
+	public B getOrAdd( final long key )
+	{
+		final LongLRUBlockCache< B > stripe = stripe( key );
+		synchronized ( stripe )
+		{
+			final B block = stripe.get( key );
+			return block != null ? block : stripe.add( key );
+		}
+	}
+
+	/**
+	 * Mark the data for {@code key} as uploaded to the texture. This may be
+	 * called from any thread, for example from upload completion callbacks.
+	 *
+	 * @see LongLRUBlockCache#markResident(long, int)
+	 */
+	public boolean markResident( final long key, final int gridIndex )
+	{
+		final LongLRUBlockCache< B > stripe = stripe( key );
+		synchronized ( stripe )
+		{
+			return stripe.markResident( key, gridIndex );
+		}
+	}
+
+	/**
+	 * @see LongLRUBlockCache#getGridIndex(long)
+	 */
+	public int getGridIndex( final long key )
+	{
+		final LongLRUBlockCache< B > stripe = stripe( key );
+		synchronized ( stripe )
+		{
+			return stripe.getGridIndex( key );
+		}
+	}
+
+	public boolean isResident( final long key )
+	{
+		final LongLRUBlockCache< B > stripe = stripe( key );
+		synchronized ( stripe )
+		{
+			return stripe.isResident( key );
+		}
+	}
+
+	/**
+	 * Add a listener to all stripes. The listener is called from the threads
+	 * that add keys, and must be thread-safe.
+	 */
+	public void addResidencyListener( final LongLRUBlockCache.ResidencyListener listener )
+	{
+		for ( final LongLRUBlockCache< B > stripe : stripes )
+			synchronized ( stripe )
+			{
+				stripe.addResidencyListener( listener );
+			}
+	}
+
+	public void removeResidencyListener( final LongLRUBlockCache.ResidencyListener listener )
+	{
+		for ( final LongLRUBlockCache< B > stripe : stripes )
+			synchronized ( stripe )
+			{
+				stripe.removeResidencyListener( listener );
+			}
+	}
+
+	/**
+	 * Start a new frame in all stripes.
+	 *
+	 * @see LongLRUBlockCache#beginFrame()
+	 */
+	public void beginFrame()
+	{
+		for ( final LongLRUBlockCache< B > stripe : stripes )
+			synchronized ( stripe )
+			{
+				stripe.beginFrame();
+			}
+	}
+
+	/**
+	 * Get or add the blocks for the first {@code numKeys} elements of
+	 * {@code keys}, pinning them for the current frame.
+	 *
+	 * @see LongLRUBlockCache#requestAll(long[], int, Object[], boolean[])
+	 */
+	public int requestAll( final long[] keys, final int numKeys, final B[] blocks, final boolean[] added )
+	{
+		int numResolved = 0;
+		for ( int i = 0; i < numKeys; ++i )
+		{
+			final long key = keys[ i ];
+			final LongLRUBlockCache< B > stripe = stripe( key );
+			synchronized ( stripe )
+			{
+				B block = stripe.get( key );
+				final boolean isNew = block == null;
+				if ( isNew )
+					block = stripe.add( key );
+				blocks[ i ] = block;
+				if ( added != null )
+					added[ i ] = isNew && block != null;
+				if ( block != null )
+					++numResolved;
+			}
+		}
+		return numResolved;
+	}
+
+	/**
+	 * End the current frame in all stripes.
+	 *
+	 * @return whether the current frame overflowed in any stripe.
+	 */
+	public boolean endFrame()
+	{
+		boolean overflow = false;
+		for ( final LongLRUBlockCache< B > stripe : stripes )
+			synchronized ( stripe )
+			{
+				overflow |= stripe.endFrame();
+			}
+		return overflow;
+	}
+
+	/**
+	 * Whether blocks requested in the current (or last) frame did not fit into
+	 * the cache.
+	 *
+	 * @return whether the current frame overflowed in any stripe.
+	 */
+	public boolean isOverflow()
+	{
+		for ( final LongLRUBlockCache< B > stripe : stripes )
+			synchronized ( stripe )
+			{
+				if ( stripe.isOverflow() )
+					return true;
+			}
+		return false;
+	}
+
+	/**
+	 * Get the number of keys currently in the cache. This is only a snapshot
+	 * if other threads are modifying the cache.
+	 *
+	 * @return the number of keys currently in the cache.
+	 */
+	public int size()
+	{
+		int size = 0;
+		for ( final LongLRUBlockCache< B > stripe : stripes )
+			synchronized ( stripe )
+			{
+				size += stripe.size();
+			}
+		return size;
+	}
+
+	/**
+	 * Get the number of stripes.
+	 *
+	 * @return the number of stripes.
+	 */
+	public int getNumStripes()
+	{
+		return stripes.length;
+	}
+
+	/**
+	 * Get the size of the grid of blocks.
+	 *
+	 * @return the size of the grid.
+	 */
+	public int[] getGridSize()
+	{
+		return gridSize;
+	}
+
+	/**
+	 * Get the size of a block.
+	 *
+	 * @return the size of a block.
+	 */
+	public int[] getBlockSize()
+	{
+		return blockSize;
+	}
+
+	/**
+	 * Get the number of blocks this cache can hold.
+	 * This is the number of elements in the {@link #getGridSize() grid}.
+	 *
+	 * @return the number of blocks this cache can hold.
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	private LongLRUBlockCache< B > stripe( final long key )
+	{
+		// use the high bits of a multiplicative hash, so that stripes are
+		// independent of the low bits used to index the stripes' hash tables
+		final long h = key * 0x9e3779b97f4a7c15L;
+		return stripes[ ( int ) ( h >>> 40 ) & stripeMask ];
+	}
+}
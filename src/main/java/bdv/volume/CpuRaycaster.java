@@ -0,0 +1,435 @@
+package bdv.volume;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import bdv.viewer.Source;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Multi-threaded CPU volume raycaster over a block texture.
+ * <p>
+ * Uses the same data layout as the GPU path: blocks are looked up through
+ * {@link PageTables} (where {@link PageTable#NOT_RESIDENT} means "use the next
+ * coarser level") and sampled from a {@link HostBlockTexture}. At each sample
+ * the finest resident level is used, with nearest-neighbor interpolation.
+ * <p>
+ * Supports maximum intensity projection and front-to-back alpha compositing.
+ * The image is split into square tiles that are rendered in parallel on a
+ * {@link ForkJoinPool}. Nothing is allocated per ray. This is meant as a
+ * fallback on machines without GPU, and as ground truth for testing the
+ * OpenCL kernels.
+ * <p>
+ * Page tables may be updated concurrently (for example by upload
+ * completions). Such updates may or may not be visible in the current frame.
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public class CpuRaycaster
+{
+	public static enum Mode
+	{
+		/**
+		 * Maximum intensity projection.
+		 */
+		MIP,
+
+		/**
+		 * Front-to-back alpha compositing.
+		 */
+		ALPHA
+	}
+
+	/**
+	 * Compositing stops when the accumulated opacity exceeds this.
+	 */
+	private static final float OPAQUE = 0.99f;
+
+	private final Source< ? > source;
+
+	private final int setup;
+
+	private final HostBlockTexture texture;
+
+	private final PageTables pageTables;
+
+	private final ForkJoinPool pool;
+
+	private final int numLevels;
+
+	private Mode mode = Mode.MIP;
+
+	private TransferFunction transferFunction = new RampTransferFunction( 0, 0xffff );
+
+	private double stepSize = 1.0;
+
+	private int tileSize = 32;
+
+	private double dCam = 0;
+
+	private double clipNear = Double.NEGATIVE_INFINITY;
+
+	private double clipFar = Double.POSITIVE_INFINITY;
+
+	/**
+	 * Per frame: transforms from level 0 voxel coordinates to the voxel
+	 * coordinates of each level, as row-major 3x4 matrices.
+	 */
+	private final double[][] level0ToLevel;
+
+	/**
+	 * Per frame: transform from screen coordinates to level 0 voxel
+	 * coordinates.
+	 */
+	private final double[] screenToLevel0 = new double[ 12 ];
+
+	/**
+	 * Per frame: page table of each level (may be {@code null}).
+	 */
+	private final PageTable[] tables;
+
+	/**
+	 * Per frame: bounding box of level 0.
+	 */
+	private final double[] boxMin = new double[ 3 ];
+
+	private final double[] boxMax = new double[ 3 ];
+
+	private final AffineTransform3D tmp = new AffineTransform3D();
+
+	private final AffineTransform3D tmp2 = new AffineTransform3D();
+
+	public CpuRaycaster(
+			final Source< ? > source,
+			final int setup,
+			final HostBlockTexture texture,
+			final PageTables pageTables,
+			final ForkJoinPool pool )
+	{
+		this.source = source;
+		this.setup = setup;
+		this.texture = texture;
+		this.pageTables = pageTables;
+		this.pool = pool;
+		numLevels = source.getNumMipmapLevels();
+		level0ToLevel = new double[ numLevels ][ 12 ];
+		tables = new PageTable[ numLevels ];
+	}
+
+	public void setMode( final Mode mode )
+	{
+		this.mode = mode;
+	}
+
+	public void setTransferFunction( final TransferFunction transferFunction )
+	{
+		this.transferFunction = transferFunction;
+	}
+
+	/**
+	 * Set the distance between samples along a ray, in level 0 voxels.
+	 */
+	public void setStepSize( final double stepSize )
+	{
+		if ( stepSize <= 0 )
+			throw new IllegalArgumentException();
+		this.stepSize = stepSize;
+	}
+
+	public void setTileSize( final int tileSize )
+	{
+		if ( tileSize < 1 )
+			throw new IllegalArgumentException();
+		this.tileSize = tileSize;
+	}
+
+	/**
+	 * Use perspective projection, with the same conventions as
+	 * {@link BlockRequestPlanner#setPerspective(double, double, double)}.
+	 */
+	public void setPerspective( final double dCam, final double clipNear, final double clipFar )
+	{
+		if ( dCam <= 0 || clipNear <= -dCam || clipFar <= clipNear )
+			throw new IllegalArgumentException();
+		this.dCam = dCam;
+		this.clipNear = clipNear;
+		this.clipFar = clipFar;
+	}
+
+	/**
+	 * Use orthographic projection, with the same conventions as
+	 * {@link BlockRequestPlanner#setOrthographic(double, double)}.
+	 */
+	public void setOrthographic( final double clipNear, final double clipFar )
+	{
+		if ( clipFar <= clipNear )
+			throw new IllegalArgumentException();
+		this.dCam = 0;
+		this.clipNear = clipNear;
+		this.clipFar = clipFar;
+	}
+
+	/**
+	 * Render an image.
+	 *
+	 * @param viewerTransform
+	 *            transforms global coordinates to screen coordinates.
+	 * @param timepoint
+	 *            the timepoint to render.
+	 * @param width
+	 *            width of the image.
+	 * @param height
+	 *            height of the image.
+	 * @param intensity
+	 *            receives the intensity of each pixel (in {@code [0,1]}),
+	 *            flattened with x fastest.
+	 * @param alpha
+	 *            receives the opacity of each pixel (in {@code [0,1]}). May be
+	 *            {@code null}.
+	 */
+	public synchronized void render(
+			final AffineTransform3D viewerTransform,
+			final int timepoint,
+			final int width,
+			final int height,
+			final float[] intensity,
+			final float[] alpha )
+	{
+		source.getSourceTransform( timepoint, 0, tmp );
+		tmp.preConcatenate( viewerTransform );
+		toArray( tmp.inverse(), screenToLevel0 );
+
+		final AffineTransform3D level0 = new AffineTransform3D();
+		source.getSourceTransform( timepoint, 0, level0 );
+		for ( int l = 0; l < numLevels; ++l )
+		{
+			source.getSourceTransform( timepoint, l, tmp2 );
+			tmp.set( level0 );
+			tmp.preConcatenate( tmp2.inverse() );
+			toArray( tmp, level0ToLevel[ l ] );
+			tables[ l ] = pageTables.get( timepoint, setup, l );
+		}
+
+		final RandomAccessibleInterval< ? > img = source.getSource( timepoint, 0 );
+		for ( int d = 0; d < 3; ++d )
+		{
+			boxMin[ d ] = img.min( d ) - 0.5;
+			boxMax[ d ] = img.max( d ) + 0.5;
+		}
+
+		final int numTilesX = ( width + tileSize - 1 ) / tileSize;
+		final int numTilesY = ( height + tileSize - 1 ) / tileSize;
+		pool.invoke( new TileTask( 0, numTilesX * numTilesY, numTilesX, width, height, intensity, alpha ) );
+	}
+
+	private class TileTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int firstTile;
+
+		private final int lastTile;
+
+		private final int numTilesX;
+
+		private final int width;
+
+		private final int height;
+
+		private final float[] intensity;
+
+		private final float[] alpha;
+
+		TileTask( final int firstTile, final int lastTile, final int numTilesX, final int width, final int height, final float[] intensity, final float[] alpha )
+		{
+			this.firstTile = firstTile;
+			this.lastTile = lastTile;
+			this.numTilesX = numTilesX;
+			this.width = width;
+			this.height = height;
+			this.intensity = intensity;
+			this.alpha = alpha;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if ( lastTile - firstTile > 1 )
+			{
+				final int mid = ( firstTile + lastTile ) / 2;
+				invokeAll(
+						new TileTask( firstTile, mid, numTilesX, width, height, intensity, alpha ),
+						new TileTask( mid, lastTile, numTilesX, width, height, intensity, alpha ) );
+				return;
+			}
+
+			final RayState ray = new RayState();
+			final int tx = firstTile % numTilesX;
+			final int ty = firstTile / numTilesX;
+			final int x0 = tx * tileSize;
+			final int y0 = ty * tileSize;
+			final int x1 = Math.min( width, x0 + tileSize );
+			final int y1 = Math.min( height, y0 + tileSize );
+			for ( int y = y0; y < y1; ++y )
+				for ( int x = x0; x < x1; ++x )
+				{
+					castRay( x, y, width, height, ray );
+					final int i = y * width + x;
+					intensity[ i ] = ray.intensity;
+					if ( alpha != null )
+						alpha[ i ] = ray.alpha;
+				}
+		}
+	}
+
+	/**
+	 * Per-thread scratch space for {@link #castRay}.
+	 */
+	private static final class RayState
+	{
+		final double[] origin = new double[ 3 ];
+
+		final double[] direction = new double[ 3 ];
+
+		final int[] gridPos = new int[ 3 ];
+
+		float intensity;
+
+		float alpha;
+	}
+
+	private void castRay( final int px, final int py, final int width, final int height, final RayState ray )
+	{
+		// ray in screen coordinates, parameterized by screen z:
+		// (px, py, 0) + z * (dx, dy, 1)
+		final double dx = dCam > 0 ? ( px - 0.5 * width ) / dCam : 0;
+		final double dy = dCam > 0 ? ( py - 0.5 * height ) / dCam : 0;
+
+		final double[] m = screenToLevel0;
+		final double[] o = ray.origin;
+		final double[] dir = ray.direction;
+		for ( int d = 0; d < 3; ++d )
+		{
+			o[ d ] = m[ 4 * d ] * px + m[ 4 * d + 1 ] * py + m[ 4 * d + 3 ];
+			dir[ d ] = m[ 4 * d ] * dx + m[ 4 * d + 1 ] * dy + m[ 4 * d + 2 ];
+		}
+
+		ray.intensity = 0;
+		ray.alpha = 0;
+
+		// intersect with bounding box of level 0
+		double tNear = clipNear;
+		double tFar = clipFar;
+		for ( int d = 0; d < 3; ++d )
+		{
+			if ( dir[ d ] == 0 )
+			{
+				if ( o[ d ] < boxMin[ d ] || o[ d ] > boxMax[ d ] )
+					return;
+				continue;
+			}
+			final double t0 = ( boxMin[ d ] - o[ d ] ) / dir[ d ];
+			final double t1 = ( boxMax[ d ] - o[ d ] ) / dir[ d ];
+			tNear = Math.max( tNear, Math.min( t0, t1 ) );
+			tFar = Math.min( tFar, Math.max( t0, t1 ) );
+		}
+
+		if ( tNear > tFar )
+			return;
+
+		final double len = Math.sqrt( dir[ 0 ] * dir[ 0 ] + dir[ 1 ] * dir[ 1 ] + dir[ 2 ] * dir[ 2 ] );
+		final double dt = stepSize / len;
+		final TransferFunction tf = transferFunction;
+
+		float max = -1;
+		float accI = 0;
+		float accA = 0;
+		for ( double t = tNear + 0.5 * dt; t <= tFar; t += dt )
+		{
+			final double x = o[ 0 ] + t * dir[ 0 ];
+			final double y = o[ 1 ] + t * dir[ 1 ];
+			final double z = o[ 2 ] + t * dir[ 2 ];
+			final int v = sample( x, y, z, ray.gridPos );
+			if ( v < 0 )
+				continue;
+
+			if ( mode == Mode.MIP )
+				max = Math.max( max, v );
+			else
+			{
+				final float a = tf.alpha( v );
+				if ( a <= 0 )
+					continue;
+				// correct opacity for the step size
+				final float as = stepSize == 1.0 ? a : ( float ) ( 1 - Math.pow( 1 - a, stepSize ) );
+				final float w = ( 1 - accA ) * as;
+				accI += w * a;
+				accA += w;
+				if ( accA >= OPAQUE )
+					break;
+			}
+		}
+
+		if ( mode == Mode.MIP )
+		{
+			if ( max >= 0 )
+			{
+				ray.intensity = tf.alpha( max );
+				ray.alpha = 1;
+			}
+		}
+		else
+		{
+			ray.intensity = accI;
+			ray.alpha = accA;
+		}
+	}
+
+	/**
+	 * Sample the finest resident level at level 0 voxel coordinates
+	 * {@code (x,y,z)}.
+	 *
+	 * @return the voxel value, or -1 if no level is resident.
+	 */
+	private int sample( final double x, final double y, final double z, final int[] gridPos )
+	{
+		final int[] bs = texture.getBlockSize();
+		for ( int l = 0; l < numLevels; ++l )
+		{
+			final PageTable table = tables[ l ];
+			if ( table == null )
+				continue;
+
+			final double[] m = level0ToLevel[ l ];
+			final int lx = ( int ) Math.floor( m[ 0 ] * x + m[ 1 ] * y + m[ 2 ] * z + m[ 3 ] + 0.5 );
+			final int ly = ( int ) Math.floor( m[ 4 ] * x + m[ 5 ] * y + m[ 6 ] * z + m[ 7 ] + 0.5 );
+			final int lz = ( int ) Math.floor( m[ 8 ] * x + m[ 9 ] * y + m[ 10 ] * z + m[ 11 ] + 0.5 );
+			if ( lx < 0 || ly < 0 || lz < 0 )
+				continue;
+			final int cx = lx / bs[ 0 ];
+			final int cy = ly / bs[ 1 ];
+			final int cz = lz / bs[ 2 ];
+			if ( !table.contains( cx, cy, cz ) )
+				continue;
+
+			final int entry = table.getUnsynchronized( cx, cy, cz );
+			if ( entry == PageTable.NOT_RESIDENT )
+				continue;
+
+			PageTable.unpack( entry, gridPos );
+			return texture.get(
+					gridPos[ 0 ] * bs[ 0 ] + lx - cx * bs[ 0 ],
+					gridPos[ 1 ] * bs[ 1 ] + ly - cy * bs[ 1 ],
+					gridPos[ 2 ] * bs[ 2 ] + lz - cz * bs[ 2 ] );
+		}
+		return -1;
+	}
+
+	private static void toArray( final AffineTransform3D t, final double[] m )
+	{
+		for ( int r = 0; r < 3; ++r )
+			for ( int c = 0; c < 4; ++c )
+				m[ 4 * r + c ] = t.get( r, c );
+	}
+}
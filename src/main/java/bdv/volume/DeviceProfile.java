@@ -0,0 +1,313 @@
+package bdv.volume;
+
+import static cl.CLUtils.*;
+import static org.jocl.CL.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import org.jocl.CL;
+import org.jocl.cl_device_id;
+import org.jocl.cl_image_format;
+
+import cl.CLContext;
+
+/**
+ * The limits of an OpenCL device that matter for sizing the block texture:
+ * memory sizes, maximum 3D image size, and the image formats supported for
+ * read-only 3D images.
+ * <p>
+ * A profile is either {@link #query(CLContext) queried} from a device, or
+ * {@link #read(InputStream) read} from a properties file that was
+ * {@link #write(OutputStream) recorded} earlier, so that texture sizing can
+ * be tried without the device. Image formats are written as
+ * {@code CL_RGBA/CL_UNORM_INT16}.
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public class DeviceProfile
+{
+	private final String name;
+
+	private final long globalMemSize;
+
+	private final long maxMemAllocSize;
+
+	private final long[] image3dMaxSize;
+
+	/**
+	 * Supported image formats, {@code channelOrder << 32 | channelDataType}.
+	 */
+	private final long[] imageFormats;
+
+	/**
+	 * @param imageFormats
+	 *            supported formats, alternating channel order and channel data
+	 *            type.
+	 */
+	public DeviceProfile(
+			final String name,
+			final long globalMemSize,
+			final long maxMemAllocSize,
+			final long[] image3dMaxSize,
+			final int... imageFormats )
+	{
+		if ( image3dMaxSize.length != 3 || imageFormats.length % 2 != 0 )
+			throw new IllegalArgumentException();
+		this.name = name;
+		this.globalMemSize = globalMemSize;
+		this.maxMemAllocSize = maxMemAllocSize;
+		this.image3dMaxSize = image3dMaxSize.clone();
+		this.imageFormats = new long[ imageFormats.length / 2 ];
+		for ( int i = 0; i < this.imageFormats.length; ++i )
+			this.imageFormats[ i ] = format( imageFormats[ 2 * i ], imageFormats[ 2 * i + 1 ] );
+	}
+
+	/**
+	 * Query the profile of the device of {@code context}.
+	 */
+	public static DeviceProfile query( final CLContext context )
+	{
+		final cl_device_id device = context.getDevice();
+		final cl_image_format[] formats = getSupportedImageFormats( context.getContext(), CL_MEM_READ_ONLY, CL_MEM_OBJECT_IMAGE3D );
+		final int[] imageFormats = new int[ 2 * formats.length ];
+		for ( int i = 0; i < formats.length; ++i )
+		{
+			imageFormats[ 2 * i ] = formats[ i ].image_channel_order;
+			imageFormats[ 2 * i + 1 ] = formats[ i ].image_channel_data_type;
+		}
+		return new DeviceProfile(
+				getDeviceInfo( device, CL_DEVICE_NAME ) + " running " + getDeviceInfo( device, CL_DEVICE_VERSION ),
+				getDeviceInfoLong( device, CL_DEVICE_GLOBAL_MEM_SIZE ),
+				getDeviceInfoLong( device, CL_DEVICE_MAX_MEM_ALLOC_SIZE ),
+				new long[] {
+						getDeviceInfoLong( device, CL_DEVICE_IMAGE3D_MAX_WIDTH ),
+						getDeviceInfoLong( device, CL_DEVICE_IMAGE3D_MAX_HEIGHT ),
+						getDeviceInfoLong( device, CL_DEVICE_IMAGE3D_MAX_DEPTH ) },
+				imageFormats );
+	}
+
+	/**
+	 * Read a recorded profile.
+	 */
+	public static DeviceProfile read( final InputStream in ) throws IOException
+	{
+		final Properties p = new Properties();
+		p.load( in );
+		try
+		{
+			final String[] formatNames = p.getProperty( "image3dFormats", "" ).trim().split( "\\s*,\\s*" );
+			final int[] imageFormats = new int[ formatNames[ 0 ].isEmpty() ? 0 : 2 * formatNames.length ];
+			for ( int i = 0; i < imageFormats.length / 2; ++i )
+			{
+				final String[] parts = formatNames[ i ].split( "/" );
+				if ( parts.length != 2 )
+					throw new IOException( "malformed image format: " + formatNames[ i ] );
+				imageFormats[ 2 * i ] = constant( parts[ 0 ] );
+				imageFormats[ 2 * i + 1 ] = constant( parts[ 1 ] );
+			}
+			return new DeviceProfile(
+					p.getProperty( "name", "" ),
+					Long.parseLong( required( p, "globalMemSize" ) ),
+					Long.parseLong( required( p, "maxMemAllocSize" ) ),
+					new long[] {
+							Long.parseLong( required( p, "image3dMaxWidth" ) ),
+							Long.parseLong( required( p, "image3dMaxHeight" ) ),
+							Long.parseLong( required( p, "image3dMaxDepth" ) ) },
+					imageFormats );
+		}
+		catch ( final NumberFormatException e )
+		{
+			throw new IOException( e );
+		}
+	}
+
+	/**
+	 * Read a recorded profile from a file.
+	 */
+	public static DeviceProfile read( final Path path ) throws IOException
+	{
+		try ( InputStream in = Files.newInputStream( path ) )
+		{
+			return read( in );
+		}
+	}
+
+	/**
+	 * Get the profile of a device that meets just the minimum requirements of
+	 * OpenCL 1.2 (full profile) for images, with 512 MB of global memory.
+	 */
+	public static DeviceProfile openCL12Minimum()
+	{
+		try ( InputStream in = DeviceProfile.class.getResourceAsStream( "opencl-1.2-minimum.properties" ) )
+		{
+			return read( in );
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	/**
+	 * Record this profile.
+	 */
+	public void write( final OutputStream out ) throws IOException
+	{
+		final Properties p = new Properties();
+		p.setProperty( "name", name );
+		p.setProperty( "globalMemSize", Long.toString( globalMemSize ) );
+		p.setProperty( "maxMemAllocSize", Long.toString( maxMemAllocSize ) );
+		p.setProperty( "image3dMaxWidth", Long.toString( image3dMaxSize[ 0 ] ) );
+		p.setProperty( "image3dMaxHeight", Long.toString( image3dMaxSize[ 1 ] ) );
+		p.setProperty( "image3dMaxDepth", Long.toString( image3dMaxSize[ 2 ] ) );
+		final StringBuilder sb = new StringBuilder();
+		for ( final long format : imageFormats )
+		{
+			if ( sb.length() > 0 )
+				sb.append( "," );
+			sb.append( name( ( int ) ( format >>> 32 ) ) );
+			sb.append( "/" );
+			sb.append( name( ( int ) format ) );
+		}
+		p.setProperty( "image3dFormats", sb.toString() );
+		p.store( out, "OpenCL device profile" );
+	}
+
+	/**
+	 * Record this profile to a file.
+	 */
+	public void write( final Path path ) throws IOException
+	{
+		try ( OutputStream out = Files.newOutputStream( path ) )
+		{
+			write( out );
+		}
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public long getGlobalMemSize()
+	{
+		return globalMemSize;
+	}
+
+	/**
+	 * Get the maximum size of a single memory object (e.g., the block
+	 * texture) in bytes.
+	 */
+	public long getMaxMemAllocSize()
+	{
+		return maxMemAllocSize;
+	}
+
+	/**
+	 * Get the maximum size of a 3D image in dimension {@code d}.
+	 */
+	public long getImage3dMaxSize( final int d )
+	{
+		return image3dMaxSize[ d ];
+	}
+
+	/**
+	 * Whether read-only 3D images of the given format are supported.
+	 */
+	public boolean isImageFormatSupported( final int channelOrder, final int channelDataType )
+	{
+		final long format = format( channelOrder, channelDataType );
+		for ( final long f : imageFormats )
+			if ( f == format )
+				return true;
+		return false;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "%s: global memory %d MB, max alloc %d MB, image3d %d x %d x %d, %d image formats",
+				name,
+				globalMemSize >> 20,
+				maxMemAllocSize >> 20,
+				image3dMaxSize[ 0 ], image3dMaxSize[ 1 ], image3dMaxSize[ 2 ],
+				imageFormats.length );
+	}
+
+	private static long format( final int channelOrder, final int channelDataType )
+	{
+		return ( ( long ) channelOrder << 32 ) | ( channelDataType & 0xffffffffL );
+	}
+
+	private static String required( final Properties p, final String key ) throws IOException
+	{
+		final String value = p.getProperty( key );
+		if ( value == null )
+			throw new IOException( "missing property " + key );
+		return value.trim();
+	}
+
+	/**
+	 * Names of image channel orders and data types. Only compile-time
+	 * constants of {@link CL} are used, so that reading and writing profiles
+	 * does not load the OpenCL library.
+	 */
+	private static final String[] CONSTANT_NAMES = {
+			"CL_R", "CL_A", "CL_RG", "CL_RA", "CL_RGB", "CL_RGBA", "CL_BGRA", "CL_ARGB",
+			"CL_INTENSITY", "CL_LUMINANCE", "CL_Rx", "CL_RGx", "CL_RGBx",
+			"CL_SNORM_INT8", "CL_SNORM_INT16", "CL_UNORM_INT8", "CL_UNORM_INT16",
+			"CL_UNORM_SHORT_565", "CL_UNORM_SHORT_555", "CL_UNORM_INT_101010",
+			"CL_SIGNED_INT8", "CL_SIGNED_INT16", "CL_SIGNED_INT32",
+			"CL_UNSIGNED_INT8", "CL_UNSIGNED_INT16", "CL_UNSIGNED_INT32",
+			"CL_HALF_FLOAT", "CL_FLOAT", "CL_UNORM_INT24" };
+
+	private static final int[] CONSTANT_VALUES = {
+			CL_R, CL_A, CL_RG, CL_RA, CL_RGB, CL_RGBA, CL_BGRA, CL_ARGB,
+			CL_INTENSITY, CL_LUMINANCE, CL_Rx, CL_RGx, CL_RGBx,
+			CL_SNORM_INT8, CL_SNORM_INT16, CL_UNORM_INT8, CL_UNORM_INT16,
+			CL_UNORM_SHORT_565, CL_UNORM_SHORT_555, CL_UNORM_INT_101010,
+			CL_SIGNED_INT8, CL_SIGNED_INT16, CL_SIGNED_INT32,
+			CL_UNSIGNED_INT8, CL_UNSIGNED_INT16, CL_UNSIGNED_INT32,
+			CL_HALF_FLOAT, CL_FLOAT, CL_UNORM_INT24 };
+
+	/**
+	 * Get the name of an image channel order or data type. Unknown values are
+	 * written as hexadecimal numbers.
+	 */
+	private static String name( final int constant )
+	{
+		for ( int i = 0; i < CONSTANT_VALUES.length; ++i )
+			if ( CONSTANT_VALUES[ i ] == constant )
+				return CONSTANT_NAMES[ i ];
+		return String.format( "0x%x", constant );
+	}
+
+	/**
+	 * Get the value of an image channel order or data type {@link #name(int)
+	 * name}.
+	 */
+	private static int constant( final String name ) throws IOException
+	{
+		final String n = name.trim();
+		for ( int i = 0; i < CONSTANT_NAMES.length; ++i )
+			if ( CONSTANT_NAMES[ i ].equals( n ) )
+				return CONSTANT_VALUES[ i ];
+		if ( n.startsWith( "0x" ) )
+		{
+			try
+			{
+				return Integer.parseInt( n.substring( 2 ), 16 );
+			}
+			catch ( final NumberFormatException e )
+			{
+				// fall through
+			}
+		}
+		throw new IOException( "unknown constant " + name );
+	}
+}
@@ -0,0 +1,736 @@
+package bdv.volume;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.IntPredicate;
+import java.util.zip.CRC32;
+
+import bdv.volume.BlockUploader.BlockLoader;
+
+/**
+ * A persistent cache of prepared block data in a memory-mapped file, keyed by
+ * {@link BlockKey#pack(int, int, int, int, int, int) packed} {@code long}
+ * keys.
+ * <p>
+ * This is the tier below {@link HostBlockCache}: it should live on a fast
+ * local disk, and survives restarts. When a cache file is re-opened with the
+ * same dataset fingerprint and slot size, all blocks in it are available
+ * again, without reading and converting the original data. The fingerprint
+ * identifies the dataset and the loader configuration (for example, whether
+ * blocks are {@link BlockQuantizer quantized}), so that a file is never used
+ * for data it was not written for. Use {@link #caching(BlockLoader)} to wrap a
+ * loader, e.g., {@code hostCache.caching( diskCache.caching( loader ) )}.
+ * <p>
+ * Blocks can be stored with the minimum and maximum value recorded in a
+ * {@link BlockMinMax} when they were loaded, which is restored when they are
+ * read again. Quantized blocks cannot be rendered without their value range,
+ * so a quantizing loader must be wrapped with
+ * {@link #caching(BlockLoader, BlockMinMax)}, e.g.,
+ * {@code diskCache.caching( BlockQuantizer.quantizing( loader, minMax ), minMax )}.
+ * <p>
+ * The file consists of a file header followed by equally sized slots. Each
+ * slot holds a header and the data of one block. The slot header contains
+ * the key, the data length, a CRC32 of the data, the value range of the
+ * block, and a CRC32 of the header itself. Slots are written data first, header last, with the header
+ * invalidated before the data is overwritten. After a crash (or if the
+ * process is killed while writing), a slot is therefore either intact, or is
+ * detected as invalid by a checksum and discarded. Header checksums are
+ * verified when the file is opened; data checksums are verified on the first
+ * {@link #get(long, ByteBuffer) read} of every slot.
+ * <p>
+ * The in-memory index maps keys to slots with an open addressing hash table
+ * (no objects per entry). Free slots are re-used first. When the file is full,
+ * the slot to overwrite is chosen by an {@link EvictionPolicy} (by default
+ * {@link LRUEvictionPolicy}).
+ * <p>
+ * This class is thread-safe. Data is copied into and out of slots outside of
+ * the lock; slots that are being copied are pinned and never evicted.
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public class DiskBlockCache implements AutoCloseable
+{
+	private static final long FILE_MAGIC = 0x4244564d424c4b31L; // "BDVMBLK1"
+
+	private static final int FILE_VERSION = 3;
+
+	private static final int FILE_HEADER_BYTES = 4096;
+
+	/**
+	 * File header: magic (long), version (int), slot size (int), capacity
+	 * (int), dataset fingerprint (long), header CRC (int).
+	 */
+	private static final int FILE_HEADER_CRC_OFFSET = 28;
+
+	private static final int SLOT_MAGIC = 0x424c4b53; // "BLKS"
+
+	/**
+	 * Slot header: magic (int), length (int), key (long), data CRC (int),
+	 * minimum (float), maximum (float), header CRC (int).
+	 */
+	private static final int SLOT_HEADER_BYTES = 32;
+
+	private static final int SLOT_HEADER_CRC_OFFSET = 28;
+
+	/**
+	 * Upper bound on the size of a single mapping. The file is mapped in
+	 * chunks of at most this size.
+	 */
+	private static final long MAX_CHUNK_BYTES = 1L << 30;
+
+	private final FileChannel channel;
+
+	private final long datasetFingerprint;
+
+	private final int slotBytes;
+
+	private final int slotStride;
+
+	private final int capacity;
+
+	private final MappedByteBuffer[] chunks;
+
+	/**
+	 * Header and data of each slot.
+	 */
+	private final ByteBuffer[] slotBuffers;
+
+	/**
+	 * Maps key to slot.
+	 */
+	private final LongIntHash slots;
+
+	private final long[] keys;
+
+	/**
+	 * Number of valid bytes in each slot.
+	 */
+	private final int[] lengths;
+
+	/**
+	 * Minimum and maximum value of each slot, or {@code NaN} if they were not
+	 * stored.
+	 */
+	private final float[] mins;
+
+	private final float[] maxs;
+
+	/**
+	 * Whether the data checksum of each slot has been verified.
+	 */
+	private final boolean[] verified;
+
+	/**
+	 * Number of ongoing copies into or out of each slot.
+	 */
+	private final int[] busy;
+
+	/**
+	 * Stack of unoccupied slots.
+	 */
+	private final int[] free;
+
+	private int numFree;
+
+	private final EvictionPolicy policy;
+
+	private final IntPredicate isEvictable;
+
+	private final int numRecovered;
+
+	private long numHits;
+
+	private long numMisses;
+
+	private long numPuts;
+
+	private long numEvictions;
+
+	private long numCorrupt;
+
+	private boolean closed;
+
+	/**
+	 * Open (or create) a cache file.
+	 *
+	 * @param file
+	 *            the cache file. If it exists and was created with the same
+	 *            {@code datasetFingerprint}, {@code slotBytes}, and
+	 *            {@code numSlots}, its blocks are available immediately.
+	 *            Otherwise, it is cleared.
+	 * @param datasetFingerprint
+	 *            identifies the dataset and loader configuration whose blocks
+	 *            are cached, see {@link #fingerprint(String)}.
+	 * @param numSlots
+	 *            maximum number of blocks in the file.
+	 * @param slotBytes
+	 *            maximum size of the data of one block.
+	 */
+	public DiskBlockCache( final Path file, final long datasetFingerprint, final int numSlots, final int slotBytes ) throws IOException
+	{
+		this( file, datasetFingerprint, numSlots, slotBytes, LRUEvictionPolicy::new );
+	}
+
+	/**
+	 * Open (or create) a cache file.
+	 *
+	 * @param file
+	 *            the cache file. If it exists and was created with the same
+	 *            {@code datasetFingerprint}, {@code slotBytes}, and
+	 *            {@code numSlots}, its blocks are available immediately.
+	 *            Otherwise, it is cleared.
+	 * @param datasetFingerprint
+	 *            identifies the dataset and loader configuration whose blocks
+	 *            are cached, see {@link #fingerprint(String)}.
+	 * @param numSlots
+	 *            maximum number of blocks in the file.
+	 * @param slotBytes
+	 *            maximum size of the data of one block.
+	 * @param policyFactory
+	 *            creates the {@link EvictionPolicy}.
+	 */
+	public DiskBlockCache( final Path file, final long datasetFingerprint, final int numSlots, final int slotBytes, final EvictionPolicy.Factory policyFactory ) throws IOException
+	{
+		if ( numSlots < 1 || slotBytes < 1 )
+			throw new IllegalArgumentException();
+
+		this.datasetFingerprint = datasetFingerprint;
+		this.slotBytes = slotBytes;
+		slotStride = ( SLOT_HEADER_BYTES + slotBytes + 63 ) & ~63;
+		if ( slotStride > MAX_CHUNK_BYTES )
+			throw new IllegalArgumentException( "slot too large" );
+		capacity = numSlots;
+
+		channel = FileChannel.open( file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE );
+		final long fileBytes = FILE_HEADER_BYTES + ( long ) capacity * slotStride;
+		final boolean valid = checkFileHeader( fileBytes );
+		if ( !valid )
+		{
+			channel.truncate( 0 );
+			writeFileHeader();
+		}
+
+		final int slotsPerChunk = ( int ) Math.min( capacity, MAX_CHUNK_BYTES / slotStride );
+		final int numChunks = ( capacity + slotsPerChunk - 1 ) / slotsPerChunk;
+		chunks = new MappedByteBuffer[ numChunks ];
+		slotBuffers = new ByteBuffer[ capacity ];
+		for ( int c = 0; c < numChunks; ++c )
+		{
+			final int first = c * slotsPerChunk;
+			final int n = Math.min( slotsPerChunk, capacity - first );
+			chunks[ c ] = channel.map( FileChannel.MapMode.READ_WRITE, FILE_HEADER_BYTES + ( long ) first * slotStride, ( long ) n * slotStride );
+			for ( int i = 0; i < n; ++i )
+			{
+				final ByteBuffer b = chunks[ c ].duplicate();
+				b.position( i * slotStride );
+				b.limit( i * slotStride + SLOT_HEADER_BYTES + slotBytes );
+				slotBuffers[ first + i ] = b.slice().order( ByteOrder.LITTLE_ENDIAN );
+			}
+		}
+
+		slots = new LongIntHash( capacity );
+		keys = new long[ capacity ];
+		lengths = new int[ capacity ];
+		mins = new float[ capacity ];
+		maxs = new float[ capacity ];
+		verified = new boolean[ capacity ];
+		busy = new int[ capacity ];
+		free = new int[ capacity ];
+		numFree = 0;
+		policy = policyFactory.create( capacity );
+		isEvictable = slot -> busy[ slot ] == 0;
+
+		int recovered = 0;
+		for ( int slot = capacity - 1; slot >= 0; --slot )
+		{
+			if ( !valid || !readSlotHeader( slot ) || slots.containsKey( keys[ slot ] ) )
+			{
+				if ( valid )
+					invalidate( slot );
+				lengths[ slot ] = 0;
+				free[ numFree++ ] = slot;
+			}
+			else
+			{
+				final long key = keys[ slot ];
+				slots.put( key, slot );
+				policy.inserted( slot, key );
+				++recovered;
+			}
+		}
+		numRecovered = recovered;
+	}
+
+	public synchronized boolean contains( final long key )
+	{
+		return slots.containsKey( key );
+	}
+
+	/**
+	 * Copy the data for {@code key} into {@code target}, starting at its
+	 * position. The position of {@code target} is advanced by the number of
+	 * copied bytes. The access is counted as hit or miss.
+	 * <p>
+	 * If the data of {@code key} turns out to be corrupt, it is removed from
+	 * the cache, {@code target} is left unchanged, and {@code false} is
+	 * returned.
+	 *
+	 * @return {@code false} if {@code key} is not in the cache.
+	 * @throws java.nio.BufferOverflowException
+	 *             if {@code target} has not enough space remaining.
+	 */
+	public boolean get( final long key, final ByteBuffer target )
+	{
+		return get( key, target, null );
+	}
+
+	/**
+	 * Copy the data for {@code key} into {@code target}, like
+	 * {@link #get(long, ByteBuffer)}, and put the value range it was stored
+	 * with into {@code minMax}.
+	 *
+	 * @param minMax
+	 *            receives the value range of the block, or {@code null}.
+	 * @return {@code false} if {@code key} is not in the cache, or was stored
+	 *         without value range and {@code minMax != null}.
+	 */
+	public boolean get( final long key, final ByteBuffer target, final BlockMinMax minMax )
+	{
+		final int slot;
+		final boolean verify;
+		final float min;
+		final float max;
+		synchronized ( this )
+		{
+			if ( closed )
+				throw new IllegalStateException();
+			slot = slots.get( key );
+			if ( slot == LongIntHash.NO_ENTRY || ( minMax != null && Float.isNaN( mins[ slot ] ) ) )
+			{
+				++numMisses;
+				return false;
+			}
+			min = mins[ slot ];
+			max = maxs[ slot ];
+			++busy[ slot ];
+			verify = !verified[ slot ];
+			policy.accessed( slot );
+		}
+
+		boolean ok = true;
+		try
+		{
+			final ByteBuffer src = slotBuffers[ slot ].duplicate();
+			src.limit( SLOT_HEADER_BYTES + lengths[ slot ] );
+			src.position( SLOT_HEADER_BYTES );
+			if ( verify )
+			{
+				final int start = target.position();
+				target.put( src );
+				final ByteBuffer written = target.duplicate();
+				written.limit( written.position() );
+				written.position( start );
+				if ( crc( written ) != slotBuffers[ slot ].getInt( 16 ) )
+				{
+					target.position( start );
+					ok = false;
+				}
+			}
+			else
+				target.put( src );
+		}
+		finally
+		{
+			synchronized ( this )
+			{
+				--busy[ slot ];
+				if ( ok )
+				{
+					++numHits;
+					verified[ slot ] = true;
+				}
+				else
+				{
+					++numMisses;
+					++numCorrupt;
+					if ( busy[ slot ] == 0 && slots.get( key ) == slot )
+						removeSlot( slot );
+				}
+			}
+		}
+		if ( ok && minMax != null )
+			minMax.put( key, min, max );
+		return ok;
+	}
+
+	/**
+	 * Copy the data between position and limit of {@code data} into the cache
+	 * for {@code key}. The position of {@code data} is not modified. If
+	 * {@code key} is already in the cache, nothing happens.
+	 * <p>
+	 * The data is written to the mapped file, but not {@link #flush()
+	 * flushed}.
+	 *
+	 * @return {@code false} if the data was not stored because all slots are
+	 *         busy.
+	 * @throws IllegalArgumentException
+	 *             if the data is larger than a slot.
+	 */
+	public boolean put( final long key, final ByteBuffer data )
+	{
+		return put( key, data, Float.NaN, Float.NaN );
+	}
+
+	/**
+	 * Copy the data for {@code key} into the cache, like
+	 * {@link #put(long, ByteBuffer)}, together with the minimum and maximum
+	 * value of the block (see {@link #get(long, ByteBuffer, BlockMinMax)}).
+	 */
+	public boolean put( final long key, final ByteBuffer data, final float min, final float max )
+	{
+		final int length = data.remaining();
+		if ( length > slotBytes )
+			throw new IllegalArgumentException( "data is larger than a slot" );
+
+		final int slot;
+		synchronized ( this )
+		{
+			if ( closed )
+				throw new IllegalStateException();
+			if ( slots.containsKey( key ) )
+				return true;
+			if ( numFree > 0 )
+				slot = free[ --numFree ];
+			else
+			{
+				slot = policy.victim( key, isEvictable );
+				if ( slot == EvictionPolicy.NO_SLOT )
+					return false;
+				final long evicted = keys[ slot ];
+				slots.remove( evicted );
+				policy.removed( slot, evicted );
+				++numEvictions;
+			}
+			keys[ slot ] = key;
+			lengths[ slot ] = 0;
+			++busy[ slot ];
+			policy.inserted( slot, key );
+		}
+
+		// invalidate header, then write data, then write header
+		invalidate( slot );
+		final ByteBuffer dst = slotBuffers[ slot ].duplicate();
+		dst.position( SLOT_HEADER_BYTES );
+		dst.put( data.duplicate() );
+		writeSlotHeader( slot, key, length, crc( data.duplicate() ), min, max );
+
+		synchronized ( this )
+		{
+			--busy[ slot ];
+			if ( slots.containsKey( key ) )
+			{
+				// another thread stored the same key in the meantime
+				invalidate( slot );
+				policy.removed( slot, key );
+				free[ numFree++ ] = slot;
+				return true;
+			}
+			lengths[ slot ] = length;
+			mins[ slot ] = min;
+			maxs[ slot ] = max;
+			verified[ slot ] = true;
+			slots.put( key, slot );
+			++numPuts;
+		}
+		return true;
+	}
+
+	/**
+	 * Remove {@code key} from the cache.
+	 *
+	 * @return {@code false} if {@code key} was not in the cache, or is being
+	 *         copied right now.
+	 */
+	public synchronized boolean remove( final long key )
+	{
+		final int slot = slots.get( key );
+		if ( slot == LongIntHash.NO_ENTRY || busy[ slot ] != 0 )
+			return false;
+		removeSlot( slot );
+		return true;
+	}
+
+	private void removeSlot( final int slot )
+	{
+		final long key = keys[ slot ];
+		slots.remove( key );
+		policy.removed( slot, key );
+		invalidate( slot );
+		lengths[ slot ] = 0;
+		free[ numFree++ ] = slot;
+	}
+
+	/**
+	 * Wrap a {@link BlockLoader} such that blocks are copied from this cache
+	 * if possible, and loaded blocks are stored in this cache.
+	 */
+	public BlockLoader caching( final BlockLoader loader )
+	{
+		return caching( loader, null );
+	}
+
+	/**
+	 * Wrap a {@link BlockLoader} such that blocks are copied from this cache
+	 * if possible, and loaded blocks are stored in this cache. The value range
+	 * that {@code loader} records in {@code minMax} is stored with each block,
+	 * and put into {@code minMax} again when the block is copied from this
+	 * cache. Blocks that were stored without value range are loaded again.
+	 *
+	 * @param minMax
+	 *            the table that {@code loader} records value ranges in, e.g.,
+	 *            with {@link BlockQuantizer#quantizing(BlockLoader, BlockMinMax)},
+	 *            or {@code null}.
+	 */
+	public BlockLoader caching( final BlockLoader loader, final BlockMinMax minMax )
+	{
+		return ( key, blockSize, target ) -> {
+			if ( get( key, target, minMax ) )
+				return;
+			final int start = target.position();
+			loader.load( key, blockSize, target );
+			final ByteBuffer written = target.duplicate();
+			written.limit( written.position() );
+			written.position( start );
+			if ( minMax == null )
+				put( key, written );
+			else
+			{
+				// replace the block if it was stored without value range
+				remove( key );
+				put( key, written, minMax.getMin( key ), minMax.getMax( key ) );
+			}
+		};
+	}
+
+	/**
+	 * Write changes to the mapped file to disk.
+	 */
+	public void flush()
+	{
+		for ( final MappedByteBuffer chunk : chunks )
+			chunk.force();
+	}
+
+	/**
+	 * {@link #flush() Flush} and close the file. The cache must not be used
+	 * afterwards.
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if ( closed )
+			return;
+		closed = true;
+		flush();
+		channel.close();
+	}
+
+	/**
+	 * Compute a dataset fingerprint from a description of the dataset and
+	 * loader configuration, e.g., the dataset URL and the conversions applied
+	 * by the loader. The fingerprint is the first 8 bytes of the SHA-256 hash
+	 * of the UTF-8 encoded {@code description}.
+	 */
+	public static long fingerprint( final String description )
+	{
+		final MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance( "SHA-256" );
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			throw new RuntimeException( e );
+		}
+		return ByteBuffer.wrap( digest.digest( description.getBytes( StandardCharsets.UTF_8 ) ) ).getLong();
+	}
+
+	/**
+	 * Get the dataset fingerprint this cache was opened with.
+	 */
+	public long getDatasetFingerprint()
+	{
+		return datasetFingerprint;
+	}
+
+	/**
+	 * Get the number of keys currently in the cache.
+	 */
+	public synchronized int size()
+	{
+		return slots.size();
+	}
+
+	/**
+	 * Get the number of blocks this cache can hold.
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * Get the maximum size (in bytes) of a block.
+	 */
+	public int getSlotBytes()
+	{
+		return slotBytes;
+	}
+
+	/**
+	 * Get the number of blocks that were found in the file when it was opened.
+	 */
+	public int getNumRecovered()
+	{
+		return numRecovered;
+	}
+
+	public synchronized long getNumHits()
+	{
+		return numHits;
+	}
+
+	public synchronized long getNumMisses()
+	{
+		return numMisses;
+	}
+
+	public synchronized long getNumPuts()
+	{
+		return numPuts;
+	}
+
+	public synchronized long getNumEvictions()
+	{
+		return numEvictions;
+	}
+
+	/**
+	 * Get the number of blocks that were discarded because their data
+	 * checksum did not match.
+	 */
+	public synchronized long getNumCorrupt()
+	{
+		return numCorrupt;
+	}
+
+	/**
+	 * Get the fraction of {@link #get(long, ByteBuffer)} calls that found the
+	 * key.
+	 */
+	public synchronized double getHitRate()
+	{
+		final long n = numHits + numMisses;
+		return n == 0 ? 0 : ( double ) numHits / n;
+	}
+
+	private boolean checkFileHeader( final long fileBytes ) throws IOException
+	{
+		if ( channel.size() != fileBytes )
+			return false;
+		final ByteBuffer header = ByteBuffer.allocate( 32 ).order( ByteOrder.LITTLE_ENDIAN );
+		channel.read( header, 0 );
+		header.flip();
+		if ( header.remaining() < 32 )
+			return false;
+		final int headerCrc = header.getInt( FILE_HEADER_CRC_OFFSET );
+		header.limit( FILE_HEADER_CRC_OFFSET );
+		return header.getLong( 0 ) == FILE_MAGIC
+				&& header.getInt( 8 ) == FILE_VERSION
+				&& header.getInt( 12 ) == slotBytes
+				&& header.getInt( 16 ) == capacity
+				&& header.getLong( 20 ) == datasetFingerprint
+				&& crc( header ) == headerCrc;
+	}
+
+	private void writeFileHeader() throws IOException
+	{
+		final ByteBuffer header = ByteBuffer.allocate( FILE_HEADER_BYTES ).order( ByteOrder.LITTLE_ENDIAN );
+		header.putLong( FILE_MAGIC );
+		header.putInt( FILE_VERSION );
+		header.putInt( slotBytes );
+		header.putInt( capacity );
+		header.putLong( datasetFingerprint );
+		header.flip();
+		final int headerCrc = crc( header.duplicate() );
+		header.limit( FILE_HEADER_BYTES );
+		header.putInt( FILE_HEADER_CRC_OFFSET, headerCrc );
+		channel.write( header, 0 );
+		channel.truncate( FILE_HEADER_BYTES );
+		final ByteBuffer zero = ByteBuffer.allocate( 1 );
+		channel.write( zero, FILE_HEADER_BYTES + ( long ) capacity * slotStride - 1 );
+		channel.force( true );
+	}
+
+	/**
+	 * Read and check the header of a slot. If it is valid, the key, length,
+	 * and value range are stored in {@link #keys}, {@link #lengths},
+	 * {@link #mins}, and {@link #maxs}. Every {@code long} is a
+	 * valid key, so validity is marked by the slot magic (and checked by the
+	 * header CRC).
+	 *
+	 * @return whether the header is valid.
+	 */
+	private boolean readSlotHeader( final int slot )
+	{
+		final ByteBuffer b = slotBuffers[ slot ];
+		if ( b.getInt( 0 ) != SLOT_MAGIC )
+			return false;
+		final int length = b.getInt( 4 );
+		final ByteBuffer header = b.duplicate().order( ByteOrder.LITTLE_ENDIAN );
+		header.position( 0 );
+		header.limit( SLOT_HEADER_CRC_OFFSET );
+		if ( crc( header ) != b.getInt( SLOT_HEADER_CRC_OFFSET ) || length < 0 || length > slotBytes )
+			return false;
+		keys[ slot ] = b.getLong( 8 );
+		lengths[ slot ] = length;
+		mins[ slot ] = b.getFloat( 20 );
+		maxs[ slot ] = b.getFloat( 24 );
+		return true;
+	}
+
+	private void writeSlotHeader( final int slot, final long key, final int length, final int dataCrc, final float min, final float max )
+	{
+		final ByteBuffer b = slotBuffers[ slot ];
+		b.putInt( 4, length );
+		b.putLong( 8, key );
+		b.putInt( 16, dataCrc );
+		b.putFloat( 20, min );
+		b.putFloat( 24, max );
+		b.putInt( 0, SLOT_MAGIC );
+		final ByteBuffer header = b.duplicate();
+		header.position( 0 );
+		header.limit( SLOT_HEADER_CRC_OFFSET );
+		b.putInt( SLOT_HEADER_CRC_OFFSET, crc( header ) );
+	}
+
+	private void invalidate( final int slot )
+	{
+		slotBuffers[ slot ].putInt( 0, 0 );
+	}
+
+	private static int crc( final ByteBuffer data )
+	{
+		final CRC32 crc = new CRC32();
+		crc.update( data );
+		return ( int ) crc.getValue();
+	}
+}
@@ -0,0 +1,61 @@
+package bdv.volume;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Decides which slot of a block cache is evicted when a new key is added to a
+ * full cache.
+ * <p>
+ * A policy tracks the slots {@code 0 ... capacity-1} of one cache, and is
+ * notified of every insertion, hit, and removal. Policies are not
+ * thread-safe; they are used under the lock of their cache.
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public interface EvictionPolicy
+{
+	/**
+	 * Creates a policy for a cache with a given number of slots.
+	 */
+	@FunctionalInterface
+	public static interface Factory
+	{
+		EvictionPolicy create( int capacity );
+	}
+
+	/**
+	 * {@code key} was placed into {@code slot}.
+	 */
+	public void inserted( int slot, long key );
+
+	/**
+	 * The key in {@code slot} was accessed (cache hit).
+	 */
+	public void accessed( int slot );
+
+	/**
+	 * {@code key} was removed from {@code slot}.
+	 */
+	public void removed( int slot, long key );
+
+	/**
+	 * Returned by {@link #victim(long, IntPredicate)} if no slot can be
+	 * evicted.
+	 */
+	public static final int NO_SLOT = -1;
+
+	/**
+	 * Choose the slot to evict, in order to make room for {@code key}. This
+	 * is only called when all slots are occupied. The chosen slot is
+	 * subsequently {@link #removed(int, long) removed}.
+	 *
+	 * @param key
+	 *            the key that will be inserted.
+	 * @param evictable
+	 *            which slots may be evicted. Slots that are pinned by the
+	 *            cache must not be chosen.
+	 * @return the slot to evict, or {@link #NO_SLOT} if no slot is
+	 *         {@code evictable}.
+	 */
+	public int victim( long key, IntPredicate evictable );
+}
@@ -0,0 +1,90 @@
+package bdv.volume;
+
+/**
+ * A bounded, ordered set of {@code long} keys, used by
+ * {@link EvictionPolicy eviction policies} to remember recently evicted keys.
+ * Adding a key to a full list drops the oldest key.
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+final class GhostList
+{
+	private final int capacity;
+
+	private final long[] keys;
+
+	private final SlotLists order;
+
+	private final LongIntHash entries;
+
+	/**
+	 * Stack of unused entry indices.
+	 */
+	private final int[] free;
+
+	private int numFree;
+
+	GhostList( final int capacity )
+	{
+		this.capacity = capacity;
+		keys = new long[ capacity ];
+		order = new SlotLists( capacity, 1 );
+		entries = new LongIntHash( capacity );
+		free = new int[ capacity ];
+		for ( int i = 0; i < capacity; ++i )
+			free[ i ] = capacity - 1 - i;
+		numFree = capacity;
+	}
+
+	int size()
+	{
+		return capacity - numFree;
+	}
+
+	boolean contains( final long key )
+	{
+		return entries.containsKey( key );
+	}
+
+	/**
+	 * Add {@code key} as the newest key. If the list is full, the oldest key
+	 * is removed first.
+	 */
+	void add( final long key )
+	{
+		if ( capacity == 0 )
+			return;
+		remove( key );
+		if ( numFree == 0 )
+			removeOldest();
+		final int e = free[ --numFree ];
+		keys[ e ] = key;
+		entries.put( key, e );
+		order.addFirst( 0, e );
+	}
+
+	/**
+	 * Remove {@code key} if it is in the list.
+	 *
+	 * @return whether {@code key} was in the list.
+	 */
+	boolean remove( final long key )
+	{
+		final int e = entries.remove( key );
+		if ( e == LongIntHash.NO_ENTRY )
+			return false;
+		order.remove( e );
+		free[ numFree++ ] = e;
+		return true;
+	}
+
+	/**
+	 * Remove the oldest key (if any).
+	 */
+	void removeOldest()
+	{
+		final int e = order.last( 0 );
+		if ( e != SlotLists.NIL )
+			remove( keys[ e ] );
+	}
+}
@@ -0,0 +1,382 @@
+package bdv.volume;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.function.IntPredicate;
+
+import bdv.volume.BlockUploader.BlockLoader;
+
+/**
+ * A size-bounded cache of prepared block data in direct (off-heap) memory,
+ * keyed by {@link BlockKey#pack(int, int, int, int, int, int) packed}
+ * {@code long} keys.
+ * <p>
+ * This sits between the {@link BlockLoader} (reading and converting data from
+ * disk) and the block texture: when a block that was evicted from the texture
+ * is needed again, it is copied from here instead of being loaded again. Use
+ * {@link #caching(BlockLoader)} to wrap the loader of a {@link BlockUploader}.
+ * The cached data is whatever the wrapped loader produces, e.g., padded or
+ * {@link BlockQuantizer#quantizing(BlockLoader, BlockMinMax) quantized}
+ * blocks.
+ * <p>
+ * The memory budget is split into equally sized slots, each holding the data
+ * of one block. Which slot is re-used when the cache is full is decided by an
+ * {@link EvictionPolicy} (by default {@link LRUEvictionPolicy}), independent
+ * of the policy of the texture cache.
+ * <p>
+ * This class is thread-safe. Data is copied into and out of slots outside of
+ * the lock; slots that are being copied are pinned and never evicted.
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public class HostBlockCache
+{
+	/**
+	 * Upper bound on the size of a single direct buffer. The budget is split
+	 * into chunks of at most this size.
+	 */
+	private static final long MAX_CHUNK_BYTES = 64L * 1024 * 1024;
+
+	private final int slotBytes;
+
+	private final int capacity;
+
+	private final ByteBuffer[] slotBuffers;
+
+	/**
+	 * Maps key to slot.
+	 */
+	private final LongIntHash slots;
+
+	private final long[] keys;
+
+	/**
+	 * Number of valid bytes in each slot.
+	 */
+	private final int[] lengths;
+
+	/**
+	 * Number of ongoing copies into or out of each slot.
+	 */
+	private final int[] busy;
+
+	/**
+	 * Stack of unoccupied slots.
+	 */
+	private final int[] free;
+
+	private int numFree;
+
+	private final EvictionPolicy policy;
+
+	private final IntPredicate isEvictable;
+
+	private long numHits;
+
+	private long numMisses;
+
+	private long numPuts;
+
+	private long numEvictions;
+
+	private long bytesUsed;
+
+	/**
+	 * @param budgetBytes
+	 *            total size of direct memory to allocate (rounded down to a
+	 *            multiple of {@code slotBytes}).
+	 * @param slotBytes
+	 *            maximum size of the data of one block.
+	 */
+	public HostBlockCache( final long budgetBytes, final int slotBytes )
+	{
+		this( budgetBytes, slotBytes, LRUEvictionPolicy::new );
+	}
+
+	/**
+	 * @param budgetBytes
+	 *            total size of direct memory to allocate (rounded down to a
+	 *            multiple of {@code slotBytes}).
+	 * @param slotBytes
+	 *            maximum size of the data of one block.
+	 * @param policyFactory
+	 *            creates the {@link EvictionPolicy}.
+	 */
+	public HostBlockCache( final long budgetBytes, final int slotBytes, final EvictionPolicy.Factory policyFactory )
+	{
+		if ( slotBytes < 1 )
+			throw new IllegalArgumentException();
+		final long n = budgetBytes / slotBytes;
+		if ( n < 1 )
+			throw new IllegalArgumentException( "budget is smaller than one slot" );
+		if ( n > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "too many slots" );
+
+		this.slotBytes = slotBytes;
+		capacity = ( int ) n;
+
+		slotBuffers = new ByteBuffer[ capacity ];
+		final int slotsPerChunk = ( int ) Math.max( 1, Math.min( capacity, MAX_CHUNK_BYTES / slotBytes ) );
+		for ( int first = 0; first < capacity; first += slotsPerChunk )
+		{
+			final int numSlots = Math.min( slotsPerChunk, capacity - first );
+			final ByteBuffer chunk = ByteBuffer.allocateDirect( numSlots * slotBytes );
+			for ( int i = 0; i < numSlots; ++i )
+			{
+				final ByteBuffer b = chunk.duplicate();
+				b.position( i * slotBytes );
+				b.limit( ( i + 1 ) * slotBytes );
+				slotBuffers[ first + i ] = b.slice().order( ByteOrder.nativeOrder() );
+			}
+		}
+
+		slots = new LongIntHash( capacity );
+		keys = new long[ capacity ];
+		lengths = new int[ capacity ];
+		busy = new int[ capacity ];
+		free = new int[ capacity ];
+		for ( int i = 0; i < capacity; ++i )
+			free[ i ] = capacity - 1 - i;
+		numFree = capacity;
+		policy = policyFactory.create( capacity );
+		isEvictable = slot -> busy[ slot ] == 0;
+	}
+
+	public synchronized boolean contains( final long key )
+	{
+		return slots.containsKey( key );
+	}
+
+	/**
+	 * Copy the data for {@code key} into {@code target}, starting at its
+	 * position. The position of {@code target} is advanced by the number of
+	 * copied bytes. The access is counted as hit or miss.
+	 *
+	 * @return {@code false} if {@code key} is not in the cache.
+	 * @throws java.nio.BufferOverflowException
+	 *             if {@code target} has not enough space remaining.
+	 */
+	public boolean get( final long key, final ByteBuffer target )
+	{
+		final int slot;
+		synchronized ( this )
+		{
+			slot = slots.get( key );
+			if ( slot == LongIntHash.NO_ENTRY )
+			{
+				++numMisses;
+				return false;
+			}
+			++numHits;
+			++busy[ slot ];
+			policy.accessed( slot );
+		}
+		try
+		{
+			final ByteBuffer src = slotBuffers[ slot ].duplicate();
+			src.limit( lengths[ slot ] );
+			target.put( src );
+		}
+		finally
+		{
+			synchronized ( this )
+			{
+				--busy[ slot ];
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Copy the data between position and limit of {@code data} into the cache
+	 * for {@code key}. The position of {@code data} is not modified. If
+	 * {@code key} is already in the cache, nothing happens.
+	 *
+	 * @return {@code false} if the data was not stored because all slots are
+	 *         busy.
+	 * @throws IllegalArgumentException
+	 *             if the data is larger than a slot.
+	 */
+	public boolean put( final long key, final ByteBuffer data )
+	{
+		final int length = data.remaining();
+		if ( length > slotBytes )
+			throw new IllegalArgumentException( "data is larger than a slot" );
+
+		final int slot;
+		synchronized ( this )
+		{
+			if ( slots.containsKey( key ) )
+				return true;
+			if ( numFree > 0 )
+				slot = free[ --numFree ];
+			else
+			{
+				slot = policy.victim( key, isEvictable );
+				if ( slot == EvictionPolicy.NO_SLOT )
+					return false;
+				final long evicted = keys[ slot ];
+				slots.remove( evicted );
+				policy.removed( slot, evicted );
+				bytesUsed -= lengths[ slot ];
+				++numEvictions;
+			}
+			keys[ slot ] = key;
+			lengths[ slot ] = 0;
+			++busy[ slot ];
+			policy.inserted( slot, key );
+		}
+
+		final ByteBuffer dst = slotBuffers[ slot ].duplicate();
+		dst.put( data.duplicate() );
+
+		synchronized ( this )
+		{
+			--busy[ slot ];
+			if ( slots.containsKey( key ) )
+			{
+				// another thread stored the same key in the meantime
+				policy.removed( slot, key );
+				free[ numFree++ ] = slot;
+				return true;
+			}
+			lengths[ slot ] = length;
+			bytesUsed += length;
+			slots.put( key, slot );
+			++numPuts;
+		}
+		return true;
+	}
+
+	/**
+	 * Remove {@code key} from the cache.
+	 *
+	 * @return {@code false} if {@code key} was not in the cache, or is being
+	 *         copied right now.
+	 */
+	public synchronized boolean remove( final long key )
+	{
+		final int slot = slots.get( key );
+		if ( slot == LongIntHash.NO_ENTRY || busy[ slot ] != 0 )
+			return false;
+		slots.remove( key );
+		policy.removed( slot, key );
+		bytesUsed -= lengths[ slot ];
+		lengths[ slot ] = 0;
+		free[ numFree++ ] = slot;
+		return true;
+	}
+
+	/**
+	 * Wrap a {@link BlockLoader} such that blocks are copied from this cache
+	 * if possible, and loaded blocks are stored in this cache.
+	 */
+	public BlockLoader caching( final BlockLoader loader )
+	{
+		return ( key, blockSize, target ) -> {
+			if ( get( key, target ) )
+				return;
+			final int start = target.position();
+			loader.load( key, blockSize, target );
+			final ByteBuffer written = target.duplicate();
+			written.limit( written.position() );
+			written.position( start );
+			put( key, written );
+		};
+	}
+
+	/**
+	 * Get the number of keys currently in the cache.
+	 */
+	public synchronized int size()
+	{
+		return slots.size();
+	}
+
+	/**
+	 * Get the number of blocks this cache can hold.
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * Get the size (in bytes) of a slot, i.e., the maximum size of a block.
+	 */
+	public int getSlotBytes()
+	{
+		return slotBytes;
+	}
+
+	/**
+	 * Get the total size (in bytes) of the data currently in the cache.
+	 */
+	public synchronized long getBytesUsed()
+	{
+		return bytesUsed;
+	}
+
+	/**
+	 * Get the total size (in bytes) of direct memory allocated for the cache.
+	 */
+	public long getBytesAllocated()
+	{
+		return ( long ) capacity * slotBytes;
+	}
+
+	/**
+	 * Get the number of {@link #get(long, ByteBuffer)} calls that found the
+	 * key.
+	 */
+	public synchronized long getNumHits()
+	{
+		return numHits;
+	}
+
+	/**
+	 * Get the number of {@link #get(long, ByteBuffer)} calls that did not find
+	 * the key.
+	 */
+	public synchronized long getNumMisses()
+	{
+		return numMisses;
+	}
+
+	/**
+	 * Get the number of keys stored by {@link #put(long, ByteBuffer)}.
+	 */
+	public synchronized long getNumPuts()
+	{
+		return numPuts;
+	}
+
+	/**
+	 * Get the number of keys that were evicted to make room for other keys.
+	 */
+	public synchronized long getNumEvictions()
+	{
+		return numEvictions;
+	}
+
+	/**
+	 * Get the fraction of {@link #get(long, ByteBuffer)} calls that found the
+	 * key.
+	 */
+	public synchronized double getHitRate()
+	{
+		final long n = numHits + numMisses;
+		return n == 0 ? 0 : ( double ) numHits / n;
+	}
+
+	/**
+	 * Reset hit, miss, put, and eviction counts.
+	 */
+	public synchronized void resetStatistics()
+	{
+		numHits = 0;
+		numMisses = 0;
+		numPuts = 0;
+		numEvictions = 0;
+	}
+}
@@ -0,0 +1,93 @@
+package bdv.volume;
+
+import java.nio.ShortBuffer;
+
+import net.imglib2.util.Intervals;
+
+/**
+ * A block texture in host memory, with the same layout as the texture on the
+ * GPU: a grid of {@code gridSize} blocks of {@code blockSize} unsigned 16 bit
+ * voxels, flattened with x fastest. Used by the {@link CpuRaycaster}.
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public class HostBlockTexture
+{
+	private final int[] gridSize;
+
+	private final int[] blockSize;
+
+	private final int[] size;
+
+	private final short[] data;
+
+	public HostBlockTexture( final int[] blockSize, final int[] gridSize )
+	{
+		this.blockSize = blockSize.clone();
+		this.gridSize = gridSize.clone();
+		size = new int[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			size[ d ] = blockSize[ d ] * gridSize[ d ];
+		final long n = Intervals.numElements( size );
+		if ( n > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "texture too large" );
+		data = new short[ ( int ) n ];
+	}
+
+	/**
+	 * Copy a block into the texture.
+	 *
+	 * @param gridPos
+	 *            position of the block in the block grid.
+	 * @param block
+	 *            voxel data of the block, flattened with x fastest.
+	 */
+	public void setBlock( final int[] gridPos, final ShortBuffer block )
+	{
+		final int x0 = gridPos[ 0 ] * blockSize[ 0 ];
+		final int y0 = gridPos[ 1 ] * blockSize[ 1 ];
+		final int z0 = gridPos[ 2 ] * blockSize[ 2 ];
+		int i = block.position();
+		for ( int z = 0; z < blockSize[ 2 ]; ++z )
+			for ( int y = 0; y < blockSize[ 1 ]; ++y )
+			{
+				final int o = x0 + size[ 0 ] * ( y0 + y + size[ 1 ] * ( z0 + z ) );
+				for ( int x = 0; x < blockSize[ 0 ]; ++x )
+					data[ o + x ] = block.get( i++ );
+			}
+	}
+
+	/**
+	 * Get the (unsigned 16 bit) voxel value at the given texture coordinates.
+	 */
+	public int get( final int x, final int y, final int z )
+	{
+		return data[ x + size[ 0 ] * ( y + size[ 1 ] * z ) ] & 0xffff;
+	}
+
+	public int[] getGridSize()
+	{
+		return gridSize;
+	}
+
+	public int[] getBlockSize()
+	{
+		return blockSize;
+	}
+
+	/**
+	 * Get the size of the texture (in voxels).
+	 */
+	public int[] getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * Get the voxel data, flattened with x fastest.
+	 */
+	public short[] getData()
+	{
+		return data;
+	}
+}
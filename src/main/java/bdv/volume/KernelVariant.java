@@ -0,0 +1,70 @@
+package bdv.volume;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import cl.CLProgramVariants;
+
+/**
+ * The parameters for which block kernels ({@code scatter.cl},
+ * {@code quantized.cl}) are {@link CLProgramVariants specialized}.
+ * <p>
+ * {@link #getDefines()} maps them to preprocessor definitions
+ * {@code BLOCK_SIZE_X}, {@code BLOCK_SIZE_Y}, {@code BLOCK_SIZE_Z}: the size
+ * of a block (in voxels). With these as compile-time constants, divisions by
+ * the block size and loops over a block are cheaper. Kernels fall back to
+ * their runtime arguments if the definitions are missing.
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public class KernelVariant
+{
+	private final int[] blockSize;
+
+	public KernelVariant( final int[] blockSize )
+	{
+		if ( blockSize.length != 3 || blockSize[ 0 ] < 1 || blockSize[ 1 ] < 1 || blockSize[ 2 ] < 1 )
+			throw new IllegalArgumentException( "invalid block size" );
+		this.blockSize = blockSize.clone();
+	}
+
+	public int[] getBlockSize()
+	{
+		return blockSize.clone();
+	}
+
+	/**
+	 * Get the preprocessor definitions for this variant, for
+	 * {@link CLProgramVariants#getProgram(Map)}.
+	 */
+	public Map< String, Object > getDefines()
+	{
+		final Map< String, Object > defines = new LinkedHashMap<>();
+		defines.put( "BLOCK_SIZE_X", blockSize[ 0 ] );
+		defines.put( "BLOCK_SIZE_Y", blockSize[ 1 ] );
+		defines.put( "BLOCK_SIZE_Z", blockSize[ 2 ] );
+		return defines;
+	}
+
+	@Override
+	public boolean equals( final Object o )
+	{
+		if ( !( o instanceof KernelVariant ) )
+			return false;
+		final KernelVariant v = ( KernelVariant ) o;
+		return Arrays.equals( blockSize, v.blockSize );
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return Arrays.hashCode( blockSize );
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "block %d x %d x %d", blockSize[ 0 ], blockSize[ 1 ], blockSize[ 2 ] );
+	}
+}
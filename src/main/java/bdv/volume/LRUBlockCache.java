@@ -93,7 +93,8 @@ public class LRUBlockCache< K, B >
 			IntervalIndexer.indexToPosition( size, gridSize, pos );
 			block = blockFactory.createBlock( pos );
 		}
-		return map.put( key, block );
+		map.put( key, block );
+		return block;
 	}
 
 	/**
@@ -154,6 +155,7 @@ public class LRUBlockCache< K, B >
 	 * @param bytesPerVoxel
 	 * @param maxMemoryInMB
 	 * @return size of 3D texture in multiples of {@code blockSize}.
+	 * @see AtlasSizing
 	 */
 	public static int[] findSuitableGridSize( final int[] blockSize, final int bytesPerVoxel, final int maxMemoryInMB )
 	{
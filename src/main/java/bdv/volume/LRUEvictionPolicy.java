@@ -0,0 +1,43 @@
+package bdv.volume;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Evicts the least recently used slot.
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public class LRUEvictionPolicy implements EvictionPolicy
+{
+	private final SlotLists lru;
+
+	public LRUEvictionPolicy( final int capacity )
+	{
+		lru = new SlotLists( capacity, 1 );
+	}
+
+	@Override
+	public void inserted( final int slot, final long key )
+	{
+		lru.addFirst( 0, slot );
+	}
+
+	@Override
+	public void accessed( final int slot )
+	{
+		if ( lru.first( 0 ) != slot )
+			lru.addFirst( 0, slot );
+	}
+
+	@Override
+	public void removed( final int slot, final long key )
+	{
+		lru.remove( slot );
+	}
+
+	@Override
+	public int victim( final long key, final IntPredicate evictable )
+	{
+		return lru.lastMatching( 0, evictable );
+	}
+}
@@ -0,0 +1,202 @@
+package bdv.volume;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from {@code long} keys to non-negative {@code int}
+ * values. Uses linear probing with backward-shift deletion, so there are no
+ * tombstones and lookups never allocate.
+ * <p>
+ * Every {@code long} is a valid key (packed {@link BlockKey}s use all 64 bits),
+ * so empty buckets are marked by a negative value instead.
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+final class LongIntHash
+{
+	/**
+	 * Returned by {@link #get(long)}, {@link #put(long, int)}, and
+	 * {@link #remove(long)} if there is no entry for a key.
+	 */
+	static final int NO_ENTRY = -1;
+
+	private long[] keys;
+
+	private int[] values;
+
+	private int mask;
+
+	private int size;
+
+	/**
+	 * @param expectedSize
+	 *            number of entries that can be put without re-hashing.
+	 */
+	LongIntHash( final int expectedSize )
+	{
+		allocate( tableSizeFor( expectedSize ) );
+	}
+
+	int size()
+	{
+		return size;
+	}
+
+	int get( final long key )
+	{
+		for ( int i = bucket( key );; i = ( i + 1 ) & mask )
+		{
+			final int v = values[ i ];
+			if ( v < 0 )
+				return NO_ENTRY;
+			if ( keys[ i ] == key )
+				return v;
+		}
+	}
+
+	boolean containsKey( final long key )
+	{
+		return get( key ) != NO_ENTRY;
+	}
+
+	/**
+	 * Associate {@code value} with {@code key}.
+	 *
+	 * @return the previous value associated with {@code key}, or
+	 *         {@link #NO_ENTRY}.
+	 */
+	int put( final long key, final int value )
+	{
+		if ( value < 0 )
+			throw new IllegalArgumentException();
+
+		int i = bucket( key );
+		for ( ;; i = ( i + 1 ) & mask )
+		{
+			final int v = values[ i ];
+			if ( v < 0 )
+				break;
+			if ( keys[ i ] == key )
+			{
+				values[ i ] = value;
+				return v;
+			}
+		}
+		keys[ i ] = key;
+		values[ i ] = value;
+		if ( ++size > ( mask >> 1 ) )
+			rehash( 2 * ( mask + 1 ) );
+		return NO_ENTRY;
+	}
+
+	/**
+	 * Remove the entry for {@code key}.
+	 *
+	 * @return the value that was associated with {@code key}, or
+	 *         {@link #NO_ENTRY}.
+	 */
+	int remove( final long key )
+	{
+		int i = bucket( key );
+		for ( ;; i = ( i + 1 ) & mask )
+		{
+			final int v = values[ i ];
+			if ( v < 0 )
+				return NO_ENTRY;
+			if ( keys[ i ] == key )
+				break;
+		}
+		final int removed = values[ i ];
+		removeAt( i );
+		return removed;
+	}
+
+	/**
+	 * Remove all entries with values less than {@code minValue}.
+	 *
+	 * @return the number of removed entries.
+	 */
+	int removeValuesLessThan( final int minValue )
+	{
+		int numRemoved = 0;
+		for ( int i = 0; i < values.length; ++i )
+		{
+			// removal shifts a following entry into bucket i, so check again
+			while ( values[ i ] >= 0 && values[ i ] < minValue )
+			{
+				removeAt( i );
+				++numRemoved;
+			}
+		}
+		return numRemoved;
+	}
+
+	private void removeAt( final int i )
+	{
+		// backward-shift following entries of the cluster into the gap
+		int gap = i;
+		for ( int j = ( gap + 1 ) & mask;; j = ( j + 1 ) & mask )
+		{
+			if ( values[ j ] < 0 )
+				break;
+			final int home = bucket( keys[ j ] );
+			// move entry j into the gap, unless its home lies cyclically in (gap, j]
+			if ( ( ( j - home ) & mask ) >= ( ( j - gap ) & mask ) )
+			{
+				keys[ gap ] = keys[ j ];
+				values[ gap ] = values[ j ];
+				gap = j;
+			}
+		}
+		values[ gap ] = NO_ENTRY;
+		--size;
+	}
+
+	void clear()
+	{
+		Arrays.fill( values, NO_ENTRY );
+		size = 0;
+	}
+
+	private int bucket( final long key )
+	{
+		// finalizer of MurmurHash3
+		long h = key;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return ( int ) h & mask;
+	}
+
+	private void allocate( final int tableSize )
+	{
+		keys = new long[ tableSize ];
+		values = new int[ tableSize ];
+		Arrays.fill( values, NO_ENTRY );
+		mask = tableSize - 1;
+		size = 0;
+	}
+
+	private void rehash( final int tableSize )
+	{
+		final long[] oldKeys = keys;
+		final int[] oldValues = values;
+		allocate( tableSize );
+		for ( int i = 0; i < oldValues.length; ++i )
+			if ( oldValues[ i ] >= 0 )
+				put( oldKeys[ i ], oldValues[ i ] );
+	}
+
+	/**
+	 * Smallest power of two that keeps the load factor at or below 0.5.
+	 */
+	private static int tableSizeFor( final int expectedSize )
+	{
+		int n = 2;
+		while ( n < 2 * expectedSize + 2 )
+			n <<= 1;
+		return n;
+	}
+}
@@ -0,0 +1,474 @@
+package bdv.volume;
+
+import java.util.ArrayList;
+import java.util.function.IntPredicate;
+
+import bdv.volume.LRUBlockCache.BlockFactory;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+
+/**
+ * A cache associating {@link BlockKey#pack(int, int, int, int, int, int)
+ * packed} {@code long} keys to blocks. This is the primitive counterpart of
+ * {@link LRUBlockCache}, with the same {@code contains/get/add} contract.
+ * <p>
+ * Every block occupies a fixed slot of the block grid. Slots are indexed by
+ * {@code int}, and keys are mapped to slots by an open addressing hash table.
+ * Neither {@link #contains(long)} nor {@link #get(long)} allocates.
+ * <p>
+ * Which slot is re-used when the cache is full is decided by an
+ * {@link EvictionPolicy}. By default, this is {@link LRUEvictionPolicy}.
+ * <p>
+ * Rendering a frame should be bracketed by {@link #beginFrame()} and
+ * {@link #endFrame()}. Between these calls, every block that is
+ * {@link #get(long) accessed} or {@link #add(long) added} is pinned and will
+ * not be evicted before the frame ends. If all slots are pinned, {@link #add(long)}
+ * fails and the frame is marked as {@link #isOverflow() overflowing}, so that
+ * the renderer can fall back to coarser resolution levels.
+ * <p>
+ * A newly added key is not <em>resident</em> until its data has been written
+ * to the texture and {@link #markResident(long, int)} is called with the cell
+ * that was written. With asynchronous uploads, a key may be evicted (and even
+ * added again, to another cell) before its upload completes.
+ * {@link #markResident(long, int)} then has no effect, because the written
+ * cell is not the current cell of the key, and
+ * {@link ResidencyListener#dropped(long, int)} tells the uploader that the
+ * key must be submitted again. The stale data must not be written after the
+ * data of the new key of the cell; {@link BlockUploader} ensures this by
+ * dropping writes for cells that a later block has been submitted for.
+ *
+ * @param <B>
+ *            block type
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public class LongLRUBlockCache< B >
+{
+	/**
+	 * Notified when the data for keys becomes available in grid cells, or keys
+	 * are removed from grid cells, for example to maintain a
+	 * {@link PageTables page table}.
+	 */
+	public static interface ResidencyListener
+	{
+		/**
+		 * The data for {@code key} is now stored in the grid cell with
+		 * flattened index {@code gridIndex}.
+		 *
+		 * @see LongLRUBlockCache#markResident(long, int)
+		 */
+		void resident( long key, int gridIndex );
+
+		/**
+		 * {@code key} was removed from the grid cell with flattened index
+		 * {@code gridIndex}.
+		 */
+		void removed( long key, int gridIndex );
+
+		/**
+		 * {@code key} was removed from the grid cell with flattened index
+		 * {@code gridIndex} before it became resident. An upload for the key
+		 * that is still in flight no longer counts.
+		 */
+		default void dropped( final long key, final int gridIndex )
+		{}
+	}
+
+	private final BlockFactory< B > blockFactory;
+
+	private final int[] gridSize;
+
+	private final int[] blockSize;
+
+	private final int capacity;
+
+	/**
+	 * Index of the first grid cell used by this cache. Slot {@code i} is
+	 * stored at grid cell {@code slotOffset + i}.
+	 */
+	private final int slotOffset;
+
+	private final LongIntHash slots;
+
+	/**
+	 * Key stored in each slot.
+	 */
+	private final long[] keys;
+
+	/**
+	 * Block stored in each slot.
+	 */
+	private final Object[] blocks;
+
+	/**
+	 * Whether the data for the key in each slot has been uploaded.
+	 */
+	private final boolean[] resident;
+
+	private final EvictionPolicy policy;
+
+	/**
+	 * Number of slots in use.
+	 */
+	private int size;
+
+	/**
+	 * The frame in which each slot was last accessed.
+	 */
+	private final int[] slotFrame;
+
+	/**
+	 * Current frame generation.
+	 */
+	private int frame;
+
+	/**
+	 * Whether we are between {@link #beginFrame()} and {@link #endFrame()}.
+	 */
+	private boolean inFrame;
+
+	/**
+	 * Number of slots pinned in the current frame.
+	 */
+	private int numPinned;
+
+	/**
+	 * Whether an {@link #add(long)} failed in the current frame.
+	 */
+	private boolean overflow;
+
+	private final IntPredicate isEvictable = slot -> !isPinned( slot );
+
+	private final ArrayList< ResidencyListener > listeners = new ArrayList<>();
+
+	public LongLRUBlockCache( final int[] blockSize, final int[] gridSize, final BlockFactory< B > blockFactory )
+	{
+		this( blockSize, gridSize, blockFactory, LRUEvictionPolicy::new );
+	}
+
+	public LongLRUBlockCache( final int[] blockSize, final int[] gridSize, final BlockFactory< B > blockFactory, final EvictionPolicy.Factory policyFactory )
+	{
+		this( blockSize, gridSize, 0, ( int ) Intervals.numElements( gridSize ), blockFactory, policyFactory );
+	}
+
+	/**
+	 * Create a cache that uses only the range {@code [slotOffset, slotOffset +
+	 * capacity)} of the (flattened) block grid. This is used to partition one
+	 * texture between several caches.
+	 */
+	LongLRUBlockCache(
+			final int[] blockSize,
+			final int[] gridSize,
+			final int slotOffset,
+			final int capacity,
+			final BlockFactory< B > blockFactory,
+			final EvictionPolicy.Factory policyFactory )
+	{
+		if ( slotOffset < 0 || capacity < 0 || slotOffset + capacity > Intervals.numElements( gridSize ) )
+			throw new IllegalArgumentException();
+
+		this.blockFactory = blockFactory;
+		this.blockSize = blockSize.clone();
+		this.gridSize = gridSize.clone();
+		this.slotOffset = slotOffset;
+		this.capacity = capacity;
+		slots = new LongIntHash( capacity );
+		keys = new long[ capacity ];
+		blocks = new Object[ capacity ];
+		resident = new boolean[ capacity ];
+		policy = policyFactory.create( capacity );
+		size = 0;
+		slotFrame = new int[ capacity ];
+		frame = 0;
+		inFrame = false;
+		numPinned = 0;
+		overflow = false;
+	}
+
+	public boolean contains( final long key )
+	{
+		return slots.containsKey( key );
+	}
+
+	/**
+	 * Get the block associated with {@code key}, or {@code null} if
+	 * {@code key} is not in the cache. If it is, the access is reported to the
+	 * {@link EvictionPolicy} (for LRU, {@code key} becomes the most recently
+	 * used key).
+	 */
+	public B get( final long key )
+	{
+		final int slot = slots.get( key );
+		if ( slot == LongIntHash.NO_ENTRY )
+			return null;
+		policy.accessed( slot );
+		pin( slot );
+		return block( slot );
+	}
+
+	/**
+	 * Put a new key into the map. The key must not be currently
+	 * {@link #contains(long) contained} in the map!
+	 * <p>
+	 * Returns the block ( {@code B}) that is now associated with {@code key}.
+	 * The block contains grid coordinates indicating where the data associated
+	 * with {@code key} should be stored in the texture.
+	 * <p>
+	 * If the block grid is full, this will cause the block chosen by the
+	 * {@link EvictionPolicy} (for LRU, the least-recently used block) to be
+	 * removed from the map (and reinserted and re-used for the inserted key).
+	 * Blocks that are pinned in the current frame are never evicted. If all
+	 * blocks are pinned, {@code null} is returned, {@code key} is not added,
+	 * and the current frame is marked as {@link #isOverflow() overflowing}.
+	 */
+	public B add( final long key )
+	{
+		if ( slots.containsKey( key ) )
+			throw new IllegalArgumentException();
+
+		final int slot;
+		if ( size >= capacity )
+		{
+			slot = numPinned < capacity
+					? policy.victim( key, isEvictable )
+					: EvictionPolicy.NO_SLOT;
+			if ( slot == EvictionPolicy.NO_SLOT )
+			{
+				overflow = true;
+				return null;
+			}
+			final long evicted = keys[ slot ];
+			slots.remove( evicted );
+			policy.removed( slot, evicted );
+			if ( resident[ slot ] )
+				for ( int i = 0; i < listeners.size(); ++i )
+					listeners.get( i ).removed( evicted, slotOffset + slot );
+			else
+				for ( int i = 0; i < listeners.size(); ++i )
+					listeners.get( i ).dropped( evicted, slotOffset + slot );
+		}
+		else
+		{
+			slot = size++;
+			final int[] pos = new int[ 3 ];
+			IntervalIndexer.indexToPosition( slotOffset + slot, gridSize, pos );
+			blocks[ slot ] = blockFactory.createBlock( pos );
+		}
+		keys[ slot ] = key;
+		resident[ slot ] = false;
+		slots.put( key, slot );
+		policy.inserted( slot, key );
+		pin( slot );
+		return block( slot );
+	}
+
+	/**
+	 * Mark the data for {@code key} as uploaded to the grid cell with
+	 * flattened index {@code gridIndex}. This is reported to
+	 * {@link ResidencyListener}s.
+	 *
+	 * @return {@code false} if {@code key} is no longer in the cache, or no
+	 *         longer in cell {@code gridIndex} (i.e., the upload is stale).
+	 */
+	public boolean markResident( final long key, final int gridIndex )
+	{
+		final int slot = slots.get( key );
+		if ( slot == LongIntHash.NO_ENTRY || slotOffset + slot != gridIndex )
+			return false;
+		if ( !resident[ slot ] )
+		{
+			resident[ slot ] = true;
+			for ( int i = 0; i < listeners.size(); ++i )
+				listeners.get( i ).resident( key, slotOffset + slot );
+		}
+		return true;
+	}
+
+	/**
+	 * Get the flattened index of the grid cell of {@code key}, or {@code -1}
+	 * if {@code key} is not in the cache.
+	 */
+	public int getGridIndex( final long key )
+	{
+		final int slot = slots.get( key );
+		return slot == LongIntHash.NO_ENTRY ? -1 : slotOffset + slot;
+	}
+
+	/**
+	 * Whether {@code key} is in the cache and its data has been uploaded.
+	 */
+	public boolean isResident( final long key )
+	{
+		final int slot = slots.get( key );
+		return slot != LongIntHash.NO_ENTRY && resident[ slot ];
+	}
+
+	public void addResidencyListener( final ResidencyListener listener )
+	{
+		listeners.add( listener );
+	}
+
+	public void removeResidencyListener( final ResidencyListener listener )
+	{
+		listeners.remove( listener );
+	}
+
+	/**
+	 * Start a new frame. Until {@link #endFrame()}, blocks that are accessed
+	 * are pinned.
+	 */
+	public void beginFrame()
+	{
+		++frame;
+		inFrame = true;
+		numPinned = 0;
+		overflow = false;
+	}
+
+	/**
+	 * Get or add the blocks for the first {@code numKeys} elements of
+	 * {@code keys}, pinning them for the current frame. Keys should be ordered
+	 * by priority: if the capacity of the cache is exhausted, the keys at the
+	 * end of the list remain without block.
+	 *
+	 * @param keys
+	 *            the keys to request.
+	 * @param numKeys
+	 *            how many elements of {@code keys} to request.
+	 * @param blocks
+	 *            the blocks associated with the requested keys are stored
+	 *            here. The element is {@code null} for keys that could not
+	 *            be added.
+	 * @param added
+	 *            stores for each requested key whether it was newly added
+	 *            (and the data must be uploaded to its block). May be
+	 *            {@code null}.
+	 * @return the number of requested keys that have a block.
+	 */
+	public int requestAll( final long[] keys, final int numKeys, final B[] blocks, final boolean[] added )
+	{
+		if ( !inFrame )
+			throw new IllegalStateException( "requestAll() must be called between beginFrame() and endFrame()" );
+
+		int numResolved = 0;
+		for ( int i = 0; i < numKeys; ++i )
+		{
+			final long key = keys[ i ];
+			B block = get( key );
+			final boolean isNew = block == null;
+			if ( isNew )
+				block = add( key );
+			blocks[ i ] = block;
+			if ( added != null )
+				added[ i ] = isNew && block != null;
+			if ( block != null )
+				++numResolved;
+		}
+		return numResolved;
+	}
+
+	/**
+	 * End the current frame. Blocks are no longer pinned.
+	 *
+	 * @return whether the current frame {@link #isOverflow() overflowed}.
+	 */
+	public boolean endFrame()
+	{
+		inFrame = false;
+		numPinned = 0;
+		return overflow;
+	}
+
+	/**
+	 * Whether blocks requested in the current (or last) frame did not fit into
+	 * the cache.
+	 *
+	 * @return whether the current frame overflowed.
+	 */
+	public boolean isOverflow()
+	{
+		return overflow;
+	}
+
+	/**
+	 * Get the number of blocks pinned in the current frame.
+	 *
+	 * @return the number of pinned blocks.
+	 */
+	public int getNumPinned()
+	{
+		return numPinned;
+	}
+
+	/**
+	 * Get the current frame generation, which is incremented by every
+	 * {@link #beginFrame()}.
+	 *
+	 * @return the current frame generation.
+	 */
+	public int getFrame()
+	{
+		return frame;
+	}
+
+	private boolean isPinned( final int slot )
+	{
+		return inFrame && slotFrame[ slot ] == frame;
+	}
+
+	private void pin( final int slot )
+	{
+		if ( inFrame && slotFrame[ slot ] != frame )
+		{
+			slotFrame[ slot ] = frame;
+			++numPinned;
+		}
+	}
+
+	/**
+	 * Get the number of keys currently in the cache.
+	 *
+	 * @return the number of keys currently in the cache.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Get the size of the grid of blocks.
+	 *
+	 * @return the size of the grid.
+	 */
+	public int[] getGridSize()
+	{
+		return gridSize;
+	}
+
+	/**
+	 * Get the size of a block.
+	 *
+	 * @return the size of a block.
+	 */
+	public int[] getBlockSize()
+	{
+		return blockSize;
+	}
+
+	/**
+	 * Get the number of blocks this cache can hold.
+	 * This is (at most) the number of elements in the {@link #getGridSize() grid}.
+	 *
+	 * @return the number of blocks this cache can hold.
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	@SuppressWarnings( "unchecked" )
+	private B block( final int slot )
+	{
+		return ( B ) blocks[ slot ];
+	}
+}
@@ -0,0 +1,329 @@
+package bdv.volume;
+
+import java.util.Arrays;
+
+import net.imglib2.util.Intervals;
+
+/**
+ * A LRU cache associating {@link BlockKey#pack(int, int, int, int, int, int)
+ * packed} {@code long} keys to blocks of varying size in one texture.
+ * <p>
+ * Each resolution level is assigned a block size {@code minBlockSize * 2^o},
+ * where {@code o} is the <em>order</em> of the level. For example, coarse
+ * levels could use {@code 32^3} blocks (order 0) and fine levels
+ * {@code 64^3} blocks (order 1). Texture space is managed by a
+ * {@link BuddyAllocator}. When there is no free region of the required order,
+ * a victim region of that order is chosen, and the blocks inside it are
+ * removed. The victim is the region whose most recently used block is least
+ * recently used, so that no block is evicted that is more recent than
+ * necessary, and blocks in other regions are left alone.
+ * <p>
+ * Unlike {@link LongLRUBlockCache}, blocks are created for every added key
+ * (their texture region varies), but {@link #contains(long)} and
+ * {@link #get(long)} still do not allocate.
+ *
+ * @param <B>
+ *            block type
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public class MultiResolutionBlockCache< B >
+{
+	@FunctionalInterface
+	public static interface BlockFactory< B >
+	{
+		/**
+		 * @param texturePos
+		 *            minimum coordinate of the block in the texture (in
+		 *            voxels).
+		 * @param blockSize
+		 *            size of the block (in voxels).
+		 */
+		B createBlock( int[] texturePos, int[] blockSize );
+	}
+
+	private final BlockFactory< B > blockFactory;
+
+	private final int[] minBlockSize;
+
+	private final int[] rootGridSize;
+
+	/**
+	 * Order of the blocks of each resolution level.
+	 */
+	private final int[] levelOrders;
+
+	private final BuddyAllocator allocator;
+
+	private final int maxEntries;
+
+	private final LongIntHash entries;
+
+	private final long[] keys;
+
+	private final int[] orders;
+
+	private final int[] regions;
+
+	private final Object[] blocks;
+
+	private final SlotLists lru;
+
+	/**
+	 * Stack of unused entry indices.
+	 */
+	private final int[] free;
+
+	private int numFree;
+
+	private final int[] tmp = new int[ 3 ];
+
+	/**
+	 * For each order, the generation in which each region of that order was
+	 * last visited when choosing a victim region (allocated lazily).
+	 */
+	private final int[][] regionVisited;
+
+	private int visitGeneration;
+
+	/**
+	 * @param minBlockSize
+	 *            size of blocks of order 0.
+	 * @param rootGridSize
+	 *            size of the texture, in multiples of the largest block size.
+	 * @param levelOrders
+	 *            the order of the blocks for each resolution level. The
+	 *            block size of level {@code l} is
+	 *            {@code minBlockSize * 2^levelOrders[l]}.
+	 */
+	public MultiResolutionBlockCache(
+			final int[] minBlockSize,
+			final int[] rootGridSize,
+			final int[] levelOrders,
+			final BlockFactory< B > blockFactory )
+	{
+		this.blockFactory = blockFactory;
+		this.minBlockSize = minBlockSize.clone();
+		this.rootGridSize = rootGridSize.clone();
+		this.levelOrders = levelOrders.clone();
+
+		int maxOrder = 0;
+		for ( final int o : levelOrders )
+			maxOrder = Math.max( maxOrder, o );
+		allocator = new BuddyAllocator( rootGridSize, maxOrder );
+
+		maxEntries = ( int ) Math.min( Integer.MAX_VALUE - 8, allocator.getTotalUnits() );
+		entries = new LongIntHash( maxEntries );
+		keys = new long[ maxEntries ];
+		orders = new int[ maxEntries ];
+		regions = new int[ maxEntries ];
+		blocks = new Object[ maxEntries ];
+		lru = new SlotLists( maxEntries, 1 );
+		free = new int[ maxEntries ];
+		for ( int i = 0; i < maxEntries; ++i )
+			free[ i ] = maxEntries - 1 - i;
+		numFree = maxEntries;
+		regionVisited = new int[ maxOrder + 1 ][];
+		visitGeneration = 0;
+	}
+
+	public boolean contains( final long key )
+	{
+		return entries.containsKey( key );
+	}
+
+	/**
+	 * Get the block associated with {@code key}, or {@code null} if
+	 * {@code key} is not in the cache. If it is, {@code key} becomes the most
+	 * recently used key.
+	 */
+	public B get( final long key )
+	{
+		final int e = entries.get( key );
+		if ( e == LongIntHash.NO_ENTRY )
+			return null;
+		if ( lru.first( 0 ) != e )
+			lru.addFirst( 0, e );
+		return block( e );
+	}
+
+	/**
+	 * Put a new key into the map. The key must not be currently
+	 * {@link #contains(long) contained} in the map!
+	 * <p>
+	 * Returns the block ( {@code B}) that is now associated with {@code key}.
+	 * The block contains texture coordinates and size of the region where the
+	 * data associated with {@code key} should be stored.
+	 * <p>
+	 * If there is no free region of the size required for the level of
+	 * {@code key}, the blocks in the region of that size with the least
+	 * recently used most recent block are removed.
+	 */
+	public B add( final long key )
+	{
+		if ( entries.containsKey( key ) )
+			throw new IllegalArgumentException();
+
+		final int order = levelOrders[ BlockKey.level( key ) ];
+		int region = allocator.allocate( order );
+		while ( region == BuddyAllocator.NONE )
+		{
+			if ( lru.last( 0 ) == SlotLists.NIL )
+				throw new IllegalStateException( "block of order " + order + " does not fit into texture" );
+			evictRegion( order );
+			region = allocator.allocate( order );
+		}
+
+		final int e = free[ --numFree ];
+		keys[ e ] = key;
+		orders[ e ] = order;
+		regions[ e ] = region;
+		allocator.getPosition( order, region, tmp );
+		final int[] pos = new int[ 3 ];
+		final int[] size = new int[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			pos[ d ] = tmp[ d ] * minBlockSize[ d ];
+			size[ d ] = minBlockSize[ d ] << order;
+		}
+		blocks[ e ] = blockFactory.createBlock( pos, size );
+		entries.put( key, e );
+		lru.addFirst( 0, e );
+		return block( e );
+	}
+
+	/**
+	 * Get the number of keys currently in the cache.
+	 *
+	 * @return the number of keys currently in the cache.
+	 */
+	public int size()
+	{
+		return maxEntries - numFree;
+	}
+
+	/**
+	 * Get the block size (in voxels) used for the given resolution level.
+	 */
+	public int[] getBlockSize( final int level )
+	{
+		final int[] size = new int[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			size[ d ] = minBlockSize[ d ] << levelOrders[ level ];
+		return size;
+	}
+
+	/**
+	 * Get the size of the texture (in voxels).
+	 */
+	public int[] getTextureSize()
+	{
+		final int[] size = new int[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			size[ d ] = ( rootGridSize[ d ] * minBlockSize[ d ] ) << allocator.getMaxOrder();
+		return size;
+	}
+
+	/**
+	 * Get the fraction of the texture that is occupied by blocks.
+	 */
+	public double getOccupancy()
+	{
+		return ( double ) allocator.getAllocatedUnits() / allocator.getTotalUnits();
+	}
+
+	@Override
+	public String toString()
+	{
+		final int[] size = getTextureSize();
+		return String.format( "textureSize = %d x %d x %d  (%d elements), occupancy = %.1f%%",
+				size[ 0 ], size[ 1 ], size[ 2 ], Intervals.numElements( size ), 100 * getOccupancy() );
+	}
+
+	/**
+	 * Remove the blocks in the region of the given order whose most recently
+	 * used block is least recently used. Blocks larger than the region count
+	 * for (and are removed with) the first region they cover.
+	 */
+	private void evictRegion( final int order )
+	{
+		final int eldest = lru.last( 0 );
+		if ( orders[ eldest ] >= order )
+		{
+			// removing the least recently used block frees a large enough region
+			remove( eldest );
+			return;
+		}
+
+		// Visit regions in order of their most recently used block. The region
+		// that is visited last is the victim.
+		if ( regionVisited[ order ] == null )
+			regionVisited[ order ] = new int[ ( int ) Intervals.numElements( allocator.getGridSize( order ) ) ];
+		final int[] visited = regionVisited[ order ];
+		if ( ++visitGeneration == 0 )
+		{
+			Arrays.fill( visited, 0 );
+			visitGeneration = 1;
+		}
+		int victim = -1;
+		for ( int e = lru.first( 0 ); e != SlotLists.NIL; e = lru.next( e ) )
+		{
+			final int r = enclosingRegion( e, order );
+			if ( visited[ r ] != visitGeneration )
+			{
+				visited[ r ] = visitGeneration;
+				victim = r;
+			}
+		}
+
+		for ( int e = lru.first( 0 ); e != SlotLists.NIL; )
+		{
+			final int next = lru.next( e );
+			if ( enclosingRegion( e, order ) == victim )
+				remove( e );
+			e = next;
+		}
+	}
+
+	/**
+	 * Get the index of the region of the given order that contains (the
+	 * minimum corner of) the block of entry {@code e}.
+	 */
+	private int enclosingRegion( final int e, final int order )
+	{
+		allocator.getPosition( orders[ e ], regions[ e ], tmp );
+		final int[] size = allocator.getGridSize( order );
+		return ( tmp[ 0 ] >> order ) + size[ 0 ] * ( ( tmp[ 1 ] >> order ) + size[ 1 ] * ( tmp[ 2 ] >> order ) );
+	}
+
+	private void remove( final int e )
+	{
+		entries.remove( keys[ e ] );
+		lru.remove( e );
+		allocator.free( orders[ e ], regions[ e ] );
+		blocks[ e ] = null;
+		free[ numFree++ ] = e;
+	}
+
+	@SuppressWarnings( "unchecked" )
+	private B block( final int e )
+	{
+		return ( B ) blocks[ e ];
+	}
+
+	/**
+	 * Find suitable size of a 3D texture (in multiples of the largest block
+	 * size {@code minBlockSize * 2^maxOrder}) such that it requires less than
+	 * {@code maxMemoryInMB}, the texture is roughly square, and fits as many
+	 * blocks as possible.
+	 *
+	 * @return size of 3D texture in multiples of the largest block size.
+	 */
+	public static int[] findSuitableRootGridSize( final int[] minBlockSize, final int maxOrder, final int bytesPerVoxel, final int maxMemoryInMB )
+	{
+		final int[] maxBlockSize = new int[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			maxBlockSize[ d ] = minBlockSize[ d ] << maxOrder;
+		return LRUBlockCache.findSuitableGridSize( maxBlockSize, bytesPerVoxel, maxMemoryInMB );
+	}
+}
@@ -0,0 +1,269 @@
+package bdv.volume;
+
+import static org.jocl.CL.CL_MEM_READ_ONLY;
+import static org.jocl.CL.CL_R;
+import static org.jocl.CL.CL_SIGNED_INT32;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import org.jocl.Pointer;
+
+import cl.CLContext;
+import cl.CLImage;
+import net.imglib2.util.Intervals;
+
+/**
+ * An indirection grid for one (timepoint, setup, level) that maps cell grid
+ * coordinates of the source data to cells of the block texture.
+ * <p>
+ * Each entry is either {@link #NOT_RESIDENT} or the block texture grid
+ * coordinates of the resident block, packed as
+ * {@code x | y << 10 | z << 20}. A kernel that finds {@link #NOT_RESIDENT}
+ * should look up the next coarser level.
+ * <p>
+ * Changes are tracked in bricks of {@value #BRICK_SIZE}<sup>3</sup> entries.
+ * {@link #upload(CLContext)} writes only the bricks that changed since the
+ * last upload to the {@link CLImage} hosting the table.
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public class PageTable
+{
+	public static final int NOT_RESIDENT = -1;
+
+	static final int BRICK_SIZE = 8;
+
+	private static final int BITS_PER_COORDINATE = 10;
+
+	/**
+	 * Largest block texture grid size (in each dimension) that can be
+	 * represented by a page table entry.
+	 */
+	public static final int MAX_GRID_SIZE = 1 << BITS_PER_COORDINATE;
+
+	private final int timepoint;
+
+	private final int setup;
+
+	private final int level;
+
+	private final int[] size;
+
+	private final int[] entries;
+
+	private final int[] brickGridSize;
+
+	private final boolean[] brickDirty;
+
+	private final int[] dirtyBricks;
+
+	private int numDirtyBricks;
+
+	private CLImage image;
+
+	private final IntBuffer staging;
+
+	private final long[] origin = new long[ 3 ];
+
+	private final long[] region = new long[ 3 ];
+
+	/**
+	 * @param size
+	 *            size of the cell grid of the source data at this level.
+	 */
+	public PageTable( final int timepoint, final int setup, final int level, final int[] size )
+	{
+		this.timepoint = timepoint;
+		this.setup = setup;
+		this.level = level;
+		this.size = size.clone();
+		entries = new int[ ( int ) Intervals.numElements( size ) ];
+		Arrays.fill( entries, NOT_RESIDENT );
+
+		brickGridSize = new int[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			brickGridSize[ d ] = ( size[ d ] + BRICK_SIZE - 1 ) / BRICK_SIZE;
+		final int numBricks = ( int ) Intervals.numElements( brickGridSize );
+		brickDirty = new boolean[ numBricks ];
+		dirtyBricks = new int[ numBricks ];
+		numDirtyBricks = 0;
+
+		staging = ByteBuffer
+				.allocateDirect( 4 * BRICK_SIZE * BRICK_SIZE * BRICK_SIZE )
+				.order( ByteOrder.nativeOrder() )
+				.asIntBuffer();
+	}
+
+	/**
+	 * Set the entry for a source cell.
+	 *
+	 * @param value
+	 *            a {@link #pack(int[]) packed} block texture grid position, or
+	 *            {@link #NOT_RESIDENT}.
+	 */
+	public synchronized void set( final int x, final int y, final int z, final int value )
+	{
+		final int i = x + size[ 0 ] * ( y + size[ 1 ] * z );
+		if ( entries[ i ] == value )
+			return;
+		entries[ i ] = value;
+		final int brick = x / BRICK_SIZE + brickGridSize[ 0 ] * ( y / BRICK_SIZE + brickGridSize[ 1 ] * ( z / BRICK_SIZE ) );
+		if ( !brickDirty[ brick ] )
+		{
+			brickDirty[ brick ] = true;
+			dirtyBricks[ numDirtyBricks++ ] = brick;
+		}
+	}
+
+	/**
+	 * Get the entry for a source cell.
+	 *
+	 * @return a {@link #pack(int[]) packed} block texture grid position, or
+	 *         {@link #NOT_RESIDENT}.
+	 */
+	public synchronized int get( final int x, final int y, final int z )
+	{
+		return entries[ x + size[ 0 ] * ( y + size[ 1 ] * z ) ];
+	}
+
+	/**
+	 * Get the entry for a source cell without synchronization. A concurrent
+	 * update may or may not be visible.
+	 */
+	int getUnsynchronized( final int x, final int y, final int z )
+	{
+		return entries[ x + size[ 0 ] * ( y + size[ 1 ] * z ) ];
+	}
+
+	/**
+	 * Whether the given source cell lies inside this table.
+	 */
+	public boolean contains( final int x, final int y, final int z )
+	{
+		return x >= 0 && y >= 0 && z >= 0 && x < size[ 0 ] && y < size[ 1 ] && z < size[ 2 ];
+	}
+
+	/**
+	 * Upload changed entries to the {@link #getImage() image}. The image is
+	 * created (and completely uploaded) on the first call.
+	 */
+	public synchronized void upload( final CLContext context )
+	{
+		if ( image == null )
+		{
+			image = new CLImage( context, CL_MEM_READ_ONLY, CL_R, CL_SIGNED_INT32, size[ 0 ], size[ 1 ], size[ 2 ] );
+			image.enqueueWrite( Pointer.to( entries ) );
+			clearDirty();
+			return;
+		}
+
+		final int[] brickPos = new int[ 3 ];
+		for ( int b = 0; b < numDirtyBricks; ++b )
+		{
+			final int brick = dirtyBricks[ b ];
+			brickDirty[ brick ] = false;
+			brickPos[ 0 ] = brick % brickGridSize[ 0 ];
+			brickPos[ 1 ] = ( brick / brickGridSize[ 0 ] ) % brickGridSize[ 1 ];
+			brickPos[ 2 ] = brick / ( brickGridSize[ 0 ] * brickGridSize[ 1 ] );
+			for ( int d = 0; d < 3; ++d )
+			{
+				origin[ d ] = brickPos[ d ] * BRICK_SIZE;
+				region[ d ] = Math.min( BRICK_SIZE, size[ d ] - origin[ d ] );
+			}
+
+			staging.clear();
+			for ( long z = origin[ 2 ]; z < origin[ 2 ] + region[ 2 ]; ++z )
+				for ( long y = origin[ 1 ]; y < origin[ 1 ] + region[ 1 ]; ++y )
+				{
+					final int i = ( int ) ( origin[ 0 ] + size[ 0 ] * ( y + size[ 1 ] * z ) );
+					staging.put( entries, i, ( int ) region[ 0 ] );
+				}
+			staging.flip();
+			image.enqueueWrite( Pointer.to( staging ), origin, region );
+		}
+		numDirtyBricks = 0;
+	}
+
+	/**
+	 * Get the image hosting this table, or {@code null} if it has not been
+	 * {@link #upload(CLContext) uploaded} yet.
+	 */
+	public synchronized CLImage getImage()
+	{
+		return image;
+	}
+
+	/**
+	 * Release the image hosting this table.
+	 */
+	public synchronized void release()
+	{
+		if ( image != null )
+		{
+			image.release();
+			image = null;
+		}
+	}
+
+	public int getTimepoint()
+	{
+		return timepoint;
+	}
+
+	public int getSetup()
+	{
+		return setup;
+	}
+
+	public int getLevel()
+	{
+		return level;
+	}
+
+	public int[] getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * Get the number of bricks that changed since the last upload.
+	 */
+	public synchronized int getNumDirtyBricks()
+	{
+		return numDirtyBricks;
+	}
+
+	private void clearDirty()
+	{
+		for ( int b = 0; b < numDirtyBricks; ++b )
+			brickDirty[ dirtyBricks[ b ] ] = false;
+		numDirtyBricks = 0;
+	}
+
+	/**
+	 * Pack block texture grid coordinates into a page table entry.
+	 */
+	public static int pack( final int[] gridPos )
+	{
+		return pack( gridPos[ 0 ], gridPos[ 1 ], gridPos[ 2 ] );
+	}
+
+	public static int pack( final int x, final int y, final int z )
+	{
+		return x | ( y << BITS_PER_COORDINATE ) | ( z << ( 2 * BITS_PER_COORDINATE ) );
+	}
+
+	/**
+	 * Unpack a page table entry into block texture grid coordinates.
+	 */
+	public static void unpack( final int entry, final int[] gridPos )
+	{
+		final int mask = MAX_GRID_SIZE - 1;
+		gridPos[ 0 ] = entry & mask;
+		gridPos[ 1 ] = ( entry >> BITS_PER_COORDINATE ) & mask;
+		gridPos[ 2 ] = ( entry >> ( 2 * BITS_PER_COORDINATE ) ) & mask;
+	}
+}
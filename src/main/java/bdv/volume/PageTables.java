@@ -0,0 +1,131 @@
+package bdv.volume;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import bdv.volume.LongLRUBlockCache.ResidencyListener;
+import cl.CLContext;
+
+/**
+ * The {@link PageTable page tables} of all registered (timepoint, setup,
+ * level) combinations, kept up to date with a block cache.
+ * <p>
+ * Register as {@link ResidencyListener} with a {@link LongLRUBlockCache} (or
+ * {@link ConcurrentLRUBlockCache}). Whenever the data for a key becomes
+ * resident in, or the key is removed from, a cell of the block texture, the
+ * corresponding page table entry is updated. Keys of (timepoint, setup, level) combinations that
+ * have not been {@link #register(int, int, int, int[]) registered} are
+ * ignored. Call {@link #upload(CLContext)} once per frame to upload the changed
+ * entries.
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public class PageTables implements ResidencyListener
+{
+	private final int[] textureGridSize;
+
+	private final List< PageTable > tables;
+
+	/**
+	 * Maps {@link #tableKey(int, int, int)} to index in {@link #tables}.
+	 */
+	private final LongIntHash tableIndices;
+
+	/**
+	 * @param textureGridSize
+	 *            size of the grid of blocks in the block texture.
+	 */
+	public PageTables( final int[] textureGridSize )
+	{
+		for ( int d = 0; d < 3; ++d )
+			if ( textureGridSize[ d ] > PageTable.MAX_GRID_SIZE )
+				throw new IllegalArgumentException( "texture grid too large for page table entries" );
+		this.textureGridSize = textureGridSize.clone();
+		tables = new ArrayList<>();
+		tableIndices = new LongIntHash( 16 );
+	}
+
+	/**
+	 * Get the page table for the given timepoint, setup, and level, creating
+	 * it if necessary.
+	 *
+	 * @param cellGridSize
+	 *            size of the cell grid of the source data at this level.
+	 */
+	public synchronized PageTable register( final int timepoint, final int setup, final int level, final int[] cellGridSize )
+	{
+		final long tk = tableKey( timepoint, setup, level );
+		final int i = tableIndices.get( tk );
+		if ( i != LongIntHash.NO_ENTRY )
+			return tables.get( i );
+
+		final PageTable table = new PageTable( timepoint, setup, level, cellGridSize );
+		tableIndices.put( tk, tables.size() );
+		tables.add( table );
+		return table;
+	}
+
+	/**
+	 * Get the page table for the given timepoint, setup, and level, or
+	 * {@code null} if it is not registered.
+	 */
+	public synchronized PageTable get( final int timepoint, final int setup, final int level )
+	{
+		final int i = tableIndices.get( tableKey( timepoint, setup, level ) );
+		return i == LongIntHash.NO_ENTRY ? null : tables.get( i );
+	}
+
+	@Override
+	public void resident( final long key, final int gridIndex )
+	{
+		final PageTable table = tableFor( key );
+		if ( table != null )
+			table.set( BlockKey.cellX( key ), BlockKey.cellY( key ), BlockKey.cellZ( key ), entry( gridIndex ) );
+	}
+
+	@Override
+	public void removed( final long key, final int gridIndex )
+	{
+		final PageTable table = tableFor( key );
+		if ( table != null )
+			table.set( BlockKey.cellX( key ), BlockKey.cellY( key ), BlockKey.cellZ( key ), PageTable.NOT_RESIDENT );
+	}
+
+	/**
+	 * Upload changed entries of all page tables.
+	 */
+	public synchronized void upload( final CLContext context )
+	{
+		for ( final PageTable table : tables )
+			table.upload( context );
+	}
+
+	/**
+	 * Release the images hosting the page tables.
+	 */
+	public synchronized void release()
+	{
+		for ( final PageTable table : tables )
+			table.release();
+	}
+
+	private synchronized PageTable tableFor( final long key )
+	{
+		final long tk = tableKey( BlockKey.timepoint( key ), BlockKey.setup( key ), BlockKey.level( key ) );
+		final int i = tableIndices.get( tk );
+		return i == LongIntHash.NO_ENTRY ? null : tables.get( i );
+	}
+
+	private int entry( final int gridIndex )
+	{
+		final int x = gridIndex % textureGridSize[ 0 ];
+		final int y = ( gridIndex / textureGridSize[ 0 ] ) % textureGridSize[ 1 ];
+		final int z = gridIndex / ( textureGridSize[ 0 ] * textureGridSize[ 1 ] );
+		return PageTable.pack( x, y, z );
+	}
+
+	private static long tableKey( final int timepoint, final int setup, final int level )
+	{
+		return BlockKey.pack( 0, 0, 0, timepoint, setup, level );
+	}
+}
@@ -0,0 +1,555 @@
+package bdv.volume;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Drives progressive, time-budgeted rendering of a volume.
+ * <p>
+ * Every {@link #renderFrame(AffineTransform3D, int, int, int) frame}
+ * <ol>
+ * <li>{@link BlockRequestPlanner plans} the blocks needed for the current
+ * view,</li>
+ * <li>requests them from the {@link ConcurrentLRUBlockCache}, pinning them for
+ * the frame,</li>
+ * <li>submits missing blocks for upload (coarse first), and</li>
+ * <li>renders immediately with whatever blocks are resident. The renderer is
+ * expected to fall back to coarser levels through the page tables where finer
+ * blocks are missing.</li>
+ * </ol>
+ * As uploads complete, later frames refine the image. Callers should keep
+ * rendering frames while {@link #renderFrame(AffineTransform3D, int, int, int)}
+ * returns {@code true}.
+ * <p>
+ * While the view changes (interaction), frames are rendered at a reduced
+ * screen scale, chosen such that the estimated render time fits the
+ * {@link #setTargetFrameTime(long) target frame time}. The estimate is
+ * updated from the measured time of every frame. When the view stops
+ * changing, the next frame is rendered at full resolution.
+ * <p>
+ * Completed uploads must be reported to {@link #uploaded(long, int)}, for
+ * example by passing the renderer as {@link BlockUploader.UploadListener}.
+ * A block that is evicted before its upload is reported is forgotten right
+ * away, so that it is submitted again (to its new cell) if it is requested
+ * again. Other submitted blocks that are not reported within
+ * {@link #setResubmitAfterFrames(int) a number of frames} (e.g., because
+ * loading failed) are forgotten, and submitted again if they are still
+ * requested.
+ *
+ * @param <B>
+ *            block type
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public class ProgressiveRenderer< B > implements BlockUploader.UploadListener
+{
+	/**
+	 * Renders the current view with the blocks that are currently resident.
+	 */
+	@FunctionalInterface
+	public static interface FrameRenderer
+	{
+		/**
+		 * @param viewerTransform
+		 *            transforms global coordinates to screen coordinates.
+		 * @param width
+		 *            width of the viewport.
+		 * @param height
+		 *            height of the viewport.
+		 * @param screenScale
+		 *            scale factor in {@code (0,1]} for the rendered image. The
+		 *            viewport should be rendered into an image of size
+		 *            {@code ceil(width*screenScale) x ceil(height*screenScale)}.
+		 */
+		void render( AffineTransform3D viewerTransform, int timepoint, int width, int height, double screenScale );
+	}
+
+	/**
+	 * Starts the upload of a block, for example through
+	 * {@link BlockUploader#submit(long, int, int[], int[])}.
+	 */
+	@FunctionalInterface
+	public static interface BlockSubmitter< B >
+	{
+		/**
+		 * @param gridIndex
+		 *            flattened index of the grid cell of {@code block}, which
+		 *            must be passed back with the upload report.
+		 * @return {@code false} if the block could not be submitted right
+		 *         now. It will be submitted again in a later frame.
+		 */
+		boolean submit( long key, int gridIndex, B block );
+	}
+
+	private final BlockRequestPlanner planner;
+
+	private final ConcurrentLRUBlockCache< B > cache;
+
+	private final FrameRenderer renderer;
+
+	private BlockSubmitter< B > submitter;
+
+	/**
+	 * Keys that have been submitted for upload, mapped to the frame in which
+	 * they were submitted. Guarded by {@code synchronized (pending)}.
+	 */
+	private final LongIntHash pending = new LongIntHash( 1024 );
+
+	private B[] blocks;
+
+	private double[] screenScales = new double[] { 1, 0.75, 0.5, 0.25, 0.125 };
+
+	private long targetFrameTimeNanos = 30 * 1000000L;
+
+	private double maxScreenVoxelSize = 1.0;
+
+	private int maxUploadsPerFrame = Integer.MAX_VALUE;
+
+	private int resubmitAfterFrames = 100;
+
+	/**
+	 * Estimated time to render one pixel.
+	 */
+	private double renderNanosPerPixel = 0;
+
+	private final AffineTransform3D lastViewerTransform = new AffineTransform3D();
+
+	private int lastTimepoint = -1;
+
+	private int lastWidth = -1;
+
+	private int lastHeight = -1;
+
+	private int frame = 0;
+
+	private final AtomicInteger numUploaded = new AtomicInteger();
+
+	// statistics of the last frame
+
+	private boolean interacting;
+
+	private int screenScaleIndex;
+
+	private int numRequested;
+
+	private int numResolved;
+
+	private int numResident;
+
+	private int numSubmitted;
+
+	private long planNanos;
+
+	private long renderNanos;
+
+	private long frameNanos;
+
+	/**
+	 * @param planner
+	 *            plans the blocks for each frame. Its
+	 *            {@link BlockRequestPlanner#setRequestFallback(boolean)
+	 *            fallback requests} are enabled, and its
+	 *            {@link BlockRequestPlanner#setMaxScreenVoxelSize(double)
+	 *            maxScreenVoxelSize} is managed by this renderer.
+	 * @param cache
+	 *            the cache of blocks in the texture.
+	 * @param renderer
+	 *            renders frames.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public ProgressiveRenderer(
+			final BlockRequestPlanner planner,
+			final ConcurrentLRUBlockCache< B > cache,
+			final FrameRenderer renderer )
+	{
+		this.planner = planner;
+		this.cache = cache;
+		this.renderer = renderer;
+		planner.setRequestFallback( true );
+		blocks = ( B[] ) new Object[ 1024 ];
+		cache.addResidencyListener( new LongLRUBlockCache.ResidencyListener()
+		{
+			@Override
+			public void resident( final long key, final int gridIndex )
+			{}
+
+			@Override
+			public void removed( final long key, final int gridIndex )
+			{}
+
+			@Override
+			public void dropped( final long key, final int gridIndex )
+			{
+				// a pending upload went to the old cell, allow to submit again
+				synchronized ( pending )
+				{
+					pending.remove( key );
+				}
+			}
+		} );
+	}
+
+	/**
+	 * Set how missing blocks are submitted for upload. Until this is set, no
+	 * blocks are uploaded.
+	 */
+	public synchronized void setBlockSubmitter( final BlockSubmitter< B > submitter )
+	{
+		this.submitter = submitter;
+	}
+
+	/**
+	 * Set the time (in nanoseconds) a frame should take during interaction.
+	 */
+	public synchronized void setTargetFrameTime( final long targetFrameTimeNanos )
+	{
+		if ( targetFrameTimeNanos <= 0 )
+			throw new IllegalArgumentException();
+		this.targetFrameTimeNanos = targetFrameTimeNanos;
+	}
+
+	/**
+	 * Set the screen scales to choose from during interaction. The first
+	 * element must be 1 (full resolution). Scales must be decreasing.
+	 */
+	public synchronized void setScreenScales( final double[] screenScales )
+	{
+		if ( screenScales.length == 0 || screenScales[ 0 ] != 1 )
+			throw new IllegalArgumentException();
+		for ( int i = 1; i < screenScales.length; ++i )
+			if ( screenScales[ i ] <= 0 || screenScales[ i ] >= screenScales[ i - 1 ] )
+				throw new IllegalArgumentException();
+		this.screenScales = screenScales.clone();
+	}
+
+	/**
+	 * Set the largest acceptable size (in pixels of the full resolution
+	 * viewport) of a voxel on screen. At reduced screen scales, this is
+	 * increased accordingly, so that coarser blocks are requested.
+	 *
+	 * @see BlockRequestPlanner#setMaxScreenVoxelSize(double)
+	 */
+	public synchronized void setMaxScreenVoxelSize( final double maxScreenVoxelSize )
+	{
+		this.maxScreenVoxelSize = maxScreenVoxelSize;
+	}
+
+	/**
+	 * Set the maximum number of blocks to submit for upload per frame.
+	 */
+	public synchronized void setMaxUploadsPerFrame( final int maxUploadsPerFrame )
+	{
+		this.maxUploadsPerFrame = maxUploadsPerFrame;
+	}
+
+	/**
+	 * Set after how many frames a submitted block that has not been
+	 * {@link #uploaded(long, int) reported} is forgotten, and submitted again if it
+	 * is still requested. This recovers from blocks that failed to load, and
+	 * bounds the number of {@link #getNumPending() pending} blocks.
+	 */
+	public synchronized void setResubmitAfterFrames( final int resubmitAfterFrames )
+	{
+		this.resubmitAfterFrames = resubmitAfterFrames;
+	}
+
+	/**
+	 * Report that the upload of a block to the grid cell {@code gridIndex}
+	 * has completed. Marks the block resident in the cache, unless it has
+	 * been evicted from that cell in the meantime. This may be called from
+	 * any thread.
+	 */
+	@Override
+	public void uploaded( final long key, final int gridIndex )
+	{
+		if ( !cache.markResident( key, gridIndex ) )
+			return;
+		synchronized ( pending )
+		{
+			pending.remove( key );
+		}
+		numUploaded.incrementAndGet();
+	}
+
+	/**
+	 * Report that the upload of a block has failed. This may be called from
+	 * any thread.
+	 * <p>
+	 * Nothing needs to be done: if the block was dropped
+	 * ({@code cause == null}), its cell was re-used, so it was evicted and
+	 * forgotten already, or it was submitted again. If loading or writing
+	 * failed, it is submitted again after
+	 * {@link #setResubmitAfterFrames(int) resubmitAfterFrames}, so that
+	 * persistent failures do not cause a reload in every frame.
+	 */
+	@Override
+	public void failed( final long key, final int gridIndex, final Exception cause )
+	{}
+
+	/**
+	 * Render a frame.
+	 *
+	 * @param viewerTransform
+	 *            transforms global coordinates to screen coordinates.
+	 * @param timepoint
+	 *            the timepoint to render.
+	 * @param width
+	 *            width of the viewport.
+	 * @param height
+	 *            height of the viewport.
+	 * @return whether the rendered image is not final, i.e., another frame
+	 *         should be rendered (after some uploads have completed).
+	 */
+	public synchronized boolean renderFrame(
+			final AffineTransform3D viewerTransform,
+			final int timepoint,
+			final int width,
+			final int height )
+	{
+		final long t0 = System.nanoTime();
+		++frame;
+		synchronized ( pending )
+		{
+			// forget blocks that were never reported, e.g., because they were
+			// evicted before their upload, or the submitter lost them
+			pending.removeValuesLessThan( frame - resubmitAfterFrames );
+		}
+
+		interacting = frame > 1 && ( timepoint != lastTimepoint
+				|| width != lastWidth
+				|| height != lastHeight
+				|| !equals( viewerTransform, lastViewerTransform ) );
+		lastViewerTransform.set( viewerTransform );
+		lastTimepoint = timepoint;
+		lastWidth = width;
+		lastHeight = height;
+
+		screenScaleIndex = interacting ? chooseScreenScale( width, height ) : 0;
+		final double screenScale = screenScales[ screenScaleIndex ];
+
+		planner.setMaxScreenVoxelSize( maxScreenVoxelSize / screenScale );
+		numRequested = planner.plan( viewerTransform, width, height, timepoint );
+		final long[] keys = planner.getKeys();
+		if ( blocks.length < numRequested )
+			blocks = Arrays.copyOf( blocks, Math.max( numRequested, 2 * blocks.length ) );
+
+		cache.beginFrame();
+		try
+		{
+			numResolved = cache.requestAll( keys, numRequested, blocks, null );
+			submitMissing( keys );
+			Arrays.fill( blocks, 0, numRequested, null );
+
+			final long t1 = System.nanoTime();
+			renderer.render( viewerTransform, timepoint, width, height, screenScale );
+			final long t2 = System.nanoTime();
+
+			planNanos = t1 - t0;
+			renderNanos = t2 - t1;
+			updateRenderTimeEstimate( width, height, screenScale );
+		}
+		finally
+		{
+			cache.endFrame();
+		}
+		frameNanos = System.nanoTime() - t0;
+
+		return !isRefinementComplete();
+	}
+
+	/**
+	 * Submit uploads for requested blocks that are in the cache but not
+	 * resident. Keys are ordered by priority, so stop at the first block that
+	 * cannot be submitted.
+	 */
+	private void submitMissing( final long[] keys )
+	{
+		numResident = 0;
+		numSubmitted = 0;
+		boolean canSubmit = submitter != null;
+		for ( int i = 0; i < numRequested; ++i )
+		{
+			final B block = blocks[ i ];
+			if ( block == null )
+				continue;
+			final long key = keys[ i ];
+			if ( cache.isResident( key ) )
+			{
+				++numResident;
+				continue;
+			}
+			if ( !canSubmit || numSubmitted >= maxUploadsPerFrame )
+				continue;
+
+			synchronized ( pending )
+			{
+				if ( pending.containsKey( key ) )
+					continue;
+				pending.put( key, frame );
+			}
+			if ( submitter.submit( key, cache.getGridIndex( key ), block ) )
+				++numSubmitted;
+			else
+			{
+				synchronized ( pending )
+				{
+					pending.remove( key );
+				}
+				canSubmit = false;
+			}
+		}
+	}
+
+	/**
+	 * Choose the largest screen scale for which the estimated frame time is
+	 * within the target.
+	 */
+	private int chooseScreenScale( final int width, final int height )
+	{
+		final double budget = targetFrameTimeNanos - planNanos;
+		final double numPixels = ( double ) width * height;
+		for ( int i = 0; i < screenScales.length; ++i )
+		{
+			final double s = screenScales[ i ];
+			if ( renderNanosPerPixel * numPixels * s * s <= budget )
+				return i;
+		}
+		return screenScales.length - 1;
+	}
+
+	private void updateRenderTimeEstimate( final int width, final int height, final double screenScale )
+	{
+		final double numPixels = Math.ceil( width * screenScale ) * Math.ceil( height * screenScale );
+		if ( numPixels <= 0 )
+			return;
+		final double nanosPerPixel = renderNanos / numPixels;
+		renderNanosPerPixel = renderNanosPerPixel == 0
+				? nanosPerPixel
+				: 0.7 * renderNanosPerPixel + 0.3 * nanosPerPixel;
+	}
+
+	private static boolean equals( final AffineTransform3D a, final AffineTransform3D b )
+	{
+		for ( int r = 0; r < 3; ++r )
+			for ( int c = 0; c < 4; ++c )
+				if ( a.get( r, c ) != b.get( r, c ) )
+					return false;
+		return true;
+	}
+
+	/**
+	 * Whether the last frame showed the final image: it was rendered at full
+	 * resolution, and every requested block that fits into the cache was
+	 * resident.
+	 */
+	public synchronized boolean isRefinementComplete()
+	{
+		return screenScaleIndex == 0 && numResident == numResolved;
+	}
+
+	/**
+	 * Get the fraction of requested blocks that were resident in the last
+	 * frame. Blocks that did not fit into the cache are not counted.
+	 *
+	 * @return refinement progress in {@code [0,1]}.
+	 */
+	public synchronized double getRefinementProgress()
+	{
+		return numResolved == 0 ? 1 : ( double ) numResident / numResolved;
+	}
+
+	/**
+	 * Whether the view changed in the last frame.
+	 */
+	public synchronized boolean isInteracting()
+	{
+		return interacting;
+	}
+
+	/**
+	 * Get the screen scale of the last frame.
+	 */
+	public synchronized double getScreenScale()
+	{
+		return screenScales[ screenScaleIndex ];
+	}
+
+	/**
+	 * Get the number of blocks planned for the last frame.
+	 */
+	public synchronized int getNumRequested()
+	{
+		return numRequested;
+	}
+
+	/**
+	 * Get the number of blocks of the last frame that fit into the cache.
+	 */
+	public synchronized int getNumResolved()
+	{
+		return numResolved;
+	}
+
+	/**
+	 * Get the number of blocks of the last frame that were resident.
+	 */
+	public synchronized int getNumResident()
+	{
+		return numResident;
+	}
+
+	/**
+	 * Get the number of blocks submitted for upload in the last frame.
+	 */
+	public synchronized int getNumSubmitted()
+	{
+		return numSubmitted;
+	}
+
+	/**
+	 * Get the number of blocks that have been submitted and not yet
+	 * {@link #uploaded(long, int) reported}.
+	 */
+	public int getNumPending()
+	{
+		synchronized ( pending )
+		{
+			return pending.size();
+		}
+	}
+
+	/**
+	 * Get the total number of {@link #uploaded(long, int) reported} uploads.
+	 */
+	public int getNumUploaded()
+	{
+		return numUploaded.get();
+	}
+
+	/**
+	 * Get the duration (in nanoseconds) of the last frame.
+	 */
+	public synchronized long getFrameTime()
+	{
+		return frameNanos;
+	}
+
+	/**
+	 * Get the duration (in nanoseconds) of planning and requesting blocks in
+	 * the last frame.
+	 */
+	public synchronized long getPlanTime()
+	{
+		return planNanos;
+	}
+
+	/**
+	 * Get the duration (in nanoseconds) of rendering in the last frame.
+	 */
+	public synchronized long getRenderTime()
+	{
+		return renderNanos;
+	}
+}
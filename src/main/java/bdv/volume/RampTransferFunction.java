@@ -0,0 +1,51 @@
+package bdv.volume;
+
+/**
+ * A {@link TransferFunction} with opacity ramping linearly from 0 at
+ * {@code min} to 1 at {@code max}. Values {@code <= min} are transparent.
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public class RampTransferFunction implements TransferFunction
+{
+	private final float min;
+
+	private final float max;
+
+	private final float scale;
+
+	public RampTransferFunction( final float min, final float max )
+	{
+		if ( max <= min )
+			throw new IllegalArgumentException();
+		this.min = min;
+		this.max = max;
+		this.scale = 1f / ( max - min );
+	}
+
+	@Override
+	public float alpha( final float value )
+	{
+		if ( value <= min )
+			return 0;
+		if ( value >= max )
+			return 1;
+		return ( value - min ) * scale;
+	}
+
+	@Override
+	public boolean isTransparent( final float min, final float max )
+	{
+		return max <= this.min;
+	}
+
+	public float getMin()
+	{
+		return min;
+	}
+
+	public float getMax()
+	{
+		return max;
+	}
+}
@@ -0,0 +1,272 @@
+package bdv.volume;
+
+import static org.jocl.CL.CL_MEM_READ_ONLY;
+import static org.jocl.CL.clReleaseEvent;
+import static org.jocl.CL.clWaitForEvents;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+import org.jocl.Pointer;
+import org.jocl.cl_event;
+
+import cl.CLBuffer;
+import cl.CLContext;
+import cl.CLImage;
+import cl.CLKernel;
+import cl.CLProgram;
+import cl.CLProgramVariants;
+
+/**
+ * Batched upload of many small blocks into a texture with a single kernel
+ * launch.
+ * <p>
+ * Blocks are {@link #add(short[], int[], int[]) added} to a batch by packing
+ * their data contiguously into a host staging buffer, and recording source
+ * offset, destination origin, and size in a descriptor table. On
+ * {@link #flush()}, the staging buffer and descriptor table are each written
+ * to a linear CL buffer in one transfer, and the {@code scatter} kernel copies
+ * every block to its position in the texture. This avoids the per-call
+ * overhead of one {@link CLImage#enqueueWrite(Pointer, long[], long[])} per
+ * block, which dominates for small blocks.
+ * <p>
+ * Voxels are unsigned 16 bit, and the texture must be {@code CL_R} /
+ * {@code CL_UNORM_INT16}. The kernel is a {@link KernelVariant} for the
+ * {@code maxBlockSize}, so uploaders with the same maximum block size can
+ * share it through {@link #createPrograms(CLContext)}. Nothing here requires a
+ * GPU or GL sharing; it runs on CPU OpenCL devices as well.
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public class ScatterUploader
+{
+	private static final int DESCRIPTOR_INTS = 8;
+
+	private final CLContext context;
+
+	private final CLImage texture;
+
+	private final int maxBlocks;
+
+	private final int[] maxBlockSize;
+
+	private final int maxVoxels;
+
+	private final CLProgramVariants programs;
+
+	/**
+	 * Whether {@link #programs} was created by this uploader (and is released
+	 * with it).
+	 */
+	private final boolean ownsPrograms;
+
+	private final CLKernel kernel;
+
+	private final CLBuffer srcBuffer;
+
+	private final CLBuffer descriptorBuffer;
+
+	private final ShortBuffer src;
+
+	private final IntBuffer descriptors;
+
+	private final Pointer srcPointer;
+
+	private final Pointer descriptorPointer;
+
+	private final long[] globalWorkSize = new long[ 3 ];
+
+	/**
+	 * The last scatter kernel, which reads {@link #srcBuffer} and
+	 * {@link #descriptorBuffer}. It may run on a different queue than the
+	 * writes, so they wait for it explicitly.
+	 */
+	private cl_event scatterEvent;
+
+	private int numBlocks;
+
+	private int numVoxels;
+
+	/**
+	 * @param texture
+	 *            the texture to upload blocks into ({@code CL_R} /
+	 *            {@code CL_UNORM_INT16}).
+	 * @param maxBlocks
+	 *            maximum number of blocks in a batch.
+	 * @param maxBlockSize
+	 *            maximum size of a block (in voxels).
+	 */
+	public ScatterUploader(
+			final CLContext context,
+			final CLImage texture,
+			final int maxBlocks,
+			final int[] maxBlockSize ) throws IOException
+	{
+		this( context, texture, maxBlocks, maxBlockSize, createPrograms( context ), true );
+	}
+
+	/**
+	 * Like {@link #ScatterUploader(CLContext, CLImage, int, int[])}, but the
+	 * kernel is taken from {@code programs} (see
+	 * {@link #createPrograms(CLContext)}), which is not released by
+	 * {@link #release()}. Uploaders with the same {@code maxBlockSize} share
+	 * the kernel (and its arguments), so they must be flushed from the same
+	 * thread.
+	 */
+	public ScatterUploader(
+			final CLContext context,
+			final CLImage texture,
+			final int maxBlocks,
+			final int[] maxBlockSize,
+			final CLProgramVariants programs )
+	{
+		this( context, texture, maxBlocks, maxBlockSize, programs, false );
+	}
+
+	private ScatterUploader(
+			final CLContext context,
+			final CLImage texture,
+			final int maxBlocks,
+			final int[] maxBlockSize,
+			final CLProgramVariants programs,
+			final boolean ownsPrograms )
+	{
+		this.context = context;
+		this.texture = texture;
+		this.maxBlocks = maxBlocks;
+		this.maxBlockSize = maxBlockSize.clone();
+		maxVoxels = maxBlocks * maxBlockSize[ 0 ] * maxBlockSize[ 1 ] * maxBlockSize[ 2 ];
+
+		this.programs = programs;
+		this.ownsPrograms = ownsPrograms;
+		final CLProgram program = programs.getProgram( new KernelVariant( maxBlockSize ).getDefines() );
+		kernel = program.getKernel( "scatter" );
+
+		srcBuffer = new CLBuffer( context, CL_MEM_READ_ONLY, 2L * maxVoxels );
+		descriptorBuffer = new CLBuffer( context, CL_MEM_READ_ONLY, 4L * DESCRIPTOR_INTS * maxBlocks );
+
+		src = ByteBuffer.allocateDirect( 2 * maxVoxels ).order( ByteOrder.nativeOrder() ).asShortBuffer();
+		descriptors = ByteBuffer.allocateDirect( 4 * DESCRIPTOR_INTS * maxBlocks ).order( ByteOrder.nativeOrder() ).asIntBuffer();
+		srcPointer = Pointer.to( src );
+		descriptorPointer = Pointer.to( descriptors );
+
+		numBlocks = 0;
+		numVoxels = 0;
+	}
+
+	/**
+	 * Add a block to the current batch.
+	 *
+	 * @param data
+	 *            voxel data of the block, flattened with x fastest.
+	 * @param texturePos
+	 *            destination of the block in the texture (in voxels).
+	 * @param size
+	 *            size of the block (in voxels). Must not exceed the
+	 *            {@code maxBlockSize} given at construction.
+	 * @return {@code false} if the batch is full. The block is not added in
+	 *         this case; {@link #flush()} and try again.
+	 */
+	public boolean add( final short[] data, final int[] texturePos, final int[] size )
+	{
+		for ( int d = 0; d < 3; ++d )
+			if ( size[ d ] > maxBlockSize[ d ] )
+				throw new IllegalArgumentException( "block too large" );
+		if ( numBlocks >= maxBlocks )
+			return false;
+
+		final int n = size[ 0 ] * size[ 1 ] * size[ 2 ];
+		src.position( numVoxels );
+		src.put( data, 0, n );
+
+		descriptors.position( numBlocks * DESCRIPTOR_INTS );
+		descriptors.put( numVoxels );
+		descriptors.put( texturePos[ 0 ] );
+		descriptors.put( texturePos[ 1 ] );
+		descriptors.put( texturePos[ 2 ] );
+		descriptors.put( size[ 0 ] );
+		descriptors.put( size[ 1 ] );
+		descriptors.put( size[ 2 ] );
+		descriptors.put( 0 );
+
+		numVoxels += n;
+		++numBlocks;
+		return true;
+	}
+
+	/**
+	 * Get the number of blocks in the current batch.
+	 */
+	public int getNumBlocks()
+	{
+		return numBlocks;
+	}
+
+	/**
+	 * Upload the current batch and launch the scatter kernel. This blocks
+	 * until the host data has been copied, after which the next batch can be
+	 * filled. The kernel may still be running when this returns. It waits
+	 * for the writes of the batch to complete (see
+	 * {@link CLKernel#enqueue(CLContext, long[], long[], cl_event)}), which
+	 * may still be pending on a separate or out-of-order upload queue.
+	 */
+	public void flush()
+	{
+		if ( numBlocks == 0 )
+			return;
+
+		waitForScatter();
+		src.rewind();
+		descriptors.rewind();
+		srcBuffer.enqueueWrite( srcPointer, 2L * numVoxels );
+		descriptorBuffer.enqueueWrite( descriptorPointer, 4L * DESCRIPTOR_INTS * numBlocks );
+
+		kernel.setArg( 0, srcBuffer );
+		kernel.setArg( 1, descriptorBuffer );
+		kernel.setArg( 2, maxBlockSize[ 2 ] );
+		kernel.setArg( 3, texture );
+
+		globalWorkSize[ 0 ] = maxBlockSize[ 0 ];
+		globalWorkSize[ 1 ] = maxBlockSize[ 1 ];
+		globalWorkSize[ 2 ] = ( long ) maxBlockSize[ 2 ] * numBlocks;
+		scatterEvent = new cl_event();
+		kernel.enqueue( context, globalWorkSize, null, scatterEvent );
+
+		numBlocks = 0;
+		numVoxels = 0;
+	}
+
+	/**
+	 * Create the variants of the {@code scatter} kernel, to share between
+	 * uploaders.
+	 */
+	public static CLProgramVariants createPrograms( final CLContext context ) throws IOException
+	{
+		return new CLProgramVariants( context, ScatterUploader.class, "scatter.cl" );
+	}
+
+	private void waitForScatter()
+	{
+		if ( scatterEvent != null )
+		{
+			clWaitForEvents( 1, new cl_event[] { scatterEvent } );
+			clReleaseEvent( scatterEvent );
+			scatterEvent = null;
+		}
+	}
+
+	public void release()
+	{
+		waitForScatter();
+		if ( ownsPrograms )
+		{
+			kernel.release();
+			programs.release();
+		}
+		srcBuffer.release();
+		descriptorBuffer.release();
+	}
+}
@@ -0,0 +1,139 @@
+package bdv.volume;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * A fixed number of intrusive doubly linked lists over slot indices
+ * {@code 0 ... capacity-1}. Every slot is in at most one list at a time.
+ * Lists are ordered from first (most recently added) to last.
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+final class SlotLists
+{
+	static final int NIL = -1;
+
+	private final int[] prev;
+
+	private final int[] next;
+
+	/**
+	 * List containing each slot, or {@link #NIL}.
+	 */
+	private final int[] list;
+
+	private final int[] heads;
+
+	private final int[] tails;
+
+	private final int[] sizes;
+
+	SlotLists( final int capacity, final int numLists )
+	{
+		prev = new int[ capacity ];
+		next = new int[ capacity ];
+		list = new int[ capacity ];
+		Arrays.fill( list, NIL );
+		heads = new int[ numLists ];
+		tails = new int[ numLists ];
+		sizes = new int[ numLists ];
+		Arrays.fill( heads, NIL );
+		Arrays.fill( tails, NIL );
+	}
+
+	/**
+	 * Get the list containing {@code slot}, or {@link #NIL}.
+	 */
+	int listOf( final int slot )
+	{
+		return list[ slot ];
+	}
+
+	int size( final int l )
+	{
+		return sizes[ l ];
+	}
+
+	int first( final int l )
+	{
+		return heads[ l ];
+	}
+
+	int last( final int l )
+	{
+		return tails[ l ];
+	}
+
+	/**
+	 * Get the slot following {@code slot} in its list (towards the last), or
+	 * {@link #NIL}.
+	 */
+	int next( final int slot )
+	{
+		return next[ slot ];
+	}
+
+	/**
+	 * Get the slot preceding {@code slot} in its list (towards the first), or
+	 * {@link #NIL}.
+	 */
+	int prev( final int slot )
+	{
+		return prev[ slot ];
+	}
+
+	/**
+	 * Get the last slot of list {@code l} that satisfies {@code filter}, or
+	 * {@link #NIL}.
+	 */
+	int lastMatching( final int l, final IntPredicate filter )
+	{
+		for ( int slot = tails[ l ]; slot != NIL; slot = prev[ slot ] )
+			if ( filter.test( slot ) )
+				return slot;
+		return NIL;
+	}
+
+	/**
+	 * Add {@code slot} as the first element of list {@code l}. If
+	 * {@code slot} is currently in a list, it is removed from there first.
+	 */
+	void addFirst( final int l, final int slot )
+	{
+		if ( list[ slot ] != NIL )
+			remove( slot );
+		final int h = heads[ l ];
+		prev[ slot ] = NIL;
+		next[ slot ] = h;
+		if ( h == NIL )
+			tails[ l ] = slot;
+		else
+			prev[ h ] = slot;
+		heads[ l ] = slot;
+		list[ slot ] = l;
+		++sizes[ l ];
+	}
+
+	/**
+	 * Remove {@code slot} from the list containing it (if any).
+	 */
+	void remove( final int slot )
+	{
+		final int l = list[ slot ];
+		if ( l == NIL )
+			return;
+		final int p = prev[ slot ];
+		final int n = next[ slot ];
+		if ( p == NIL )
+			heads[ l ] = n;
+		else
+			next[ p ] = n;
+		if ( n == NIL )
+			tails[ l ] = p;
+		else
+			prev[ n ] = p;
+		list[ slot ] = NIL;
+		--sizes[ l ];
+	}
+}
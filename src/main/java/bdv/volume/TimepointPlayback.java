@@ -0,0 +1,488 @@
+package bdv.volume;
+
+import bdv.volume.LRUBlockCache.BlockFactory;
+import bdv.volume.LongLRUBlockCache.ResidencyListener;
+import bdv.volume.ProgressiveRenderer.BlockSubmitter;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Intervals;
+
+/**
+ * Block management for smooth playback of a time series.
+ * <p>
+ * The block texture is split into {@code 1 + numPreload} disjoint regions
+ * (ranges of slots), each managed by its own {@link LongLRUBlockCache}. While
+ * timepoint {@code t} is {@link #show(AffineTransform3D, int, int, int) shown}
+ * from one region, timepoints {@code t+1, ..., t+numPreload} are loaded into
+ * the other regions in the background, at lower priority. When playback
+ * advances to {@code t+1}, its blocks are already resident, and the region of
+ * {@code t} is re-used for {@code t+1+numPreload}. Loading the next timepoints
+ * therefore never evicts the blocks of the timepoint that is shown.
+ * <p>
+ * A key is never held by more than one region: if a key that is needed is
+ * still in a region that has been re-assigned to another timepoint (e.g.,
+ * when playback loops), that block is used instead of adding the key again.
+ * <p>
+ * Register {@link ResidencyListener}s (e.g., {@link PageTables}) with
+ * {@link #addResidencyListener(ResidencyListener)}, and report completed
+ * uploads to {@link #uploaded(long, int)}, for example by passing this as
+ * {@link BlockUploader.UploadListener}.
+ * <p>
+ * Upload throughput is measured from the reported uploads. Together with the
+ * number of blocks needed per timepoint, this gives an estimate of the
+ * {@link #getSustainableFps() sustainable frame rate}.
+ *
+ * @param <B>
+ *            block type
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public class TimepointPlayback< B > implements BlockUploader.UploadListener
+{
+	private static final int NONE = -1;
+
+	/**
+	 * After how many updates a submitted block that has not been
+	 * {@link #uploaded(long, int) reported} is submitted again.
+	 */
+	private static final int RESUBMIT_AFTER_UPDATES = 100;
+
+	private final BlockRequestPlanner planner;
+
+	private final LongLRUBlockCache< B >[] regions;
+
+	/**
+	 * The timepoint assigned to each region, or {@link #NONE}.
+	 */
+	private final int[] regionTimepoints;
+
+	private final int numPreload;
+
+	private BlockSubmitter< B > submitter;
+
+	/**
+	 * Keys that have been submitted for upload, mapped to the update in which
+	 * they were submitted. Guarded by {@code synchronized (pending)}.
+	 */
+	private final LongIntHash pending = new LongIntHash( 1024 );
+
+	private int numTimepoints = Integer.MAX_VALUE;
+
+	private boolean loop = false;
+
+	private int update = 0;
+
+	// per region statistics of the last update
+
+	/**
+	 * Number of planned blocks that fit into the region.
+	 */
+	private final int[] numPlanned;
+
+	private final int[] numResident;
+
+	// throughput, guarded by synchronized (throughputLock)
+
+	private final Object throughputLock = new Object();
+
+	private long measureStart = System.nanoTime();
+
+	private int measureCount;
+
+	private double blocksPerSecond;
+
+	/**
+	 * @param blockSize
+	 *            size of a block (in voxels).
+	 * @param gridSize
+	 *            size of the grid of blocks in the texture.
+	 * @param numPreload
+	 *            how many timepoints after the shown one to preload.
+	 * @param blockFactory
+	 *            creates blocks for grid positions.
+	 * @param planner
+	 *            plans the blocks needed for a timepoint.
+	 */
+	public TimepointPlayback(
+			final int[] blockSize,
+			final int[] gridSize,
+			final int numPreload,
+			final BlockFactory< B > blockFactory,
+			final BlockRequestPlanner planner )
+	{
+		if ( numPreload < 1 )
+			throw new IllegalArgumentException();
+		final int numRegions = numPreload + 1;
+		final int capacity = ( int ) Intervals.numElements( gridSize );
+		if ( capacity < numRegions )
+			throw new IllegalArgumentException( "texture grid too small" );
+
+		this.planner = planner;
+		this.numPreload = numPreload;
+		@SuppressWarnings( "unchecked" )
+		final LongLRUBlockCache< B >[] r = ( LongLRUBlockCache< B >[] ) new LongLRUBlockCache< ? >[ numRegions ];
+		regions = r;
+		regionTimepoints = new int[ numRegions ];
+		numPlanned = new int[ numRegions ];
+		numResident = new int[ numRegions ];
+		int offset = 0;
+		for ( int i = 0; i < numRegions; ++i )
+		{
+			final int regionCapacity = capacity / numRegions + ( i < capacity % numRegions ? 1 : 0 );
+			regions[ i ] = new LongLRUBlockCache<>( blockSize, gridSize, offset, regionCapacity, blockFactory, LRUEvictionPolicy::new );
+			regions[ i ].addResidencyListener( new ResidencyListener()
+			{
+				@Override
+				public void resident( final long key, final int gridIndex )
+				{}
+
+				@Override
+				public void removed( final long key, final int gridIndex )
+				{}
+
+				@Override
+				public void dropped( final long key, final int gridIndex )
+				{
+					// a pending upload went to the old cell, allow to submit again
+					synchronized ( pending )
+					{
+						pending.remove( key );
+					}
+				}
+			} );
+			regionTimepoints[ i ] = NONE;
+			offset += regionCapacity;
+		}
+	}
+
+	/**
+	 * Set how blocks are submitted for upload.
+	 */
+	public synchronized void setBlockSubmitter( final BlockSubmitter< B > submitter )
+	{
+		this.submitter = submitter;
+	}
+
+	/**
+	 * Set the number of timepoints, and whether playback loops from the last
+	 * to the first timepoint (which decides what is preloaded near the end).
+	 */
+	public synchronized void setTimepoints( final int numTimepoints, final boolean loop )
+	{
+		if ( numTimepoints < 1 )
+			throw new IllegalArgumentException();
+		this.numTimepoints = numTimepoints;
+		this.loop = loop;
+	}
+
+	/**
+	 * Add a listener to all regions. The listener is called from the threads
+	 * that add keys or {@link #uploaded(long, int) report uploads}, and must be
+	 * thread-safe.
+	 */
+	public void addResidencyListener( final ResidencyListener listener )
+	{
+		for ( final LongLRUBlockCache< B > region : regions )
+			synchronized ( region )
+			{
+				region.addResidencyListener( listener );
+			}
+	}
+
+	/**
+	 * Report that the upload of a block to the grid cell {@code gridIndex}
+	 * has completed. Marks the block resident, unless it has been evicted
+	 * from that cell in the meantime. This may be called from any thread.
+	 */
+	@Override
+	public void uploaded( final long key, final int gridIndex )
+	{
+		for ( final LongLRUBlockCache< B > region : regions )
+		{
+			final boolean marked;
+			synchronized ( region )
+			{
+				marked = region.markResident( key, gridIndex );
+			}
+			if ( marked )
+			{
+				synchronized ( pending )
+				{
+					pending.remove( key );
+				}
+				break;
+			}
+		}
+		synchronized ( throughputLock )
+		{
+			final long now = System.nanoTime();
+			if ( measureCount == 0 && now - measureStart > 2000000000L )
+			{
+				// uploads were idle, start a new measurement
+				measureStart = now;
+			}
+			++measureCount;
+			final double seconds = ( now - measureStart ) * 1e-9;
+			if ( seconds >= 0.5 )
+			{
+				final double rate = measureCount / seconds;
+				blocksPerSecond = blocksPerSecond == 0 ? rate : 0.5 * ( blocksPerSecond + rate );
+				measureStart = now;
+				measureCount = 0;
+			}
+		}
+	}
+
+	/**
+	 * Request the blocks for showing {@code timepoint}, and preload the
+	 * following timepoints. Missing blocks of the shown timepoint are
+	 * submitted first. This should be called once per frame.
+	 *
+	 * @param viewerTransform
+	 *            transforms global coordinates to screen coordinates.
+	 * @param width
+	 *            width of the viewport.
+	 * @param height
+	 *            height of the viewport.
+	 * @param timepoint
+	 *            the timepoint that is shown.
+	 * @return whether all blocks of {@code timepoint} are resident.
+	 * @throws IllegalArgumentException
+	 *             if {@code timepoint} is negative, or not less than the
+	 *             number of timepoints (see {@link #setTimepoints(int, boolean)}).
+	 */
+	public synchronized boolean show( final AffineTransform3D viewerTransform, final int width, final int height, final int timepoint )
+	{
+		if ( timepoint < 0 || timepoint >= numTimepoints )
+			throw new IllegalArgumentException( "timepoint " + timepoint + " out of range" );
+
+		++update;
+		assignRegions( timepoint );
+
+		boolean canSubmit = submitter != null;
+		for ( int k = 0; k <= numPreload; ++k )
+		{
+			final int t = timepoint( timepoint, k );
+			if ( t == NONE )
+				continue;
+			final int r = regionOf( t );
+			canSubmit = request( r, viewerTransform, width, height, t, canSubmit );
+		}
+
+		final int r = regionOf( timepoint );
+		return numResident[ r ] == numPlanned[ r ];
+	}
+
+	/**
+	 * Whether all blocks of {@code timepoint} were resident at the last
+	 * {@link #show(AffineTransform3D, int, int, int)}. This is {@code false}
+	 * for timepoints that are not being shown or preloaded.
+	 */
+	public synchronized boolean isReady( final int timepoint )
+	{
+		final int r = regionOf( timepoint );
+		return r != NONE && numResident[ r ] == numPlanned[ r ];
+	}
+
+	/**
+	 * Get the fraction of blocks of {@code timepoint} that were resident at the
+	 * last {@link #show(AffineTransform3D, int, int, int)}.
+	 */
+	public synchronized double getProgress( final int timepoint )
+	{
+		final int r = regionOf( timepoint );
+		if ( r == NONE )
+			return 0;
+		return numPlanned[ r ] == 0 ? 1 : ( double ) numResident[ r ] / numPlanned[ r ];
+	}
+
+	/**
+	 * Get the measured upload throughput (in blocks per second).
+	 */
+	public double getBlocksPerSecond()
+	{
+		synchronized ( throughputLock )
+		{
+			return blocksPerSecond;
+		}
+	}
+
+	/**
+	 * Estimate the highest frame rate (in timepoints per second) at which
+	 * playback can continue without waiting for blocks, from the measured
+	 * upload throughput and the number of blocks needed for the shown
+	 * timepoint. Blocks that are already resident (e.g., of static channels,
+	 * or when looping) are not taken into account, so this is a conservative
+	 * estimate.
+	 *
+	 * @return sustainable frames per second, {@code 0} if no throughput has
+	 *         been measured yet, or infinity if no blocks are needed.
+	 */
+	public synchronized double getSustainableFps()
+	{
+		int maxPlanned = 0;
+		for ( final int n : numPlanned )
+			maxPlanned = Math.max( maxPlanned, n );
+		if ( maxPlanned == 0 )
+			return Double.POSITIVE_INFINITY;
+		return getBlocksPerSecond() / maxPlanned;
+	}
+
+	/**
+	 * Whether playback at {@code fps} timepoints per second is sustainable.
+	 *
+	 * @see #getSustainableFps()
+	 */
+	public boolean isSustainable( final double fps )
+	{
+		return getSustainableFps() >= fps;
+	}
+
+	/**
+	 * Get the number of blocks each region can hold.
+	 */
+	public int getRegionCapacity()
+	{
+		return regions[ regions.length - 1 ].getCapacity();
+	}
+
+	/**
+	 * Get the timepoint {@code k} steps after {@code timepoint}, or
+	 * {@link #NONE} if playback does not get there.
+	 */
+	private int timepoint( final int timepoint, final int k )
+	{
+		final long t = ( long ) timepoint + k;
+		if ( t < numTimepoints )
+			return ( int ) t;
+		if ( loop )
+			return ( int ) ( t % numTimepoints );
+		return NONE;
+	}
+
+	private int regionOf( final int timepoint )
+	{
+		for ( int r = 0; r < regions.length; ++r )
+			if ( regionTimepoints[ r ] == timepoint )
+				return r;
+		return NONE;
+	}
+
+	/**
+	 * Keep regions that are assigned to one of the timepoints needed now,
+	 * re-assign the others.
+	 */
+	private void assignRegions( final int timepoint )
+	{
+		for ( int r = 0; r < regions.length; ++r )
+		{
+			final int rt = regionTimepoints[ r ];
+			boolean needed = false;
+			for ( int k = 0; k <= numPreload && !needed; ++k )
+				needed = rt != NONE && rt == timepoint( timepoint, k );
+			if ( !needed )
+			{
+				regionTimepoints[ r ] = NONE;
+				numPlanned[ r ] = 0;
+				numResident[ r ] = 0;
+			}
+		}
+		for ( int k = 0; k <= numPreload; ++k )
+		{
+			final int t = timepoint( timepoint, k );
+			if ( t == NONE || regionOf( t ) != NONE )
+				continue;
+			for ( int r = 0; r < regions.length; ++r )
+				if ( regionTimepoints[ r ] == NONE )
+				{
+					regionTimepoints[ r ] = t;
+					break;
+				}
+		}
+	}
+
+	/**
+	 * Plan and request the blocks of timepoint {@code t} into region
+	 * {@code r}, and submit missing blocks.
+	 *
+	 * @return whether the submitter still accepts blocks.
+	 */
+	private boolean request( final int r, final AffineTransform3D viewerTransform, final int width, final int height, final int t, boolean canSubmit )
+	{
+		final int n = planner.plan( viewerTransform, width, height, t );
+		final long[] keys = planner.getKeys();
+
+		final LongLRUBlockCache< B > region = regions[ r ];
+		synchronized ( region )
+		{
+			region.beginFrame();
+		}
+		int resolved = 0;
+		int resident = 0;
+		for ( int i = 0; i < n; ++i )
+		{
+			final long key = keys[ i ];
+			B block = null;
+			boolean isResident = false;
+			int gridIndex = -1;
+			for ( final LongLRUBlockCache< B > other : regions )
+				synchronized ( other )
+				{
+					block = other.get( key );
+					if ( block != null )
+					{
+						isResident = other.isResident( key );
+						gridIndex = other.getGridIndex( key );
+						break;
+					}
+				}
+			if ( block == null )
+				synchronized ( region )
+				{
+					block = region.add( key );
+					gridIndex = region.getGridIndex( key );
+				}
+			if ( block == null )
+				continue;
+			++resolved;
+			if ( isResident )
+			{
+				++resident;
+				continue;
+			}
+			if ( canSubmit )
+				canSubmit = submit( key, gridIndex, block );
+		}
+		synchronized ( region )
+		{
+			region.endFrame();
+		}
+
+		numPlanned[ r ] = resolved;
+		numResident[ r ] = resident;
+		return canSubmit;
+	}
+
+	/**
+	 * Submit {@code key} (in grid cell {@code gridIndex}) for upload, unless
+	 * it is pending.
+	 *
+	 * @return whether the submitter accepted the block (or it was pending).
+	 */
+	private boolean submit( final long key, final int gridIndex, final B block )
+	{
+		synchronized ( pending )
+		{
+			final int submitted = pending.get( key );
+			if ( submitted != LongIntHash.NO_ENTRY && update - submitted <= RESUBMIT_AFTER_UPDATES )
+				return true;
+			pending.put( key, update );
+		}
+		if ( submitter.submit( key, gridIndex, block ) )
+			return true;
+		synchronized ( pending )
+		{
+			pending.remove( key );
+		}
+		return false;
+	}
+}
@@ -0,0 +1,21 @@
+package bdv.volume;
+
+/**
+ * Maps voxel values to opacity.
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public interface TransferFunction
+{
+	/**
+	 * Get the opacity (in {@code [0, 1]}) of a voxel value.
+	 */
+	public float alpha( float value );
+
+	/**
+	 * Whether all values in {@code [min, max]} are mapped to opacity 0. This
+	 * may be conservative, i.e., return {@code false} for ranges that are in
+	 * fact transparent.
+	 */
+	public boolean isTransparent( float min, float max );
+}
@@ -0,0 +1,86 @@
+package bdv.volume;
+
+import java.util.function.IntPredicate;
+
+/**
+ * The 2Q policy of Johnson and Shasha.
+ * <p>
+ * Newly inserted keys enter a FIFO queue {@code A1in}. Keys evicted from
+ * {@code A1in} are remembered in a ghost queue {@code A1out}. Only if a key is
+ * inserted again while it is remembered in {@code A1out} (that is, it was
+ * re-used after a while) it enters the LRU queue {@code Am}. Keys that are
+ * used once, for example while scrolling through a volume, therefore never
+ * displace the working set in {@code Am}.
+ *
+ * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
+ */
+public class TwoQEvictionPolicy implements EvictionPolicy
+{
+	private static final int A1IN = 0;
+
+	private static final int AM = 1;
+
+	private final SlotLists queues;
+
+	private final GhostList a1out;
+
+	private final int maxA1inSize;
+
+	/**
+	 * Create a 2Q policy with the recommended parameters: {@code A1in} holds
+	 * 25% of the slots, {@code A1out} remembers as many keys as half the
+	 * number of slots.
+	 */
+	public TwoQEvictionPolicy( final int capacity )
+	{
+		this( capacity, 0.25, 0.5 );
+	}
+
+	/**
+	 * @param a1inFraction
+	 *            target size of {@code A1in}, as a fraction of
+	 *            {@code capacity}.
+	 * @param a1outFraction
+	 *            size of {@code A1out}, as a fraction of {@code capacity}.
+	 */
+	public TwoQEvictionPolicy( final int capacity, final double a1inFraction, final double a1outFraction )
+	{
+		queues = new SlotLists( capacity, 2 );
+		a1out = new GhostList( ( int ) ( a1outFraction * capacity ) );
+		maxA1inSize = Math.max( 1, ( int ) ( a1inFraction * capacity ) );
+	}
+
+	@Override
+	public void inserted( final int slot, final long key )
+	{
+		if ( a1out.remove( key ) )
+			queues.addFirst( AM, slot );
+		else
+			queues.addFirst( A1IN, slot );
+	}
+
+	@Override
+	public void accessed( final int slot )
+	{
+		if ( queues.listOf( slot ) == AM && queues.first( AM ) != slot )
+			queues.addFirst( AM, slot );
+	}
+
+	@Override
+	public void removed( final int slot, final long key )
+	{
+		if ( queues.listOf( slot ) == A1IN )
+			a1out.add( key );
+		queues.remove( slot );
+	}
+
+	@Override
+	public int victim( final long key, final IntPredicate evictable )
+	{
+		final int first = queues.size( A1IN ) > maxA1inSize ? A1IN : AM;
+		final int slot = queues.lastMatching( first, evictable );
+		return slot != SlotLists.NIL
+				? slot
+				: queues.lastMatching( 1 - first, evictable );
+	}
+}
@@ -0,0 +1,189 @@
+package cl;
+
+import static org.jocl.CL.*;
+
+import org.jocl.CL;
+import org.jocl.Pointer;
+import org.jocl.cl_event;
+import org.jocl.cl_mem;
+
+public class CLBuffer
+{
+	private final CLContext context;
+
+	private final cl_mem memobj;
+
+	private final long size;
+
+	private Pointer pointer;
+
+	private boolean released;
+
+	/**
+	 * The last write through the {@code enqueueWrite} methods that wait for
+	 * enqueued kernels (retained), which kernels that use this buffer wait for
+	 * (see {@link CLKernel#setArg(int, CLBuffer)}). {@code null} if there was none,
+	 * or writes and kernels share one in-order queue.
+	 */
+	private cl_event lastWrite;
+
+	/**
+	 * Create an OpenCL buffer.
+	 *
+	 * @param context
+	 *            the OpenCL context.
+	 * @param flags
+	 *            A bit-field that is used to specify allocation and usage
+	 *            information, see clCreateBuffer, e.g.,
+	 *            {@link CL#CL_MEM_READ_ONLY}.
+	 * @param size
+	 *            size of the buffer in bytes.
+	 */
+	public CLBuffer(
+			final CLContext context,
+			final long flags,
+			final long size )
+	{
+		this.context = context;
+		this.size = size;
+		memobj = clCreateBuffer( context.getContext(), flags, size, null, null );
+		released = false;
+	}
+
+	public Pointer getPointer()
+	{
+		if ( pointer == null )
+			pointer = Pointer.to( memobj );
+		return pointer;
+	}
+
+	public cl_mem getMem()
+	{
+		return memobj;
+	}
+
+	/**
+	 * Get the size of the buffer in bytes.
+	 */
+	public long getSize()
+	{
+		return size;
+	}
+
+	public void release()
+	{
+		CL.clReleaseMemObject( memobj );
+		released = true;
+		setLastWrite( null );
+	}
+
+	/**
+	 * Get the last write that kernels using this buffer must wait for, retained
+	 * (the caller must release it), or {@code null}.
+	 */
+	synchronized cl_event retainLastWrite()
+	{
+		if ( lastWrite != null )
+			clRetainEvent( lastWrite );
+		return lastWrite;
+	}
+
+	private synchronized void setLastWrite( final cl_event write )
+	{
+		if ( lastWrite != null )
+			clReleaseEvent( lastWrite );
+		lastWrite = write;
+	}
+
+	/**
+	 * Write {@code numBytes} from host memory to the start of the buffer,
+	 * blocking until the data has been copied.
+	 */
+	public void enqueueWrite( final Pointer ptr, final long numBytes )
+	{
+		enqueueWrite( ptr, 0, numBytes, true, null );
+	}
+
+	/**
+	 * Write a range of the buffer from host memory, after all kernels that
+	 * have been enqueued so far (see {@link CLContext#enqueueKernelMarker()}).
+	 * Kernels enqueued afterwards with this buffer as an argument wait for the
+	 * write to complete.
+	 * <p>
+	 * If {@code blocking == false}, the call returns immediately, and the
+	 * memory referenced by {@code ptr} must not be modified (or freed) until
+	 * {@code event} completes. On an out-of-order upload queue, a non-blocking
+	 * write is not ordered with respect to other writes; use
+	 * {@link #enqueueWrite(Pointer, long, long, boolean, cl_event[], cl_event)}
+	 * to express that.
+	 *
+	 * @param offset
+	 *            offset in the buffer in bytes.
+	 * @param numBytes
+	 *            number of bytes to write.
+	 * @param blocking
+	 *            whether to wait until the data has been copied.
+	 * @param event
+	 *            if not {@code null}, receives an event that identifies the
+	 *            write command.
+	 */
+	public void enqueueWrite(
+			final Pointer ptr,
+			final long offset,
+			final long numBytes,
+			final boolean blocking,
+			final cl_event event )
+	{
+		final cl_event marker = context.enqueueKernelMarker();
+		if ( marker == null )
+			enqueueWrite( ptr, offset, numBytes, blocking, null, event );
+		else
+		{
+			final cl_event write = event != null ? event : new cl_event();
+			try
+			{
+				enqueueWrite( ptr, offset, numBytes, blocking, new cl_event[] { marker }, write );
+			}
+			finally
+			{
+				clReleaseEvent( marker );
+			}
+			if ( write == event )
+				clRetainEvent( write );
+			setLastWrite( write );
+		}
+	}
+
+	/**
+	 * Write a range of the buffer from host memory, after the commands in
+	 * {@code waitList} have completed. Unlike
+	 * {@link #enqueueWrite(Pointer, long, long, boolean, cl_event)}, this does
+	 * not wait for enqueued kernels, and kernels do not wait for it.
+	 *
+	 * @param waitList
+	 *            events to wait for, or {@code null}.
+	 */
+	public void enqueueWrite(
+			final Pointer ptr,
+			final long offset,
+			final long numBytes,
+			final boolean blocking,
+			final cl_event[] waitList,
+			final cl_event event )
+	{
+		if ( released )
+			throw new IllegalStateException();
+
+		final int numEvents = waitList == null ? 0 : waitList.length;
+		final CLProfiler profiler = context.getProfiler();
+		final cl_event e = ( profiler != null && event == null ) ? new cl_event() : event;
+		clEnqueueWriteBuffer(
+				context.getUploadQueue(), memobj, blocking, offset, numBytes, ptr, numEvents, numEvents == 0 ? null : waitList, e );
+		if ( profiler != null )
+		{
+			profiler.track( "write:buffer", e, numBytes );
+			if ( e != event )
+				clReleaseEvent( e );
+		}
+	}
+}
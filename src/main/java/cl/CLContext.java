@@ -1,11 +1,68 @@
 package cl;
 
+import static org.jocl.CL.clEnqueueMarkerWithWaitList;
+
 import org.jocl.cl_command_queue;
 import org.jocl.cl_context;
+import org.jocl.cl_device_id;
+import org.jocl.cl_event;
 
 public interface CLContext
 {
 	public cl_context getContext();
 
+	/**
+	 * Get the queue for kernels (and everything that is not a host-to-device
+	 * transfer).
+	 */
 	public cl_command_queue getCommandQueue();
+
+	public cl_device_id getDevice();
+
+	/**
+	 * Get the queue for host-to-device transfers. If this is not the
+	 * {@link #getCommandQueue() command queue}, transfers overlap with
+	 * kernels, and a kernel may only use data whose transfer has completed.
+	 */
+	public default cl_command_queue getUploadQueue()
+	{
+		return getCommandQueue();
+	}
+
+	/**
+	 * Whether the queues execute commands out of order. If so, dependencies
+	 * between commands must be expressed with events.
+	 */
+	public default boolean isOutOfOrder()
+	{
+		return false;
+	}
+
+	/**
+	 * Enqueue a marker on the {@link #getCommandQueue() command queue} that
+	 * completes when all kernels enqueued so far have completed. Writes that
+	 * overwrite memory these kernels may still read must wait for it.
+	 *
+	 * @return the marker, which the caller must release, or {@code null} if
+	 *         writes are ordered after all enqueued kernels anyway (single
+	 *         in-order queue).
+	 */
+	public default cl_event enqueueKernelMarker()
+	{
+		if ( getUploadQueue() == getCommandQueue() && !isOutOfOrder() )
+			return null;
+		final cl_event marker = new cl_event();
+		clEnqueueMarkerWithWaitList( getCommandQueue(), 0, null, marker );
+		return marker;
+	}
+
+	/**
+	 * Get the profiler that records kernel launches and writes, or
+	 * {@code null} if the queues are not created with
+	 * {@code CL_QUEUE_PROFILING_ENABLE}.
+	 */
+	public default CLProfiler getProfiler()
+	{
+		return null;
+	}
 }
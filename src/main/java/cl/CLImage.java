@@ -4,6 +4,7 @@ import static org.jocl.CL.*;
 
 import org.jocl.CL;
 import org.jocl.Pointer;
+import org.jocl.Sizeof;
 import org.jocl.cl_command_queue;
 import org.jocl.cl_event;
 import org.jocl.cl_image_desc;
@@ -24,10 +25,24 @@ public class CLImage implements EuclideanSpace
 
 	private final int numDimensions;
 
+	private final long[] fullOrigin;
+
+	private final long[] fullRegion;
+
 	private Pointer pointer;
 
+	private long elementSize;
+
 	private boolean released;
 
+	/**
+	 * The last write through the {@code enqueueWrite} methods that wait for
+	 * enqueued kernels (retained), which kernels that use this image wait for
+	 * (see {@link CLKernel#setArg(int, CLImage)}). {@code null} if there was none,
+	 * or writes and kernels share one in-order queue.
+	 */
+	private cl_event lastWrite;
+
 	/**
 	 * Create an OpenCL image.
 	 *
@@ -84,6 +99,12 @@ public class CLImage implements EuclideanSpace
 		else
 			throw new IllegalArgumentException();
 
+		fullOrigin = new long[] { 0, 0, 0 };
+		fullRegion = new long[] {
+				image_desc.image_width,
+				image_desc.image_height,
+				image_desc.image_depth };
+
 		final Pointer host_ptr = null;
 		final int errcode_ret[] = null;
 
@@ -102,18 +123,44 @@ public class CLImage implements EuclideanSpace
 	{
 		CL.clReleaseMemObject( memobj );
 		released = true;
+		setLastWrite( null );
+	}
+
+	/**
+	 * Get the last write that kernels using this image must wait for, retained
+	 * (the caller must release it), or {@code null}.
+	 */
+	synchronized cl_event retainLastWrite()
+	{
+		if ( lastWrite != null )
+			clRetainEvent( lastWrite );
+		return lastWrite;
 	}
 
+	private synchronized void setLastWrite( final cl_event write )
+	{
+		if ( lastWrite != null )
+			clReleaseEvent( lastWrite );
+		lastWrite = write;
+	}
+
+	/**
+	 * Write the complete image from host memory, blocking until the data has
+	 * been copied.
+	 */
 	public void enqueueWrite( final Pointer ptr )
 	{
-		final long[] origin = new long[] { 0, 0, 0 };
-		final long[] region = new long[] {
-				image_desc.image_width,
-				image_desc.image_height,
-				image_desc.image_depth };
-		enqueueWrite( ptr, origin, region );
+		enqueueWrite( ptr, fullOrigin, fullRegion );
 	}
 
+	/**
+	 * Write a region of the image from host memory, blocking until the data has
+	 * been copied.
+	 *
+	 * @param originAndRegion
+	 *            origin followed by size of the region, {@code 2 *}
+	 *            {@link #numDimensions()} values.
+	 */
 	public void enqueueWrite(
 			final Pointer ptr,
 			final long ... originAndRegion )
@@ -130,20 +177,119 @@ public class CLImage implements EuclideanSpace
 		enqueueWrite( ptr, origin, region );
 	}
 
+	/**
+	 * Write a region of the image from host memory, blocking until the data has
+	 * been copied.
+	 */
 	public void enqueueWrite(
 			final Pointer ptr,
 			final long[] origin,
 			final long[] region )
 	{
-		final cl_command_queue queue = context.getCommandQueue();
-		final boolean blocking_write = true;
+		enqueueWrite( ptr, origin, region, true, null );
+	}
+
+	/**
+	 * Write a region of the image from host memory, after all kernels that
+	 * have been enqueued so far (see {@link CLContext#enqueueKernelMarker()}).
+	 * Kernels enqueued afterwards with this image as an argument wait for the
+	 * write to complete.
+	 * <p>
+	 * If {@code blocking == false}, the call returns immediately, and the
+	 * memory referenced by {@code ptr} must not be modified (or freed) until
+	 * {@code event} completes. {@code origin} and {@code region} are copied by
+	 * OpenCL and can be re-used right away. On an out-of-order upload queue,
+	 * a non-blocking write is not ordered with respect to other writes; use
+	 * {@link #enqueueWrite(Pointer, long[], long[], boolean, cl_event[], cl_event)}
+	 * to express that.
+	 *
+	 * @param origin
+	 *            origin of the region, 3 values (unused dimensions must be
+	 *            0).
+	 * @param region
+	 *            size of the region, 3 values (unused dimensions must be 1).
+	 * @param blocking
+	 *            whether to wait until the data has been copied.
+	 * @param event
+	 *            if not {@code null}, receives an event that identifies the
+	 *            write command.
+	 */
+	public void enqueueWrite(
+			final Pointer ptr,
+			final long[] origin,
+			final long[] region,
+			final boolean blocking,
+			final cl_event event )
+	{
+		final cl_event marker = context.enqueueKernelMarker();
+		if ( marker == null )
+			enqueueWrite( ptr, origin, region, blocking, null, event );
+		else
+		{
+			final cl_event write = event != null ? event : new cl_event();
+			try
+			{
+				enqueueWrite( ptr, origin, region, blocking, new cl_event[] { marker }, write );
+			}
+			finally
+			{
+				clReleaseEvent( marker );
+			}
+			if ( write == event )
+				clRetainEvent( write );
+			setLastWrite( write );
+		}
+	}
+
+	/**
+	 * Write a region of the image from host memory, after the commands in
+	 * {@code waitList} have completed. Unlike
+	 * {@link #enqueueWrite(Pointer, long[], long[], boolean, cl_event)}, this
+	 * does not wait for enqueued kernels, and kernels do not wait for it.
+	 *
+	 * @param waitList
+	 *            events to wait for, or {@code null}.
+	 */
+	public void enqueueWrite(
+			final Pointer ptr,
+			final long[] origin,
+			final long[] region,
+			final boolean blocking,
+			final cl_event[] waitList,
+			final cl_event event )
+	{
+		if ( released )
+			throw new IllegalStateException();
+
+		final cl_command_queue queue = context.getUploadQueue();
 		final long input_row_pitch = 0;
 		final long input_slice_pitch = 0;
-		final int num_events_in_wait_list = 0;
-		final cl_event[] event_wait_list = null;
-		final cl_event event = null;
+		final int num_events_in_wait_list = waitList == null ? 0 : waitList.length;
+		final cl_event[] event_wait_list = num_events_in_wait_list == 0 ? null : waitList;
+		final CLProfiler profiler = context.getProfiler();
+		final cl_event e = ( profiler != null && event == null ) ? new cl_event() : event;
 		clEnqueueWriteImage(
-				queue, memobj, blocking_write, origin, region, input_row_pitch, input_slice_pitch, ptr, num_events_in_wait_list, event_wait_list, event );
+				queue, memobj, blocking, origin, region, input_row_pitch, input_slice_pitch, ptr, num_events_in_wait_list, event_wait_list, e );
+		if ( profiler != null )
+		{
+			profiler.track( "write:image", e, getElementSize() * region[ 0 ] * region[ 1 ] * region[ 2 ] );
+			if ( e != event )
+				clReleaseEvent( e );
+		}
+	}
+
+	/**
+	 * Get the size of a voxel in bytes.
+	 */
+	public long getElementSize()
+	{
+		if ( elementSize == 0 )
+		{
+			final long[] size = new long[ 1 ];
+			clGetImageInfo( memobj, CL_IMAGE_ELEMENT_SIZE, Sizeof.size_t, Pointer.to( size ), null );
+			elementSize = size[ 0 ];
+		}
+		return elementSize;
 	}
 
 	@Override
@@ -1,21 +1,53 @@
 package cl;
 
+import static org.jocl.CL.CL_SUCCESS;
+import static org.jocl.CL.clEnqueueNDRangeKernel;
+import static org.jocl.CL.clReleaseEvent;
 import static org.jocl.CL.clSetKernelArg;
 
+import java.util.Arrays;
+
 import org.jocl.CL;
+import org.jocl.Pointer;
 import org.jocl.Sizeof;
+import org.jocl.cl_event;
 import org.jocl.cl_kernel;
 
 public class CLKernel
 {
+	private final CLProgram program;
+
 	private final String name;
 
 	private final cl_kernel kernel;
 
 	private boolean released;
 
+	/**
+	 * The tuner (and its {@link CLWorkSizeTuner#getGeneration() generation})
+	 * that {@link #tunedLocalWorkSizes} were looked up from.
+	 */
+	private CLWorkSizeTuner tuner;
+
+	private int tunerGeneration;
+
+	/**
+	 * Tuned local work sizes, indexed by number of dimensions, looked up
+	 * once per dimension (see {@link #tunedLookedUp}).
+	 */
+	private final long[][] tunedLocalWorkSizes = new long[ 4 ][];
+
+	private final boolean[] tunedLookedUp = new boolean[ 4 ];
+
+	/**
+	 * {@link CLBuffer} and {@link CLImage} arguments, by index. Launches wait
+	 * for their last writes (see {@link CLBuffer#retainLastWrite()}).
+	 */
+	private Object[] memArgs = new Object[ 8 ];
+
 	CLKernel( final CLProgram program, final String name )
 	{
+		this.program = program;
 		this.name = name;
 		kernel = CL.clCreateKernel( program.getProgram(), name, null );
 		released = false;
@@ -29,6 +61,266 @@ public class CLKernel
 			throw new IllegalStateException();
 
 		clSetKernelArg( kernel, argIndex, Sizeof.cl_mem, texture.getPointer() );
+		setMemArg( argIndex, null );
+	}
+
+	public void setArg(
+			final int argIndex,
+			final CLImage image )
+	{
+		if ( released )
+			throw new IllegalStateException();
+
+		clSetKernelArg( kernel, argIndex, Sizeof.cl_mem, image.getPointer() );
+		setMemArg( argIndex, image );
+	}
+
+	public void setArg(
+			final int argIndex,
+			final CLBuffer buffer )
+	{
+		if ( released )
+			throw new IllegalStateException();
+
+		clSetKernelArg( kernel, argIndex, Sizeof.cl_mem, buffer.getPointer() );
+		setMemArg( argIndex, buffer );
+	}
+
+	public void setArg(
+			final int argIndex,
+			final int value )
+	{
+		if ( released )
+			throw new IllegalStateException();
+
+		clSetKernelArg( kernel, argIndex, Sizeof.cl_int, Pointer.to( new int[] { value } ) );
+		setMemArg( argIndex, null );
+	}
+
+	public void setArg(
+			final int argIndex,
+			final long value )
+	{
+		if ( released )
+			throw new IllegalStateException();
+
+		clSetKernelArg( kernel, argIndex, Sizeof.cl_long, Pointer.to( new long[] { value } ) );
+		setMemArg( argIndex, null );
+	}
+
+	public void setArg(
+			final int argIndex,
+			final float value )
+	{
+		if ( released )
+			throw new IllegalStateException();
+
+		clSetKernelArg( kernel, argIndex, Sizeof.cl_float, Pointer.to( new float[] { value } ) );
+		setMemArg( argIndex, null );
+	}
+
+	/**
+	 * Set an {@code intN} argument. {@code int3} arguments take 3 values (and
+	 * are passed with the size of {@code int4}).
+	 *
+	 * @param values
+	 *            2, 3, 4, 8, or 16 values.
+	 */
+	public void setArg(
+			final int argIndex,
+			final int[] values )
+	{
+		if ( released )
+			throw new IllegalStateException();
+
+		final int[] v = new int[ vectorSize( values.length ) ];
+		System.arraycopy( values, 0, v, 0, values.length );
+		clSetKernelArg( kernel, argIndex, ( long ) Sizeof.cl_int * v.length, Pointer.to( v ) );
+		setMemArg( argIndex, null );
+	}
+
+	/**
+	 * Set a {@code floatN} argument. {@code float3} arguments take 3 values
+	 * (and are passed with the size of {@code float4}).
+	 *
+	 * @param values
+	 *            2, 3, 4, 8, or 16 values.
+	 */
+	public void setArg(
+			final int argIndex,
+			final float[] values )
+	{
+		if ( released )
+			throw new IllegalStateException();
+
+		final float[] v = new float[ vectorSize( values.length ) ];
+		System.arraycopy( values, 0, v, 0, values.length );
+		clSetKernelArg( kernel, argIndex, ( long ) Sizeof.cl_float * v.length, Pointer.to( v ) );
+		setMemArg( argIndex, null );
+	}
+
+	/**
+	 * Set a {@code __local} argument, allocating {@code numBytes} of local
+	 * memory per work group.
+	 */
+	public void setLocalArg(
+			final int argIndex,
+			final long numBytes )
+	{
+		if ( released )
+			throw new IllegalStateException();
+
+		clSetKernelArg( kernel, argIndex, numBytes, null );
+		setMemArg( argIndex, null );
+	}
+
+	private void setMemArg( final int argIndex, final Object mem )
+	{
+		if ( argIndex >= memArgs.length )
+		{
+			if ( mem == null )
+				return;
+			memArgs = Arrays.copyOf( memArgs, Math.max( argIndex + 1, 2 * memArgs.length ) );
+		}
+		memArgs[ argIndex ] = mem;
+	}
+
+	/**
+	 * Get the last writes to buffer and image arguments (retained, the caller
+	 * must release them), or {@code null} if there are none.
+	 */
+	private cl_event[] retainLastWrites()
+	{
+		cl_event[] writes = null;
+		int n = 0;
+		for ( final Object mem : memArgs )
+		{
+			final cl_event write;
+			if ( mem instanceof CLBuffer )
+				write = ( ( CLBuffer ) mem ).retainLastWrite();
+			else if ( mem instanceof CLImage )
+				write = ( ( CLImage ) mem ).retainLastWrite();
+			else
+				continue;
+			if ( write == null )
+				continue;
+			if ( writes == null )
+				writes = new cl_event[ memArgs.length ];
+			writes[ n++ ] = write;
+		}
+		return writes == null ? null : Arrays.copyOf( writes, n );
+	}
+
+	/**
+	 * Enqueue the kernel on the command queue of {@code context}, with the
+	 * local work size {@link CLWorkSizeTuner#get(CLContext, CLKernel, long[])
+	 * tuned} by the {@link CLWorkSizeTuner#getDefault() default tuner} (or
+	 * chosen by the driver, if it is not tuned).
+	 */
+	public void enqueue(
+			final CLContext context,
+			final long... globalWorkSize )
+	{
+		enqueue( context, globalWorkSize, tunedLocalWorkSize( globalWorkSize ), null );
+	}
+
+	/**
+	 * Get the local work size from the default tuner, or {@code null}. The
+	 * tuned size is parsed once per number of dimensions, and looked up again
+	 * only if the default tuner or its choices change.
+	 */
+	private long[] tunedLocalWorkSize( final long[] globalWorkSize )
+	{
+		final CLWorkSizeTuner t = CLWorkSizeTuner.getDefault();
+		final int n = globalWorkSize.length;
+		if ( t == null || n < 1 || n > 3 )
+			return null;
+
+		final int generation = t.getGeneration();
+		if ( t != tuner || generation != tunerGeneration )
+		{
+			tuner = t;
+			tunerGeneration = generation;
+			Arrays.fill( tunedLookedUp, false );
+		}
+		if ( !tunedLookedUp[ n ] )
+		{
+			tunedLocalWorkSizes[ n ] = t.get( this, n );
+			tunedLookedUp[ n ] = true;
+		}
+		final long[] localWorkSize = tunedLocalWorkSizes[ n ];
+		return CLWorkSizeTuner.divides( localWorkSize, globalWorkSize ) ? localWorkSize : null;
+	}
+
+	/**
+	 * Enqueue the kernel on the command queue of {@code context}. If writes go
+	 * through a separate or out-of-order queue, the kernel waits for the last
+	 * write to each of its {@link CLBuffer} and {@link CLImage} arguments
+	 * (through their {@code enqueueWrite} methods that wait for kernels).
+	 *
+	 * @param globalWorkSize
+	 *            global work size (1, 2, or 3 dimensions).
+	 * @param localWorkSize
+	 *            local work size (each dimension must divide the global work
+	 *            size), or {@code null} to let the driver choose.
+	 * @param event
+	 *            if not {@code null}, receives an event that identifies the
+	 *            kernel execution.
+	 * @return the status returned by {@code clEnqueueNDRangeKernel} (if
+	 *         exceptions are enabled, failures are thrown instead).
+	 */
+	public int enqueue(
+			final CLContext context,
+			final long[] globalWorkSize,
+			final long[] localWorkSize,
+			final cl_event event )
+	{
+		if ( released )
+			throw new IllegalStateException();
+		if ( globalWorkSize.length < 1 || globalWorkSize.length > 3
+				|| ( localWorkSize != null && localWorkSize.length != globalWorkSize.length ) )
+			throw new IllegalArgumentException();
+
+		final CLProfiler profiler = context.getProfiler();
+		final cl_event e = ( profiler != null && event == null ) ? new cl_event() : event;
+		final cl_event[] waitList = retainLastWrites();
+		final int status;
+		try
+		{
+			status = clEnqueueNDRangeKernel(
+					context.getCommandQueue(),
+					kernel,
+					globalWorkSize.length,
+					null,
+					globalWorkSize,
+					localWorkSize,
+					waitList == null ? 0 : waitList.length,
+					waitList,
+					e );
+		}
+		finally
+		{
+			if ( waitList != null )
+				for ( final cl_event write : waitList )
+					clReleaseEvent( write );
+		}
+		if ( profiler != null && status == CL_SUCCESS )
+		{
+			profiler.track( "kernel:" + name, e, 0 );
+			if ( e != event )
+				clReleaseEvent( e );
+		}
+		return status;
+	}
+
+	public CLProgram getProgram()
+	{
+		return program;
+	}
+
+	public String getName()
+	{
+		return name;
 	}
 
 	public cl_kernel getKernel()
@@ -47,4 +339,20 @@ public class CLKernel
 	{
 		return kernel + " (name = " + name + ")";
 	}
+
+	private static int vectorSize( final int numValues )
+	{
+		switch ( numValues )
+		{
+		case 2:
+		case 4:
+		case 8:
+		case 16:
+			return numValues;
+		case 3:
+			return 4;
+		default:
+			throw new IllegalArgumentException( "invalid vector size " + numValues );
+		}
+	}
 }
@@ -0,0 +1,227 @@
+package cl;
+
+import java.util.Arrays;
+
+public class CLOperationStats
+{
+	/**
+	 * Number of {@link #getHistogram() histogram} buckets.
+	 */
+	public static final int NUM_BUCKETS = 24;
+
+	private final String name;
+
+	private final long count;
+
+	private final long totalNanos;
+
+	private final long totalBytes;
+
+	private final int windowCount;
+
+	private final long meanNanos;
+
+	private final long medianNanos;
+
+	private final long p90Nanos;
+
+	private final long p99Nanos;
+
+	private final long maxNanos;
+
+	private final long meanQueuedNanos;
+
+	private final long meanSubmittedNanos;
+
+	private final double bandwidth;
+
+	private final long[] histogram;
+
+	/**
+	 * Compute statistics for a named operation from the execution times
+	 * ({@code end - start}), queue times ({@code submit - queued}), submit
+	 * times ({@code start - submit}), and transferred bytes of the last
+	 * {@code windowCount} commands.
+	 */
+	CLOperationStats(
+			final String name,
+			final long count,
+			final long totalNanos,
+			final long totalBytes,
+			final long[] execNanos,
+			final long[] queuedNanos,
+			final long[] submittedNanos,
+			final long[] bytes,
+			final int windowCount )
+	{
+		this.name = name;
+		this.count = count;
+		this.totalNanos = totalNanos;
+		this.totalBytes = totalBytes;
+		this.windowCount = windowCount;
+
+		histogram = new long[ NUM_BUCKETS ];
+		final long[] sorted = new long[ windowCount ];
+		long sumExec = 0, sumQueued = 0, sumSubmitted = 0, sumBytes = 0;
+		for ( int i = 0; i < windowCount; ++i )
+		{
+			sorted[ i ] = execNanos[ i ];
+			sumExec += execNanos[ i ];
+			sumQueued += queuedNanos[ i ];
+			sumSubmitted += submittedNanos[ i ];
+			sumBytes += bytes[ i ];
+			++histogram[ bucket( execNanos[ i ] ) ];
+		}
+		Arrays.sort( sorted );
+
+		if ( windowCount == 0 )
+		{
+			meanNanos = medianNanos = p90Nanos = p99Nanos = maxNanos = 0;
+			meanQueuedNanos = meanSubmittedNanos = 0;
+			bandwidth = 0;
+		}
+		else
+		{
+			meanNanos = sumExec / windowCount;
+			medianNanos = percentile( sorted, 0.5 );
+			p90Nanos = percentile( sorted, 0.9 );
+			p99Nanos = percentile( sorted, 0.99 );
+			maxNanos = sorted[ windowCount - 1 ];
+			meanQueuedNanos = sumQueued / windowCount;
+			meanSubmittedNanos = sumSubmitted / windowCount;
+			bandwidth = sumExec == 0 ? 0 : sumBytes * 1e9 / sumExec;
+		}
+	}
+
+	/**
+	 * Get the name of the operation, e.g., {@code "kernel:scatter"} or
+	 * {@code "write:image"}.
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Get the total number of commands since the last reset.
+	 */
+	public long getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Get the total execution time of all commands since the last reset.
+	 */
+	public long getTotalNanos()
+	{
+		return totalNanos;
+	}
+
+	/**
+	 * Get the total number of bytes transferred since the last reset.
+	 */
+	public long getTotalBytes()
+	{
+		return totalBytes;
+	}
+
+	/**
+	 * Get the number of recent commands that the remaining statistics are
+	 * computed from.
+	 */
+	public int getWindowCount()
+	{
+		return windowCount;
+	}
+
+	/**
+	 * Get the mean execution time ({@code start} to {@code end}).
+	 */
+	public long getMeanNanos()
+	{
+		return meanNanos;
+	}
+
+	public long getMedianNanos()
+	{
+		return medianNanos;
+	}
+
+	public long getP90Nanos()
+	{
+		return p90Nanos;
+	}
+
+	public long getP99Nanos()
+	{
+		return p99Nanos;
+	}
+
+	public long getMaxNanos()
+	{
+		return maxNanos;
+	}
+
+	/**
+	 * Get the mean time from enqueueing a command to submitting it to the
+	 * device.
+	 */
+	public long getMeanQueuedNanos()
+	{
+		return meanQueuedNanos;
+	}
+
+	/**
+	 * Get the mean time from submitting a command to the device to the start
+	 * of its execution.
+	 */
+	public long getMeanSubmittedNanos()
+	{
+		return meanSubmittedNanos;
+	}
+
+	/**
+	 * Get the bytes transferred per second of execution time (0 for
+	 * operations that do not transfer data).
+	 */
+	public double getBandwidth()
+	{
+		return bandwidth;
+	}
+
+	/**
+	 * Get the histogram of execution times. Bucket {@code 0} counts times
+	 * below 2 microseconds, bucket {@code i} times in
+	 * {@code [2^i, 2^(i+1))} microseconds, and the last bucket all longer
+	 * times.
+	 */
+	public long[] getHistogram()
+	{
+		return histogram.clone();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "%s: %d commands, mean %.3f ms, median %.3f ms, p99 %.3f ms, queued %.3f ms, submitted %.3f ms, %.1f MB/s",
+				name, count,
+				meanNanos / 1e6, medianNanos / 1e6, p99Nanos / 1e6,
+				meanQueuedNanos / 1e6, meanSubmittedNanos / 1e6,
+				bandwidth / ( 1 << 20 ) );
+	}
+
+	private static long percentile( final long[] sorted, final double p )
+	{
+		final int i = ( int ) Math.ceil( p * sorted.length ) - 1;
+		return sorted[ Math.max( 0, Math.min( sorted.length - 1, i ) ) ];
+	}
+
+	private static int bucket( final long nanos )
+	{
+		final long micros = nanos / 1000;
+		if ( micros < 2 )
+			return 0;
+		return Math.min( NUM_BUCKETS - 1, 63 - Long.numberOfLeadingZeros( micros ) );
+	}
+}
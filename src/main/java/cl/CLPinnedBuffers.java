@@ -0,0 +1,114 @@
+package cl;
+
+import static org.jocl.CL.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.jocl.cl_command_queue;
+import org.jocl.cl_mem;
+
+/**
+ * A fixed budget of pinned (page-locked) host memory, split into equally
+ * sized staging buffers.
+ * <p>
+ * The memory is allocated by OpenCL as {@code CL_MEM_ALLOC_HOST_PTR} buffers
+ * and mapped into Java as direct {@link ByteBuffer}s once, at construction.
+ * Data that is written into the staging buffers can be transferred to the
+ * device by DMA, without the driver copying it through a pageable bounce
+ * buffer first. Staging buffers are handed out by {@link #getBuffers()}, for
+ * example to be recycled in a ring by {@code bdv.volume.BlockUploader}.
+ */
+public class CLPinnedBuffers
+{
+	/**
+	 * Upper bound on the size of a single {@code CL_MEM_ALLOC_HOST_PTR}
+	 * buffer. The budget is split into chunks of at most this size.
+	 */
+	private static final long MAX_CHUNK_BYTES = 64L * 1024 * 1024;
+
+	private final CLContext context;
+
+	private final cl_mem[] chunks;
+
+	private final ByteBuffer[] mapped;
+
+	private final ByteBuffer[] buffers;
+
+	private boolean released;
+
+	/**
+	 * @param context
+	 *            the OpenCL context.
+	 * @param budgetBytes
+	 *            total size of pinned memory to allocate (rounded down to a
+	 *            multiple of {@code bytesPerBuffer}).
+	 * @param bytesPerBuffer
+	 *            size of each staging buffer.
+	 */
+	public CLPinnedBuffers(
+			final CLContext context,
+			final long budgetBytes,
+			final int bytesPerBuffer )
+	{
+		this.context = context;
+
+		final int numBuffers = ( int ) ( budgetBytes / bytesPerBuffer );
+		if ( numBuffers < 1 )
+			throw new IllegalArgumentException( "budget is smaller than one buffer" );
+		final int buffersPerChunk = ( int ) Math.max( 1, Math.min( numBuffers, MAX_CHUNK_BYTES / bytesPerBuffer ) );
+		final int numChunks = ( numBuffers + buffersPerChunk - 1 ) / buffersPerChunk;
+
+		chunks = new cl_mem[ numChunks ];
+		mapped = new ByteBuffer[ numChunks ];
+		buffers = new ByteBuffer[ numBuffers ];
+		for ( int c = 0; c < numChunks; ++c )
+		{
+			final int n = Math.min( buffersPerChunk, numBuffers - c * buffersPerChunk );
+			final long chunkBytes = ( long ) n * bytesPerBuffer;
+			chunks[ c ] = clCreateBuffer( context.getContext(), CL_MEM_READ_ONLY | CL_MEM_ALLOC_HOST_PTR, chunkBytes, null, null );
+			mapped[ c ] = clEnqueueMapBuffer( context.getUploadQueue(), chunks[ c ], true, CL_MAP_WRITE, 0, chunkBytes, 0, null, null, null );
+			for ( int i = 0; i < n; ++i )
+			{
+				final ByteBuffer b = mapped[ c ].duplicate();
+				b.position( i * bytesPerBuffer );
+				b.limit( ( i + 1 ) * bytesPerBuffer );
+				buffers[ c * buffersPerChunk + i ] = b.slice().order( ByteOrder.nativeOrder() );
+			}
+		}
+		released = false;
+	}
+
+	/**
+	 * Get the staging buffers. They remain valid until {@link #release()}.
+	 */
+	public ByteBuffer[] getBuffers()
+	{
+		if ( released )
+			throw new IllegalStateException();
+		return buffers;
+	}
+
+	public int getNumBuffers()
+	{
+		return buffers.length;
+	}
+
+	/**
+	 * Unmap and release the pinned memory. No uploads from the staging buffers
+	 * may be in flight.
+	 */
+	public void release()
+	{
+		if ( released )
+			return;
+		final cl_command_queue queue = context.getUploadQueue();
+		for ( int c = 0; c < chunks.length; ++c )
+		{
+			clEnqueueUnmapMemObject( queue, chunks[ c ], mapped[ c ], 0, null, null );
+			clReleaseMemObject( chunks[ c ] );
+		}
+		clFinish( queue );
+		released = true;
+	}
+}
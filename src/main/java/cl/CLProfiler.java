@@ -0,0 +1,264 @@
+package cl;
+
+import static org.jocl.CL.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.jocl.CLException;
+import org.jocl.EventCallbackFunction;
+import org.jocl.Pointer;
+import org.jocl.Sizeof;
+import org.jocl.cl_event;
+
+public class CLProfiler implements CLProfilerMXBean
+{
+	/**
+	 * Timings of the most recent commands of one operation, in ring buffers.
+	 */
+	private static final class Operation
+	{
+		final String name;
+
+		final long[] execNanos;
+
+		final long[] queuedNanos;
+
+		final long[] submittedNanos;
+
+		final long[] bytes;
+
+		int head;
+
+		int size;
+
+		long count;
+
+		long totalNanos;
+
+		long totalBytes;
+
+		Operation( final String name, final int windowSize )
+		{
+			this.name = name;
+			execNanos = new long[ windowSize ];
+			queuedNanos = new long[ windowSize ];
+			submittedNanos = new long[ windowSize ];
+			bytes = new long[ windowSize ];
+		}
+
+		synchronized void add( final long queued, final long submit, final long start, final long end, final long numBytes )
+		{
+			execNanos[ head ] = end - start;
+			queuedNanos[ head ] = submit - queued;
+			submittedNanos[ head ] = start - submit;
+			bytes[ head ] = numBytes;
+			head = ( head + 1 ) % execNanos.length;
+			size = Math.min( size + 1, execNanos.length );
+			++count;
+			totalNanos += end - start;
+			totalBytes += numBytes;
+		}
+
+		synchronized CLOperationStats getStatistics()
+		{
+			return new CLOperationStats( name, count, totalNanos, totalBytes, execNanos, queuedNanos, submittedNanos, bytes, size );
+		}
+	}
+
+	/**
+	 * Passed to the event callback.
+	 */
+	private static final class Command
+	{
+		final Operation operation;
+
+		final long bytes;
+
+		Command( final Operation operation, final long bytes )
+		{
+			this.operation = operation;
+			this.bytes = bytes;
+		}
+	}
+
+	private final int windowSize;
+
+	private final Map< String, Operation > operations = new TreeMap<>();
+
+	private final EventCallbackFunction completed;
+
+	private ObjectName objectName;
+
+	/**
+	 * Create a profiler that computes statistics over the last 1024 commands
+	 * of each operation.
+	 */
+	public CLProfiler()
+	{
+		this( 1024 );
+	}
+
+	/**
+	 * Create a profiler that records the timings of commands in queues created
+	 * with {@code CL_QUEUE_PROFILING_ENABLE}, per named operation.
+	 * Statistics are computed over the last {@code windowSize} commands of
+	 * each operation. They are available through
+	 * {@link #getStatistics(String)}, and through JMX after
+	 * {@link #registerMBean(String)}.
+	 */
+	public CLProfiler( final int windowSize )
+	{
+		if ( windowSize < 1 )
+			throw new IllegalArgumentException();
+		this.windowSize = windowSize;
+		completed = ( event, status, data ) -> {
+			try
+			{
+				if ( status == CL_COMPLETE )
+				{
+					final Command command = ( Command ) data;
+					command.operation.add(
+							profilingInfo( event, CL_PROFILING_COMMAND_QUEUED ),
+							profilingInfo( event, CL_PROFILING_COMMAND_SUBMIT ),
+							profilingInfo( event, CL_PROFILING_COMMAND_START ),
+							profilingInfo( event, CL_PROFILING_COMMAND_END ),
+							command.bytes );
+				}
+			}
+			catch ( final CLException e )
+			{
+				// profiling info is not available
+			}
+			finally
+			{
+				clReleaseEvent( event );
+			}
+		};
+	}
+
+	/**
+	 * Record the timing of the command identified by {@code event} when it
+	 * completes. The event is retained until then, so the caller may release
+	 * it right away.
+	 *
+	 * @param operation
+	 *            name of the operation, e.g., {@code "kernel:scatter"}.
+	 * @param bytes
+	 *            number of bytes transferred by the command, or 0.
+	 */
+	public void track( final String operation, final cl_event event, final long bytes )
+	{
+		final Operation op;
+		synchronized ( operations )
+		{
+			op = operations.computeIfAbsent( operation, name -> new Operation( name, windowSize ) );
+		}
+		clRetainEvent( event );
+		clSetEventCallback( event, CL_COMPLETE, completed, new Command( op, bytes ) );
+	}
+
+	/**
+	 * Get the statistics of an operation, or {@code null} if it has not been
+	 * recorded.
+	 */
+	public CLOperationStats getStatistics( final String operation )
+	{
+		final Operation op;
+		synchronized ( operations )
+		{
+			op = operations.get( operation );
+		}
+		return op == null ? null : op.getStatistics();
+	}
+
+	@Override
+	public String[] getOperations()
+	{
+		synchronized ( operations )
+		{
+			return operations.keySet().toArray( new String[ 0 ] );
+		}
+	}
+
+	@Override
+	public Map< String, CLOperationStats > getStatistics()
+	{
+		final Map< String, CLOperationStats > statistics = new TreeMap<>();
+		for ( final String operation : getOperations() )
+			statistics.put( operation, getStatistics( operation ) );
+		return statistics;
+	}
+
+	/**
+	 * Forget all recorded commands. Commands that complete later are recorded
+	 * under fresh statistics.
+	 */
+	@Override
+	public void reset()
+	{
+		synchronized ( operations )
+		{
+			for ( final Operation op : operations.values() )
+			{
+				synchronized ( op )
+				{
+					op.head = 0;
+					op.size = 0;
+					op.count = 0;
+					op.totalNanos = 0;
+					op.totalBytes = 0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Register this profiler with the platform MBean server as
+	 * {@code cl:type=CLProfiler,name=}{@code name}.
+	 */
+	public synchronized void registerMBean( final String name ) throws JMException
+	{
+		if ( objectName != null )
+			unregisterMBean();
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		final ObjectName on = new ObjectName( "cl:type=CLProfiler,name=" + ObjectName.quote( name ) );
+		server.registerMBean( this, on );
+		objectName = on;
+	}
+
+	public synchronized void unregisterMBean() throws JMException
+	{
+		if ( objectName != null )
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean( objectName );
+			objectName = null;
+		}
+	}
+
+	/**
+	 * Record a command with known timestamps (in nanoseconds), e.g., for
+	 * operations timed on the host.
+	 */
+	public void record( final String operation, final long queued, final long submit, final long start, final long end, final long bytes )
+	{
+		final Operation op;
+		synchronized ( operations )
+		{
+			op = operations.computeIfAbsent( operation, name -> new Operation( name, windowSize ) );
+		}
+		op.add( queued, submit, start, end, bytes );
+	}
+
+	private static long profilingInfo( final cl_event event, final int paramName )
+	{
+		final long[] value = new long[ 1 ];
+		clGetEventProfilingInfo( event, paramName, Sizeof.cl_ulong, Pointer.to( value ), null );
+		return value[ 0 ];
+	}
+}
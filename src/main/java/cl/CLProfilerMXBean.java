@@ -0,0 +1,24 @@
+package cl;
+
+import java.util.Map;
+
+/**
+ * JMX view of a {@link CLProfiler}.
+ */
+public interface CLProfilerMXBean
+{
+	/**
+	 * Get the names of the operations that have been recorded.
+	 */
+	public String[] getOperations();
+
+	/**
+	 * Get the statistics of all operations, by name.
+	 */
+	public Map< String, CLOperationStats > getStatistics();
+
+	/**
+	 * Forget all recorded commands.
+	 */
+	public void reset();
+}
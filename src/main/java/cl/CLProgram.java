@@ -1,25 +1,67 @@
 package cl;
 
-import static org.jocl.CL.clBuildProgram;
-import static org.jocl.CL.clCreateProgramWithSource;
+import static org.jocl.CL.*;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.stream.Collectors;
 
 import org.jocl.CL;
+import org.jocl.CLException;
+import org.jocl.Pointer;
+import org.jocl.Sizeof;
+import org.jocl.cl_device_id;
 import org.jocl.cl_program;
 
 public class CLProgram
 {
+	/**
+	 * Thrown if a program fails to build. The message includes the build log.
+	 */
+	public static class BuildException extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int status;
+
+		private final String buildLog;
+
+		public BuildException( final int status, final String buildLog )
+		{
+			super( "building OpenCL program failed (" + CL.stringFor_errorCode( status ) + "):\n" + buildLog );
+			this.status = status;
+			this.buildLog = buildLog;
+		}
+
+		public int getStatus()
+		{
+			return status;
+		}
+
+		public String getBuildLog()
+		{
+			return buildLog;
+		}
+	}
+
 	private final cl_program program;
 
 	private final Map< String, CLKernel > kernels;
 
+	private final String key;
+
+	private final boolean fromBinary;
+
+	private final String buildLog;
+
 	private boolean released;
 
 	public CLProgram(
@@ -29,12 +71,113 @@ public class CLProgram
 		this( context, read( sourceFile ) );
 	}
 
+	/**
+	 * Build a program from a source file in the resources of {@code klass}.
+	 *
+	 * @see Class#getResourceAsStream(String)
+	 */
+	public CLProgram(
+			final CLContext context,
+			final Class< ? > klass,
+			final String resourceName ) throws IOException
+	{
+		this( context, read( klass, resourceName ) );
+	}
+
+	/**
+	 * Build a program from a source file in the resources of {@code klass},
+	 * with the given build options. Binaries are cached only if the
+	 * {@link CLProgramCache#getDefault() default cache} is enabled.
+	 *
+	 * @see Class#getResourceAsStream(String)
+	 */
+	public CLProgram(
+			final CLContext context,
+			final Class< ? > klass,
+			final String resourceName,
+			final String options ) throws IOException
+	{
+		this( context, read( klass, resourceName ), options, CLProgramCache.getDefault() );
+	}
+
+	/**
+	 * Build a program. Binaries are cached only if the
+	 * {@link CLProgramCache#getDefault() default cache} is enabled.
+	 */
 	public CLProgram(
 			final CLContext context,
 			final String[] source )
 	{
-		program = clCreateProgramWithSource( context.getContext(), source.length, source, null, null );
-		clBuildProgram( program, 0, null, null, null, null );
+		this( context, source, null, CLProgramCache.getDefault() );
+	}
+
+	/**
+	 * Build a program for the device of {@code context}.
+	 * <p>
+	 * If {@code cache} contains a binary for the same source, options,
+	 * device, and driver, the program is created from that binary. If there is
+	 * none, or the binary is rejected by the driver, the program is built from
+	 * source, and its binary is added to {@code cache}.
+	 *
+	 * @param options
+	 *            build options, or {@code null}.
+	 * @param cache
+	 *            binary cache, or {@code null} to always build from source.
+	 * @throws BuildException
+	 *             if building from source fails.
+	 */
+	public CLProgram(
+			final CLContext context,
+			final String[] source,
+			final String options,
+			final CLProgramCache cache )
+	{
+		final cl_device_id device = context.getDevice();
+		key = CLProgramCache.key( source, options, device );
+
+		cl_program p = null;
+		if ( cache != null )
+		{
+			final byte[] binary = cache.get( key );
+			if ( binary != null )
+			{
+				p = createFromBinary( context, device, binary, options );
+				if ( p == null )
+					cache.remove( key );
+			}
+		}
+
+		fromBinary = p != null;
+		if ( !fromBinary )
+		{
+			p = clCreateProgramWithSource( context.getContext(), source.length, source, null, null );
+			int status;
+			try
+			{
+				status = clBuildProgram( p, 1, new cl_device_id[] { device }, options, null, null );
+			}
+			catch ( final CLException e )
+			{
+				status = e.getStatus();
+			}
+			final String log = getBuildLog( p, device );
+			if ( status != CL_SUCCESS )
+			{
+				clReleaseProgram( p );
+				throw new BuildException( status, log );
+			}
+			buildLog = log;
+			if ( cache != null )
+			{
+				final byte[] binary = getBinary( p, cache );
+				if ( binary != null )
+					cache.put( key, binary );
+			}
+		}
+		else
+			buildLog = "";
+
+		program = p;
 		kernels = new HashMap<>();
 		released = false;
 	}
@@ -57,18 +200,132 @@ public class CLProgram
 	{
 		try ( BufferedReader reader = new BufferedReader( new FileReader( file ) ) )
 		{
-			return reader
-					.lines()
-					.collect( Collectors.toList() )
-					.toArray( new String[ 0 ] );
+			return read( reader );
+		}
+	}
+
+	static String[] read( final Class< ? > klass, final String resourceName ) throws IOException
+	{
+		final InputStream stream = klass.getResourceAsStream( resourceName );
+		if ( stream == null )
+			throw new FileNotFoundException( resourceName );
+		try ( BufferedReader reader = new BufferedReader( new InputStreamReader( stream, StandardCharsets.UTF_8 ) ) )
+		{
+			return read( reader );
 		}
 	}
 
+	/**
+	 * Read lines, keeping line terminators. (Source strings are concatenated
+	 * by OpenCL, so without them preprocessor directives and {@code //}
+	 * comments would break.)
+	 */
+	private static String[] read( final BufferedReader reader )
+	{
+		return reader
+				.lines()
+				.map( line -> line + "\n" )
+				.collect( Collectors.toList() )
+				.toArray( new String[ 0 ] );
+	}
+
+	/**
+	 * Create and build a program from a cached binary.
+	 *
+	 * @return the program, or {@code null} if the binary is rejected.
+	 */
+	private static cl_program createFromBinary(
+			final CLContext context,
+			final cl_device_id device,
+			final byte[] binary,
+			final String options )
+	{
+		final cl_device_id[] devices = new cl_device_id[] { device };
+		final int[] binaryStatus = new int[ 1 ];
+		final int[] errcode = new int[ 1 ];
+		cl_program p = null;
+		try
+		{
+			p = clCreateProgramWithBinary( context.getContext(), 1, devices, new long[] { binary.length }, new byte[][] { binary }, binaryStatus, errcode );
+			if ( errcode[ 0 ] == CL_SUCCESS && binaryStatus[ 0 ] == CL_SUCCESS
+					&& clBuildProgram( p, 1, devices, options, null, null ) == CL_SUCCESS )
+				return p;
+		}
+		catch ( final CLException e )
+		{
+			// fall through
+		}
+		if ( p != null )
+			clReleaseProgram( p );
+		return null;
+	}
+
+	/**
+	 * Get the binary of a built program, or {@code null} if it is not
+	 * available (the error is recorded in {@code cache}).
+	 */
+	private static byte[] getBinary( final cl_program program, final CLProgramCache cache )
+	{
+		try
+		{
+			final long[] size = new long[ 1 ];
+			clGetProgramInfo( program, CL_PROGRAM_BINARY_SIZES, Sizeof.size_t, Pointer.to( size ), null );
+			if ( size[ 0 ] <= 0 )
+				return null;
+			final byte[] binary = new byte[ ( int ) size[ 0 ] ];
+			clGetProgramInfo( program, CL_PROGRAM_BINARIES, Sizeof.POINTER, Pointer.to( Pointer.to( binary ) ), null );
+			return binary;
+		}
+		catch ( final CLException e )
+		{
+			cache.error( e );
+			return null;
+		}
+	}
+
+	private static String getBuildLog( final cl_program program, final cl_device_id device )
+	{
+		final long[] size = new long[ 1 ];
+		clGetProgramBuildInfo( program, device, CL_PROGRAM_BUILD_LOG, 0, null, size );
+		if ( size[ 0 ] <= 1 )
+			return "";
+		final byte[] buffer = new byte[ ( int ) size[ 0 ] ];
+		clGetProgramBuildInfo( program, device, CL_PROGRAM_BUILD_LOG, buffer.length, Pointer.to( buffer ), null );
+		return new String( buffer, 0, buffer.length - 1 ).trim();
+	}
+
 	public cl_program getProgram()
 	{
 		return program;
 	}
 
+	/**
+	 * Get a key that identifies source, options, device, and driver of this
+	 * program (see {@link CLProgramCache#key(String[], String, cl_device_id)}).
+	 */
+	public String getKey()
+	{
+		return key;
+	}
+
+	/**
+	 * Whether the program was created from a cached binary (instead of being
+	 * built from source).
+	 */
+	public boolean isFromBinary()
+	{
+		return fromBinary;
+	}
+
+	/**
+	 * Get the build log (e.g., compiler warnings) of a program that was built
+	 * from source. Empty for programs created from a cached binary.
+	 */
+	public String getBuildLog()
+	{
+		return buildLog;
+	}
+
 	public void release()
 	{
 		CL.clReleaseProgram( program );
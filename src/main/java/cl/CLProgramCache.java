@@ -0,0 +1,220 @@
+package cl;
+
+import static cl.CLUtils.getDeviceInfo;
+import static cl.CLUtils.getPlatformInfo;
+import static org.jocl.CL.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.jocl.Pointer;
+import org.jocl.Sizeof;
+import org.jocl.cl_device_id;
+import org.jocl.cl_platform_id;
+
+public class CLProgramCache
+{
+	private static final String PROPERTY = "cl.programcache";
+
+	private static CLProgramCache defaultCache;
+
+	private static boolean defaultCacheInitialized;
+
+	private final Path directory;
+
+	private int numErrors;
+
+	private Exception lastError;
+
+	/**
+	 * Create a cache of compiled program binaries, used by {@link CLProgram},
+	 * in {@code directory}.
+	 */
+	public CLProgramCache( final Path directory )
+	{
+		this.directory = directory;
+	}
+
+	/**
+	 * Get the default cache, or {@code null} if it is disabled. Caching is
+	 * opt-in: the default cache is disabled, unless it is {@link #setDefault
+	 * set}, or the system property {@code cl.programcache} names its
+	 * directory (e.g., {@code ~/.cache/bdv-volume/cl}).
+	 */
+	public static synchronized CLProgramCache getDefault()
+	{
+		if ( !defaultCacheInitialized )
+		{
+			final String dir = System.getProperty( PROPERTY );
+			if ( dir != null && !dir.isEmpty() )
+				defaultCache = new CLProgramCache( Paths.get( dir ) );
+			defaultCacheInitialized = true;
+		}
+		return defaultCache;
+	}
+
+	/**
+	 * Set the default cache. {@code null} disables caching for programs that
+	 * use the default cache.
+	 */
+	public static synchronized void setDefault( final CLProgramCache cache )
+	{
+		defaultCache = cache;
+		defaultCacheInitialized = true;
+	}
+
+	public Path getDirectory()
+	{
+		return directory;
+	}
+
+	/**
+	 * Get the number of errors (failed reads and writes of cache files, or
+	 * binaries that could not be obtained) since this cache was created.
+	 * Errors are not thrown, because the program can always be built from
+	 * source instead.
+	 */
+	public synchronized int getNumErrors()
+	{
+		return numErrors;
+	}
+
+	/**
+	 * Get the most recent error, or {@code null} if there was none.
+	 */
+	public synchronized Exception getLastError()
+	{
+		return lastError;
+	}
+
+	/**
+	 * Record an error.
+	 */
+	synchronized void error( final Exception e )
+	{
+		++numErrors;
+		lastError = e;
+	}
+
+	/**
+	 * Compute the cache key for a program built for {@code device}: a SHA-256
+	 * hash of the source, the build options, the platform name and version,
+	 * the device name and version, and the driver version. A changed source,
+	 * option, or driver therefore results in a different key (and the stale
+	 * binary is never looked at again).
+	 */
+	public static String key( final String[] source, final String options, final cl_device_id device )
+	{
+		final MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance( "SHA-256" );
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			throw new RuntimeException( e );
+		}
+		for ( final String s : source )
+			update( digest, s );
+		update( digest, options == null ? "" : options );
+
+		final cl_platform_id[] platform = new cl_platform_id[ 1 ];
+		clGetDeviceInfo( device, CL_DEVICE_PLATFORM, Sizeof.cl_platform_id, Pointer.to( platform ), null );
+		update( digest, getPlatformInfo( platform[ 0 ], CL_PLATFORM_NAME ) );
+		update( digest, getPlatformInfo( platform[ 0 ], CL_PLATFORM_VERSION ) );
+		update( digest, getDeviceInfo( device, CL_DEVICE_NAME ) );
+		update( digest, getDeviceInfo( device, CL_DEVICE_VERSION ) );
+		update( digest, getDeviceInfo( device, CL_DRIVER_VERSION ) );
+
+		final StringBuilder sb = new StringBuilder();
+		for ( final byte b : digest.digest() )
+			sb.append( String.format( "%02x", b ) );
+		return sb.toString();
+	}
+
+	/**
+	 * Get the binary for {@code key}, or {@code null} if there is none.
+	 */
+	public byte[] get( final String key )
+	{
+		try
+		{
+			return Files.readAllBytes( file( key ) );
+		}
+		catch ( final NoSuchFileException e )
+		{
+			return null;
+		}
+		catch ( final IOException e )
+		{
+			error( e );
+			return null;
+		}
+	}
+
+	/**
+	 * Store the binary for {@code key}. The binary is written to a temporary
+	 * file that is then moved into place, so concurrent readers never see a
+	 * partially written file. Failures are {@link #getLastError() recorded}
+	 * but not thrown, the program is then just rebuilt next time.
+	 */
+	public void put( final String key, final byte[] binary )
+	{
+		try
+		{
+			Files.createDirectories( directory );
+			final Path tmp = Files.createTempFile( directory, key, ".tmp" );
+			try
+			{
+				Files.write( tmp, binary );
+				Files.move( tmp, file( key ), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+			}
+			finally
+			{
+				Files.deleteIfExists( tmp );
+			}
+		}
+		catch ( final IOException e )
+		{
+			error( e );
+		}
+	}
+
+	/**
+	 * Remove the binary for {@code key}, e.g., because it could not be
+	 * loaded.
+	 */
+	public void remove( final String key )
+	{
+		try
+		{
+			Files.deleteIfExists( file( key ) );
+		}
+		catch ( final IOException e )
+		{
+			error( e );
+		}
+	}
+
+	private Path file( final String key )
+	{
+		return directory.resolve( key + ".bin" );
+	}
+
+	/**
+	 * Update {@code digest} with a string and a terminator, so that
+	 * consecutive strings cannot be confused.
+	 */
+	private static void update( final MessageDigest digest, final String s )
+	{
+		digest.update( s.getBytes( StandardCharsets.UTF_8 ) );
+		digest.update( ( byte ) 0 );
+	}
+}
@@ -0,0 +1,141 @@
+package cl;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+public class CLProgramVariants
+{
+	private final CLContext context;
+
+	private final String[] source;
+
+	private final String baseOptions;
+
+	private final CLProgramCache cache;
+
+	private final Map< String, CLProgram > variants;
+
+	private boolean released;
+
+	/**
+	 * Specialize a program from a source file in the resources of
+	 * {@code klass}. Binaries are cached only if the
+	 * {@link CLProgramCache#getDefault() default cache} is enabled.
+	 *
+	 * @see Class#getResourceAsStream(String)
+	 */
+	public CLProgramVariants(
+			final CLContext context,
+			final Class< ? > klass,
+			final String resourceName ) throws IOException
+	{
+		this( context, CLProgram.read( klass, resourceName ), null, CLProgramCache.getDefault() );
+	}
+
+	/**
+	 * Specialize a program by preprocessor definitions. Each
+	 * {@link #getProgram(Map) variant} is built once (with
+	 * {@code -D NAME=VALUE} options in addition to {@code baseOptions}), and
+	 * kept until {@link #release()}. The source typically provides defaults
+	 * with {@code #ifndef}, and uses the definitions as compile-time
+	 * constants, so that the compiler can unroll loops and remove branches.
+	 *
+	 * @param baseOptions
+	 *            build options for all variants, or {@code null}.
+	 * @param cache
+	 *            binary cache (see
+	 *            {@link CLProgram#CLProgram(CLContext, String[], String, CLProgramCache)}),
+	 *            or {@code null}.
+	 */
+	public CLProgramVariants(
+			final CLContext context,
+			final String[] source,
+			final String baseOptions,
+			final CLProgramCache cache )
+	{
+		this.context = context;
+		this.source = source;
+		this.baseOptions = baseOptions;
+		this.cache = cache;
+		variants = new HashMap<>();
+		released = false;
+	}
+
+	/**
+	 * Get the variant for the given definitions, building it if necessary.
+	 *
+	 * @param defines
+	 *            maps macro names to values. A {@code null} value defines the
+	 *            macro without value.
+	 * @throws CLProgram.BuildException
+	 *             if the variant fails to build.
+	 */
+	public synchronized CLProgram getProgram( final Map< String, ? > defines )
+	{
+		if ( released )
+			throw new IllegalStateException();
+
+		final String options = options( baseOptions, defines );
+		CLProgram program = variants.get( options );
+		if ( program == null )
+		{
+			program = new CLProgram( context, source, options, cache );
+			variants.put( options, program );
+		}
+		return program;
+	}
+
+	/**
+	 * Get the number of variants built so far.
+	 */
+	public synchronized int getNumVariants()
+	{
+		return variants.size();
+	}
+
+	/**
+	 * Release all variants.
+	 */
+	public synchronized void release()
+	{
+		for ( final CLProgram program : variants.values() )
+			program.release();
+		variants.clear();
+		released = true;
+	}
+
+	/**
+	 * Make build options from {@code baseOptions} and {@code -D} definitions.
+	 * Definitions are sorted by name, so equal maps give equal options.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a name is not an identifier, or a value contains
+	 *             whitespace.
+	 */
+	public static String options( final String baseOptions, final Map< String, ? > defines )
+	{
+		final StringBuilder sb = new StringBuilder();
+		if ( baseOptions != null )
+			sb.append( baseOptions.trim() );
+		for ( final Entry< String, ? > entry : new TreeMap<>( defines ).entrySet() )
+		{
+			final String name = entry.getKey();
+			if ( !name.matches( "[A-Za-z_][A-Za-z0-9_]*" ) )
+				throw new IllegalArgumentException( "invalid macro name: " + name );
+			if ( sb.length() > 0 )
+				sb.append( ' ' );
+			sb.append( "-D " ).append( name );
+			if ( entry.getValue() != null )
+			{
+				final String value = entry.getValue().toString();
+				if ( value.isEmpty() || value.matches( ".*\\s.*" ) )
+					throw new IllegalArgumentException( "invalid value for " + name + ": \"" + value + "\"" );
+				sb.append( '=' ).append( value );
+			}
+		}
+		return sb.toString();
+	}
+}
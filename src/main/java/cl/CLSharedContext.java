@@ -31,12 +31,30 @@ public class CLSharedContext implements CLContext
 
 	private final cl_command_queue commandQueue;
 
+	private final CLProfiler profiler;
+
 	public CLSharedContext(
 			final GL gl,
 			final int platformIndex,
 			final long deviceType,
 			final int deviceIndex,
 			final boolean exceptionsEnabled )
+	{
+		this( gl, platformIndex, deviceType, deviceIndex, exceptionsEnabled, null );
+	}
+
+	/**
+	 * If {@code profiler} is not {@code null}, the command queue is created
+	 * with {@code CL_QUEUE_PROFILING_ENABLE}, and kernel launches and writes
+	 * are recorded by {@code profiler}.
+	 */
+	public CLSharedContext(
+			final GL gl,
+			final int platformIndex,
+			final long deviceType,
+			final int deviceIndex,
+			final boolean exceptionsEnabled,
+			final CLProfiler profiler )
 	{
 		// Enable exceptions and subsequently omit error checks in this sample
 		CL.setExceptionsEnabled( exceptionsEnabled );
@@ -65,7 +83,8 @@ public class CLSharedContext implements CLContext
 				null, null, null );
 
 		// Create a command-queue for the selected device
-		commandQueue = clCreateCommandQueue( getContext(), device, 0, null );
+		commandQueue = clCreateCommandQueue( getContext(), device, profiler != null ? CL_QUEUE_PROFILING_ENABLE : 0, null );
+		this.profiler = profiler;
 	}
 
 	@Override
@@ -80,6 +99,18 @@ public class CLSharedContext implements CLContext
 		return commandQueue;
 	}
 
+	@Override
+	public cl_device_id getDevice()
+	{
+		return device;
+	}
+
+	@Override
+	public CLProfiler getProfiler()
+	{
+		return profiler;
+	}
+
 	@Override
 	public String toString()
 	{
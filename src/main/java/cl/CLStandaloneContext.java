@@ -0,0 +1,246 @@
+package cl;
+
+import static cl.CLUtils.*;
+import static org.jocl.CL.*;
+
+import java.util.function.Predicate;
+
+import org.jocl.CL;
+import org.jocl.CLException;
+import org.jocl.Pointer;
+import org.jocl.Sizeof;
+import org.jocl.cl_command_queue;
+import org.jocl.cl_context;
+import org.jocl.cl_context_properties;
+import org.jocl.cl_device_id;
+import org.jocl.cl_platform_id;
+
+public class CLStandaloneContext implements CLContext
+{
+	/**
+	 * Create a context on the best available device, with in-order queues.
+	 */
+	public CLStandaloneContext()
+	{
+		this(
+				CL_DEVICE_TYPE_ALL, // long deviceType
+				null, // Predicate< cl_device_id > requirement
+				false, // boolean outOfOrder
+				true // boolean exceptionsEnabled
+		);
+	}
+
+	private final cl_device_id device;
+
+	private final cl_context context;
+
+	private final cl_command_queue commandQueue;
+
+	private final cl_command_queue uploadQueue;
+
+	private final boolean outOfOrder;
+
+	private final CLProfiler profiler;
+
+	private boolean released;
+
+	/**
+	 * Create a context that does not share with OpenGL, on the best device
+	 * (see {@link #findDevice(long, Predicate)}). Any OpenCL device with image
+	 * support can be used, including CPU implementations such as POCL, so this
+	 * works on headless machines.
+	 * <p>
+	 * Kernels go to the {@link #getCommandQueue() command queue}, and
+	 * host-to-device transfers to a separate {@link #getUploadQueue() upload
+	 * queue}, so that transfers overlap with kernels.
+	 *
+	 * @param deviceType
+	 *            type of devices to consider, e.g.,
+	 *            {@link CL#CL_DEVICE_TYPE_GPU}, {@link CL#CL_DEVICE_TYPE_CPU},
+	 *            or {@link CL#CL_DEVICE_TYPE_ALL}.
+	 * @param requirement
+	 *            additional requirement that a device must satisfy, or
+	 *            {@code null}.
+	 * @param outOfOrder
+	 *            whether to create out-of-order queues. This is ignored if the
+	 *            device does not support it, see {@link #isOutOfOrder()}.
+	 * @param exceptionsEnabled
+	 *            whether OpenCL errors throw exceptions.
+	 * @throws IllegalStateException
+	 *             if no suitable device is found.
+	 */
+	public CLStandaloneContext(
+			final long deviceType,
+			final Predicate< cl_device_id > requirement,
+			final boolean outOfOrder,
+			final boolean exceptionsEnabled )
+	{
+		this( deviceType, requirement, outOfOrder, exceptionsEnabled, null );
+	}
+
+	/**
+	 * Like {@link #CLStandaloneContext(long, Predicate, boolean, boolean)},
+	 * but if {@code profiler} is not {@code null}, the queues are created with
+	 * {@code CL_QUEUE_PROFILING_ENABLE}, and kernel launches and writes are
+	 * recorded by {@code profiler}.
+	 */
+	public CLStandaloneContext(
+			final long deviceType,
+			final Predicate< cl_device_id > requirement,
+			final boolean outOfOrder,
+			final boolean exceptionsEnabled,
+			final CLProfiler profiler )
+	{
+		CL.setExceptionsEnabled( exceptionsEnabled );
+
+		device = findDevice( deviceType, requirement );
+		if ( device == null )
+			throw new IllegalStateException( "no suitable OpenCL device found" );
+
+		final cl_platform_id[] platform = new cl_platform_id[ 1 ];
+		clGetDeviceInfo( device, CL_DEVICE_PLATFORM, Sizeof.cl_platform_id, Pointer.to( platform ), null );
+		final cl_context_properties contextProperties = new cl_context_properties();
+		contextProperties.addProperty( CL_CONTEXT_PLATFORM, platform[ 0 ] );
+
+		context = clCreateContext(
+				contextProperties, 1, new cl_device_id[] { device },
+				null, null, null );
+
+		this.outOfOrder = outOfOrder
+				&& ( getDeviceInfoLong( device, CL_DEVICE_QUEUE_PROPERTIES ) & CL_QUEUE_OUT_OF_ORDER_EXEC_MODE_ENABLE ) != 0;
+		final long properties = ( this.outOfOrder ? CL_QUEUE_OUT_OF_ORDER_EXEC_MODE_ENABLE : 0 )
+				| ( profiler != null ? CL_QUEUE_PROFILING_ENABLE : 0 );
+		commandQueue = clCreateCommandQueue( context, device, properties, null );
+		uploadQueue = clCreateCommandQueue( context, device, properties, null );
+		this.profiler = profiler;
+		released = false;
+	}
+
+	/**
+	 * Find the best device of the given type. Devices that are available,
+	 * support images, and satisfy {@code requirement} are ranked by type (GPU,
+	 * accelerator, CPU), then by compute units times clock frequency, then by
+	 * global memory.
+	 *
+	 * @return the device, or {@code null} if there is none.
+	 */
+	public static cl_device_id findDevice( final long deviceType, final Predicate< cl_device_id > requirement )
+	{
+		cl_device_id best = null;
+		long bestTypeRank = -1;
+		long bestPower = -1;
+		long bestMemory = -1;
+		for ( final cl_platform_id platform : query( cl_platform_id.class, ( l, a, n ) -> clGetPlatformIDs( l, a, n ) ) )
+		{
+			for ( final cl_device_id device : getDevices( platform, deviceType ) )
+			{
+				if ( getDeviceInfoLong( device, CL_DEVICE_AVAILABLE ) == 0
+						|| getDeviceInfoLong( device, CL_DEVICE_IMAGE_SUPPORT ) == 0
+						|| ( requirement != null && !requirement.test( device ) ) )
+					continue;
+
+				final long type = getDeviceInfoLong( device, CL_DEVICE_TYPE );
+				final long typeRank = ( type & CL_DEVICE_TYPE_GPU ) != 0 ? 3
+						: ( type & CL_DEVICE_TYPE_ACCELERATOR ) != 0 ? 2
+								: ( type & CL_DEVICE_TYPE_CPU ) != 0 ? 1 : 0;
+				final long power = getDeviceInfoLong( device, CL_DEVICE_MAX_COMPUTE_UNITS )
+						* Math.max( 1, getDeviceInfoLong( device, CL_DEVICE_MAX_CLOCK_FREQUENCY ) );
+				final long memory = getDeviceInfoLong( device, CL_DEVICE_GLOBAL_MEM_SIZE );
+				if ( typeRank > bestTypeRank
+						|| ( typeRank == bestTypeRank && power > bestPower )
+						|| ( typeRank == bestTypeRank && power == bestPower && memory > bestMemory ) )
+				{
+					best = device;
+					bestTypeRank = typeRank;
+					bestPower = power;
+					bestMemory = memory;
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Get the devices of the given type of a platform. Unlike
+	 * {@link CL#clGetDeviceIDs}, this returns an empty array (instead of
+	 * failing) if there are none.
+	 */
+	private static cl_device_id[] getDevices( final cl_platform_id platform, final long deviceType )
+	{
+		final int[] num = new int[ 1 ];
+		try
+		{
+			if ( clGetDeviceIDs( platform, deviceType, 0, null, num ) != CL_SUCCESS )
+				return new cl_device_id[ 0 ];
+		}
+		catch ( final CLException e )
+		{
+			return new cl_device_id[ 0 ];
+		}
+		final cl_device_id[] devices = new cl_device_id[ num[ 0 ] ];
+		clGetDeviceIDs( platform, deviceType, devices.length, devices, null );
+		return devices;
+	}
+
+	@Override
+	public cl_context getContext()
+	{
+		return context;
+	}
+
+	@Override
+	public cl_command_queue getCommandQueue()
+	{
+		return commandQueue;
+	}
+
+	@Override
+	public cl_command_queue getUploadQueue()
+	{
+		return uploadQueue;
+	}
+
+	@Override
+	public cl_device_id getDevice()
+	{
+		return device;
+	}
+
+	@Override
+	public boolean isOutOfOrder()
+	{
+		return outOfOrder;
+	}
+
+	@Override
+	public CLProfiler getProfiler()
+	{
+		return profiler;
+	}
+
+	/**
+	 * Wait for all commands to complete, and release the queues and the
+	 * context.
+	 */
+	public void release()
+	{
+		if ( released )
+			return;
+		clFinish( uploadQueue );
+		clFinish( commandQueue );
+		clReleaseCommandQueue( uploadQueue );
+		clReleaseCommandQueue( commandQueue );
+		clReleaseContext( context );
+		released = true;
+	}
+
+	@Override
+	public String toString()
+	{
+		final StringBuilder sb = new StringBuilder();
+		sb.append( getDeviceInfo( device, CL_DEVICE_NAME ) );
+		sb.append( " running " );
+		sb.append( getDeviceInfo( device, CL_DEVICE_VERSION ) );
+		return sb.toString();
+	}
+}
@@ -3,11 +3,18 @@ package cl;
 import static org.jocl.CL.*;
 
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import org.jocl.CL;
 import org.jocl.Pointer;
+import org.jocl.Sizeof;
+import org.jocl.cl_context;
 import org.jocl.cl_context_properties;
 import org.jocl.cl_device_id;
+import org.jocl.cl_image_format;
+import org.jocl.cl_kernel;
+import org.jocl.cl_platform_id;
 
 import com.jogamp.nativewindow.NativeSurface;
 import com.jogamp.opengl.GL;
@@ -100,6 +107,111 @@ public class CLUtils
 		return new String( buffer, 0, buffer.length - 1 );
 	}
 
+	public static final String getPlatformInfo(
+			final cl_platform_id platform,
+			final int paramName )
+	{
+		final long[] size = new long[ 1 ];
+		clGetPlatformInfo( platform, paramName, 0, null, size );
+
+		final byte[] buffer = new byte[ ( int ) size[ 0 ] ];
+		clGetPlatformInfo( platform, paramName, buffer.length, Pointer.to( buffer ), null );
+
+		return new String( buffer, 0, buffer.length - 1 );
+	}
+
+	/**
+	 * Query a numeric device parameter of type {@code cl_uint},
+	 * {@code cl_ulong}, {@code size_t}, or {@code cl_bool}.
+	 */
+	public static final long getDeviceInfoLong(
+			final cl_device_id device,
+			final int paramName )
+	{
+		final long[] size = new long[ 1 ];
+		clGetDeviceInfo( device, paramName, 0, null, size );
+
+		final ByteBuffer buffer = ByteBuffer.allocate( ( int ) size[ 0 ] ).order( ByteOrder.nativeOrder() );
+		clGetDeviceInfo( device, paramName, buffer.capacity(), Pointer.to( buffer ), null );
+
+		switch ( buffer.capacity() )
+		{
+		case 4:
+			return buffer.getInt( 0 ) & 0xffffffffL;
+		case 8:
+			return buffer.getLong( 0 );
+		default:
+			throw new IllegalArgumentException( "parameter " + paramName + " is not a number" );
+		}
+	}
+
+	/**
+	 * Query a device parameter that is an array of {@code size_t}, e.g.,
+	 * {@link CL#CL_DEVICE_MAX_WORK_ITEM_SIZES}.
+	 */
+	public static final long[] getDeviceInfoLongs(
+			final cl_device_id device,
+			final int paramName )
+	{
+		final long[] size = new long[ 1 ];
+		clGetDeviceInfo( device, paramName, 0, null, size );
+
+		final ByteBuffer buffer = ByteBuffer.allocate( ( int ) size[ 0 ] ).order( ByteOrder.nativeOrder() );
+		clGetDeviceInfo( device, paramName, buffer.capacity(), Pointer.to( buffer ), null );
+
+		final long[] values = new long[ buffer.capacity() / Sizeof.size_t ];
+		for ( int i = 0; i < values.length; ++i )
+			values[ i ] = Sizeof.size_t == 4
+					? buffer.getInt( 4 * i ) & 0xffffffffL
+					: buffer.getLong( 8 * i );
+		return values;
+	}
+
+	/**
+	 * Query a numeric kernel work-group parameter of type {@code size_t} or
+	 * {@code cl_ulong}, e.g., {@link CL#CL_KERNEL_WORK_GROUP_SIZE}.
+	 */
+	public static final long getKernelWorkGroupInfoLong(
+			final cl_kernel kernel,
+			final cl_device_id device,
+			final int paramName )
+	{
+		final long[] size = new long[ 1 ];
+		clGetKernelWorkGroupInfo( kernel, device, paramName, 0, null, size );
+
+		final ByteBuffer buffer = ByteBuffer.allocate( ( int ) size[ 0 ] ).order( ByteOrder.nativeOrder() );
+		clGetKernelWorkGroupInfo( kernel, device, paramName, buffer.capacity(), Pointer.to( buffer ), null );
+
+		switch ( buffer.capacity() )
+		{
+		case 4:
+			return buffer.getInt( 0 ) & 0xffffffffL;
+		case 8:
+			return buffer.getLong( 0 );
+		default:
+			throw new IllegalArgumentException( "parameter " + paramName + " is not a number" );
+		}
+	}
+
+	/**
+	 * Query the image formats supported by {@code context} for the given
+	 * memory flags (e.g., {@link CL#CL_MEM_READ_ONLY}) and image type (e.g.,
+	 * {@link CL#CL_MEM_OBJECT_IMAGE3D}).
+	 */
+	public static cl_image_format[] getSupportedImageFormats(
+			final cl_context context,
+			final long flags,
+			final int imageType )
+	{
+		final int[] num = new int[ 1 ];
+		clGetSupportedImageFormats( context, flags, imageType, 0, null, num );
+		final cl_image_format[] formats = new cl_image_format[ num[ 0 ] ];
+		for ( int i = 0; i < formats.length; ++i )
+			formats[ i ] = new cl_image_format();
+		clGetSupportedImageFormats( context, flags, imageType, formats.length, formats, null );
+		return formats;
+	}
+
 	@FunctionalInterface
 	public static interface CLFunction< T >
 	{
@@ -0,0 +1,357 @@
+package cl;
+
+import static cl.CLUtils.getDeviceInfoLongs;
+import static cl.CLUtils.getKernelWorkGroupInfoLong;
+import static org.jocl.CL.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.jocl.CLException;
+import org.jocl.cl_device_id;
+
+public class CLWorkSizeTuner
+{
+	private static final String PROPERTY = "cl.worksizes";
+
+	private static final String AUTO = "auto";
+
+	private static volatile CLWorkSizeTuner defaultTuner;
+
+	private static volatile boolean defaultTunerInitialized;
+
+	private final Path file;
+
+	private final Properties workSizes;
+
+	/**
+	 * Incremented whenever a choice changes, so that {@link CLKernel}s know
+	 * when to look up their cached choices again.
+	 */
+	private volatile int generation;
+
+	private int numErrors;
+
+	private Exception lastError;
+
+	/**
+	 * Create a tuner that stores the best local work sizes in {@code file}
+	 * (if it is not {@code null}). Choices that are already in the file are
+	 * loaded.
+	 * <p>
+	 * Choices are per kernel, {@link CLProgram#getKey() program} (which
+	 * identifies source, build options, device, and driver), and number of
+	 * dimensions.
+	 */
+	public CLWorkSizeTuner( final Path file )
+	{
+		this.file = file;
+		workSizes = new Properties();
+		if ( file != null )
+		{
+			try ( InputStream in = Files.newInputStream( file ) )
+			{
+				workSizes.load( in );
+			}
+			catch ( final NoSuchFileException e )
+			{
+				// nothing tuned yet
+			}
+			catch ( final IOException e )
+			{
+				error( e );
+			}
+		}
+	}
+
+	/**
+	 * Get the default tuner, or {@code null} if it is disabled. The default
+	 * tuner stores its choices in
+	 * {@code ~/.cache/bdv-volume/cl/worksizes.properties}. The file can be
+	 * moved with the system property {@code cl.worksizes}, or the default
+	 * tuner disabled by setting that property to {@code none}.
+	 */
+	public static CLWorkSizeTuner getDefault()
+	{
+		// called for every kernel launch, so avoid locking once initialized
+		if ( defaultTunerInitialized )
+			return defaultTuner;
+		synchronized ( CLWorkSizeTuner.class )
+		{
+			if ( !defaultTunerInitialized )
+			{
+				final String f = System.getProperty( PROPERTY );
+				if ( f == null )
+					defaultTuner = new CLWorkSizeTuner( Paths.get( System.getProperty( "user.home" ), ".cache", "bdv-volume", "cl", "worksizes.properties" ) );
+				else if ( !f.equals( "none" ) )
+					defaultTuner = new CLWorkSizeTuner( Paths.get( f ) );
+				defaultTunerInitialized = true;
+			}
+			return defaultTuner;
+		}
+	}
+
+	/**
+	 * Set the default tuner. {@code null} disables tuned work sizes for
+	 * {@link CLKernel#enqueue(CLContext, long...)}.
+	 */
+	public static synchronized void setDefault( final CLWorkSizeTuner tuner )
+	{
+		defaultTuner = tuner;
+		defaultTunerInitialized = true;
+	}
+
+	/**
+	 * Get the number of errors (failed reads and writes of the file) since
+	 * this tuner was created. Errors are not thrown, choices are then just
+	 * not persisted.
+	 */
+	public synchronized int getNumErrors()
+	{
+		return numErrors;
+	}
+
+	/**
+	 * Get the most recent error, or {@code null} if there was none.
+	 */
+	public synchronized Exception getLastError()
+	{
+		return lastError;
+	}
+
+	private synchronized void error( final Exception e )
+	{
+		++numErrors;
+		lastError = e;
+	}
+
+	/**
+	 * Whether a local work size has been {@link #tune(CLContext, CLKernel, long[], int)
+	 * tuned} for {@code kernel} with {@code numDimensions} dimensions.
+	 */
+	public synchronized boolean isTuned( final CLKernel kernel, final int numDimensions )
+	{
+		return workSizes.containsKey( key( kernel, numDimensions ) );
+	}
+
+	/**
+	 * Get the tuned local work size for {@code kernel}.
+	 *
+	 * @return the local work size, or {@code null} if it is not tuned, the
+	 *         driver's choice was best, or the tuned size does not divide
+	 *         {@code globalWorkSize}.
+	 */
+	public long[] get( final CLContext context, final CLKernel kernel, final long[] globalWorkSize )
+	{
+		final long[] localWorkSize = get( kernel, globalWorkSize.length );
+		return divides( localWorkSize, globalWorkSize ) ? localWorkSize : null;
+	}
+
+	/**
+	 * Get the tuned local work size for {@code kernel} with
+	 * {@code numDimensions} dimensions, or {@code null} if it is not tuned or
+	 * the driver's choice was best.
+	 */
+	synchronized long[] get( final CLKernel kernel, final int numDimensions )
+	{
+		final String value = workSizes.getProperty( key( kernel, numDimensions ) );
+		if ( value == null || value.equals( AUTO ) )
+			return null;
+		final String[] parts = value.split( "," );
+		if ( parts.length != numDimensions )
+			return null;
+		final long[] localWorkSize = new long[ parts.length ];
+		try
+		{
+			for ( int d = 0; d < parts.length; ++d )
+			{
+				localWorkSize[ d ] = Long.parseLong( parts[ d ].trim() );
+				if ( localWorkSize[ d ] < 1 )
+					return null;
+			}
+		}
+		catch ( final NumberFormatException e )
+		{
+			return null;
+		}
+		return localWorkSize;
+	}
+
+	/**
+	 * Whether {@code localWorkSize} is not {@code null} and divides
+	 * {@code globalWorkSize} in every dimension.
+	 */
+	static boolean divides( final long[] localWorkSize, final long[] globalWorkSize )
+	{
+		if ( localWorkSize == null || localWorkSize.length != globalWorkSize.length )
+			return false;
+		for ( int d = 0; d < localWorkSize.length; ++d )
+			if ( globalWorkSize[ d ] % localWorkSize[ d ] != 0 )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Get a number that changes whenever a choice changes.
+	 */
+	int getGeneration()
+	{
+		return generation;
+	}
+
+	/**
+	 * Time {@code kernel} with candidate local work sizes, and store the
+	 * fastest choice. The kernel arguments must be set, and running the kernel
+	 * {@code repetitions + 1} times per candidate must be harmless.
+	 * <p>
+	 * Candidates are power-of-two sizes that divide {@code globalWorkSize},
+	 * respect the device and kernel work-group limits, and are multiples of
+	 * the preferred work-group size multiple. The driver's choice
+	 * ({@code null}) is a candidate as well. Each candidate is timed by the
+	 * fastest of {@code repetitions} runs, after one warm-up run.
+	 *
+	 * @return the best local work size, or {@code null} if the driver's
+	 *         choice was best.
+	 */
+	public long[] tune( final CLContext context, final CLKernel kernel, final long[] globalWorkSize, final int repetitions )
+	{
+		long[] best = null;
+		long bestNanos = time( context, kernel, globalWorkSize, null, repetitions );
+		for ( final long[] candidate : candidates( context.getDevice(), kernel, globalWorkSize ) )
+		{
+			final long nanos = time( context, kernel, globalWorkSize, candidate, repetitions );
+			if ( nanos < bestNanos )
+			{
+				bestNanos = nanos;
+				best = candidate;
+			}
+		}
+
+		final StringBuilder sb = new StringBuilder();
+		if ( best == null )
+			sb.append( AUTO );
+		else
+			for ( int d = 0; d < best.length; ++d )
+				sb.append( d == 0 ? "" : "," ).append( best[ d ] );
+		synchronized ( this )
+		{
+			workSizes.setProperty( key( kernel, globalWorkSize.length ), sb.toString() );
+			++generation;
+			save();
+		}
+		return best;
+	}
+
+	/**
+	 * Get the candidate local work sizes for {@code kernel} (see
+	 * {@link #tune(CLContext, CLKernel, long[], int)}).
+	 */
+	public static List< long[] > candidates( final cl_device_id device, final CLKernel kernel, final long[] globalWorkSize )
+	{
+		final int n = globalWorkSize.length;
+		final long maxWorkGroupSize = getKernelWorkGroupInfoLong( kernel.getKernel(), device, CL_KERNEL_WORK_GROUP_SIZE );
+		final long multiple = Math.min( maxWorkGroupSize, getKernelWorkGroupInfoLong( kernel.getKernel(), device, CL_KERNEL_PREFERRED_WORK_GROUP_SIZE_MULTIPLE ) );
+		final long[] maxItems = getDeviceInfoLongs( device, CL_DEVICE_MAX_WORK_ITEM_SIZES );
+
+		final List< long[] > candidates = new ArrayList<>();
+		final long[] size = new long[ n ];
+		addCandidates( 0, size, 1, globalWorkSize, maxItems, maxWorkGroupSize, multiple, candidates );
+		return candidates;
+	}
+
+	private static void addCandidates(
+			final int d,
+			final long[] size,
+			final long product,
+			final long[] globalWorkSize,
+			final long[] maxItems,
+			final long maxWorkGroupSize,
+			final long multiple,
+			final List< long[] > candidates )
+	{
+		if ( d == size.length )
+		{
+			if ( product % multiple == 0 )
+				candidates.add( size.clone() );
+			return;
+		}
+		for ( long s = 1; s <= maxItems[ d ] && product * s <= maxWorkGroupSize; s *= 2 )
+		{
+			if ( globalWorkSize[ d ] % s != 0 )
+				break;
+			size[ d ] = s;
+			addCandidates( d + 1, size, product * s, globalWorkSize, maxItems, maxWorkGroupSize, multiple, candidates );
+		}
+	}
+
+	/**
+	 * Get the fastest of {@code repetitions} runs, after one warm-up run, or
+	 * {@link Long#MAX_VALUE} if the kernel cannot be run with
+	 * {@code localWorkSize}.
+	 */
+	private static long time( final CLContext context, final CLKernel kernel, final long[] globalWorkSize, final long[] localWorkSize, final int repetitions )
+	{
+		try
+		{
+			long min = Long.MAX_VALUE;
+			for ( int r = -1; r < repetitions; ++r )
+			{
+				final long t0 = System.nanoTime();
+				// with exceptions disabled, failures are only reported by the status
+				if ( kernel.enqueue( context, globalWorkSize, localWorkSize, null ) != CL_SUCCESS
+						|| clFinish( context.getCommandQueue() ) != CL_SUCCESS )
+					return Long.MAX_VALUE;
+				final long t = System.nanoTime() - t0;
+				if ( r >= 0 )
+					min = Math.min( min, t );
+			}
+			return min;
+		}
+		catch ( final CLException e )
+		{
+			return Long.MAX_VALUE;
+		}
+	}
+
+	private static String key( final CLKernel kernel, final int numDimensions )
+	{
+		return kernel.getProgram().getKey() + "." + kernel.getName() + "." + numDimensions + "d";
+	}
+
+	private void save()
+	{
+		if ( file == null )
+			return;
+		try
+		{
+			final Path dir = file.toAbsolutePath().getParent();
+			Files.createDirectories( dir );
+			final Path tmp = Files.createTempFile( dir, file.getFileName().toString(), ".tmp" );
+			try
+			{
+				try ( OutputStream out = Files.newOutputStream( tmp ) )
+				{
+					workSizes.store( out, "tuned OpenCL local work sizes" );
+				}
+				Files.move( tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+			}
+			finally
+			{
+				Files.deleteIfExists( tmp );
+			}
+		}
+		catch ( final IOException e )
+		{
+			error( e );
+		}
+	}
+}
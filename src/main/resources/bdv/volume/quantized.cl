@@ -0,0 +1,55 @@
+/*
+ * Sampling of an 8 bit block texture (CL_R / CL_UNORM_INT8) with per-cell
+ * scale and offset, see BlockQuantizer and BlockScaleOffsets.
+ *
+ * scaleOffsets holds one float2 ( scale, offset ) per cell of the block grid,
+ * indexed by x + gridSize.x * ( y + gridSize.y * z ).
+ *
+ * The result is the value that would be sampled from the CL_UNORM_INT16
+ * texture, up to the quantization error.
+ *
+ * If BLOCK_SIZE_X, BLOCK_SIZE_Y, BLOCK_SIZE_Z are defined at build time (see
+ * KernelVariant), they are used instead of the blockSize argument.
+ */
+#ifdef BLOCK_SIZE_X
+#define CELL_SIZE ( ( int3 ) ( BLOCK_SIZE_X, BLOCK_SIZE_Y, BLOCK_SIZE_Z ) )
+#else
+#define CELL_SIZE blockSize.xyz
+#endif
+
+float sample_quantized(
+		read_only image3d_t atlas,
+		sampler_t sampler,
+		const float4 pos,
+		__global const float2 * scaleOffsets,
+		const int4 blockSize,
+		const int4 gridSize )
+{
+	const int3 cell = convert_int3( pos.xyz ) / CELL_SIZE;
+	const float2 so = scaleOffsets[ cell.x + gridSize.x * ( cell.y + gridSize.y * cell.z ) ];
+	return read_imagef( atlas, sampler, pos ).x * so.x + so.y;
+}
+
+/*
+ * Read a box of voxels from the 8 bit block texture, dequantized, into a
+ * linear buffer (x fastest). Mostly useful to check the quantization against
+ * the original data.
+ *
+ * The global work size is the size of the box.
+ */
+__kernel void dequantize(
+		read_only image3d_t atlas,
+		__global const float2 * scaleOffsets,
+		const int4 blockSize,
+		const int4 gridSize,
+		const int4 origin,
+		__global float * target )
+{
+	const sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+	const int x = get_global_id(0);
+	const int y = get_global_id(1);
+	const int z = get_global_id(2);
+	const float4 pos = { origin.x + x + 0.5f, origin.y + y + 0.5f, origin.z + z + 0.5f, 0 };
+	target[ x + get_global_size(0) * ( y + get_global_size(1) * z ) ] =
+			sample_quantized( atlas, sampler, pos, scaleOffsets, blockSize, gridSize );
+}
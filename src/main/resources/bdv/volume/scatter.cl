@@ -0,0 +1,45 @@
+#pragma OPENCL EXTENSION cl_khr_3d_image_writes : enable
+
+/*
+ * Copy a batch of blocks from a linear buffer into a 3D texture.
+ *
+ * Each block is described by 8 ints:
+ *   source offset (in voxels),
+ *   destination origin x, y, z (in voxels),
+ *   size x, y, z (in voxels),
+ *   unused.
+ *
+ * The global work size is ( maxSizeX, maxSizeY, maxSizeZ * numBlocks ).
+ * Block i is handled by the work items with get_global_id(2) / maxSizeZ == i.
+ * Work items outside the size of their block do nothing.
+ *
+ * Voxels are unsigned 16 bit, the texture is CL_R / CL_UNORM_INT16.
+ *
+ * If BLOCK_SIZE_Z is defined at build time (see KernelVariant), it must equal
+ * maxSizeZ, and the division by a compile-time constant is cheaper.
+ */
+#ifdef BLOCK_SIZE_Z
+#define SIZE_Z BLOCK_SIZE_Z
+#else
+#define SIZE_Z maxSizeZ
+#endif
+
+__kernel void scatter(
+		__global const ushort * src,
+		__global const int8 * descriptors,
+		const int maxSizeZ,
+		__write_only image3d_t target )
+{
+	const int block = get_global_id(2) / SIZE_Z;
+	const int x = get_global_id(0);
+	const int y = get_global_id(1);
+	const int z = get_global_id(2) - block * SIZE_Z;
+
+	const int8 d = descriptors[ block ];
+	if ( x >= d.s4 || y >= d.s5 || z >= d.s6 )
+		return;
+
+	const ushort v = src[ d.s0 + x + d.s4 * ( y + d.s5 * z ) ];
+	const int4 pos = { d.s1 + x, d.s2 + y, d.s3 + z, 0 };
+	write_imagef( target, pos, ( float4 ) ( v / 65535.0f, 0, 0, 0 ) );
+}
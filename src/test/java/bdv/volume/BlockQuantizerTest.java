@@ -0,0 +1,170 @@
+package bdv.volume;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BlockQuantizerTest
+{
+	private static final int NUM_VOXELS = 32 * 32 * 32;
+
+	@Test
+	public void testRandomBlocks()
+	{
+		final Random random = new Random( 1 );
+		final int[] values = new int[ NUM_VOXELS ];
+		for ( int b = 0; b < 200; ++b )
+		{
+			final int a = random.nextInt( 0x10000 );
+			final int c = random.nextInt( 0x10000 );
+			final int lo = Math.min( a, c );
+			final int hi = Math.max( a, c );
+			for ( int i = 0; i < NUM_VOXELS; ++i )
+				values[ i ] = lo + random.nextInt( hi - lo + 1 );
+			assertBounded( values );
+		}
+	}
+
+	@Test
+	public void testConstantBlock()
+	{
+		for ( final int v : new int[] { 0, 1, 1000, 0xffff } )
+		{
+			final int[] values = new int[ NUM_VOXELS ];
+			Arrays.fill( values, v );
+			final double maxError = assertBounded( values );
+			assertEquals( 0, maxError, 0 );
+		}
+	}
+
+	@Test
+	public void testFullRange()
+	{
+		final int[] values = new int[ 0x10000 ];
+		for ( int i = 0; i < values.length; ++i )
+			values[ i ] = i;
+		assertBounded( values );
+	}
+
+	@Test
+	public void testSingleOutlier()
+	{
+		final Random random = new Random( 2 );
+		final int[] values = new int[ NUM_VOXELS ];
+		for ( int i = 0; i < NUM_VOXELS; ++i )
+			values[ i ] = 1000 + random.nextInt( 10 );
+		values[ random.nextInt( NUM_VOXELS ) ] = 0xffff;
+		assertBounded( values );
+
+		values[ random.nextInt( NUM_VOXELS ) ] = 0;
+		assertBounded( values );
+	}
+
+	@Test
+	public void testSmallRangeIsExact()
+	{
+		final Random random = new Random( 3 );
+		final int[] values = new int[ NUM_VOXELS ];
+		for ( int i = 0; i < NUM_VOXELS; ++i )
+			values[ i ] = 30000 + random.nextInt( 255 );
+
+		final ByteBuffer src = toBuffer( values );
+		final ByteBuffer dst = ByteBuffer.allocate( values.length );
+		final long mm = BlockQuantizer.minMax( src, 0, values.length );
+		final int min = ( int ) ( mm & 0xffff );
+		final int max = ( int ) ( mm >>> 16 );
+		BlockQuantizer.quantize( src, 0, dst, 0, values.length, min, max );
+		for ( int i = 0; i < values.length; ++i )
+			assertEquals( values[ i ], Math.round( BlockQuantizer.dequantize( dst.get( i ), min, max ) ) );
+	}
+
+	@Test
+	public void testQuantizingLoaderInPlace() throws Exception
+	{
+		final Random random = new Random( 4 );
+		final int[] values = new int[ NUM_VOXELS ];
+		for ( int i = 0; i < NUM_VOXELS; ++i )
+			values[ i ] = 500 + random.nextInt( 40000 );
+		final long key = BlockKey.pack( 1, 2, 3, 0, 0, 8 );
+
+		final BlockMinMax minMax = new BlockMinMax();
+		final BlockUploader.BlockLoader loader = BlockQuantizer.quantizing(
+				( k, size, target ) -> target.put( toBuffer( values ) ),
+				minMax );
+		final ByteBuffer target = ByteBuffer.allocateDirect( 2 * NUM_VOXELS ).order( ByteOrder.nativeOrder() );
+		loader.load( key, new int[] { 32, 32, 32 }, target );
+		assertEquals( NUM_VOXELS, target.position() );
+
+		final int min = ( int ) minMax.getMin( key );
+		final int max = ( int ) minMax.getMax( key );
+		final double bound = BlockQuantizer.maxError( min, max );
+		for ( int i = 0; i < NUM_VOXELS; ++i )
+			assertTrue( Math.abs( values[ i ] - reconstruct( target.get( i ), min, max ) ) <= bound + 1e-9 );
+	}
+
+	/**
+	 * {@link BlockQuantizer#dequantize(byte, int, int)} computes in single
+	 * precision. It must agree with the exact reconstruction up to float
+	 * rounding.
+	 */
+	@Test
+	public void testDequantize()
+	{
+		final int[][] ranges = { { 0, 0xffff }, { 1000, 1010 }, { 28925, 47579 }, { 0xfffe, 0xffff } };
+		for ( final int[] range : ranges )
+			for ( int q = 0; q < 256; ++q )
+			{
+				final double exact = reconstruct( ( byte ) q, range[ 0 ], range[ 1 ] );
+				assertEquals( exact, BlockQuantizer.dequantize( ( byte ) q, range[ 0 ], range[ 1 ] ), 2 * Math.ulp( ( float ) exact ) );
+			}
+	}
+
+	/**
+	 * Exact reconstruction {@code min + q * ( max - min ) / 255}.
+	 */
+	private static double reconstruct( final byte q, final int min, final int max )
+	{
+		return min + ( q & 0xff ) * ( max - min ) / 255.0;
+	}
+
+	/**
+	 * Quantize and reconstruct {@code values}, and check that the error of
+	 * every voxel is at most {@code (max - min) / 510}.
+	 *
+	 * @return the largest error.
+	 */
+	private static double assertBounded( final int[] values )
+	{
+		final ByteBuffer src = toBuffer( values );
+		final ByteBuffer dst = ByteBuffer.allocate( values.length );
+		final long mm = BlockQuantizer.minMax( src, 0, values.length );
+		final int min = ( int ) ( mm & 0xffff );
+		final int max = ( int ) ( mm >>> 16 );
+		BlockQuantizer.quantize( src, 0, dst, 0, values.length, min, max );
+
+		final double bound = ( max - min ) / 510.0;
+		double maxError = 0;
+		for ( int i = 0; i < values.length; ++i )
+		{
+			final double error = Math.abs( values[ i ] - reconstruct( dst.get( i ), min, max ) );
+			assertTrue( "error " + error + " exceeds " + bound + " for value " + values[ i ] + " in [" + min + ", " + max + "]",
+					error <= bound + 1e-9 );
+			maxError = Math.max( maxError, error );
+		}
+		return maxError;
+	}
+
+	private static ByteBuffer toBuffer( final int[] values )
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate( 2 * values.length ).order( ByteOrder.nativeOrder() );
+		for ( int i = 0; i < values.length; ++i )
+			buffer.putShort( 2 * i, ( short ) values[ i ] );
+		return buffer;
+	}
+}
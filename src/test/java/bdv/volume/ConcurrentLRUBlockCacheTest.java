@@ -0,0 +1,157 @@
+package bdv.volume;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import net.imglib2.util.IntervalIndexer;
+
+public class ConcurrentLRUBlockCacheTest
+{
+	private static final int[] BLOCK_SIZE = { 32, 32, 32 };
+
+	private static final int[] GRID_SIZE = { 8, 8, 4 };
+
+	private static final int NUM_THREADS = 8;
+
+	/**
+	 * Many threads add and get keys from a universe larger than the cache.
+	 * Afterwards, the cache must be full, every cached key must map to one
+	 * slot, and no two keys may share a slot.
+	 */
+	@Test
+	public void testNoDuplicatedOrLostSlots() throws Exception
+	{
+		final ConcurrentLRUBlockCache< int[] > cache = new ConcurrentLRUBlockCache<>( BLOCK_SIZE, GRID_SIZE, 16, int[]::clone );
+		final int capacity = cache.getCapacity();
+		final long[] universe = keys( 4 * capacity );
+
+		runConcurrently( seed -> {
+			final Random random = new Random( seed );
+			for ( int i = 0; i < 100000; ++i )
+			{
+				final long key = universe[ random.nextInt( universe.length ) ];
+				final int[] block = cache.getOrAdd( key );
+				assertNotNull( block );
+				assertInGrid( block );
+			}
+		} );
+
+		assertEquals( capacity, cache.size() );
+		final Set< Integer > occupied = new HashSet<>();
+		final IdentityHashMap< int[], Long > owners = new IdentityHashMap<>();
+		int numContained = 0;
+		for ( final long key : universe )
+		{
+			if ( !cache.contains( key ) )
+			{
+				assertNull( cache.get( key ) );
+				continue;
+			}
+			++numContained;
+			final int[] block = cache.get( key );
+			assertNotNull( block );
+			assertSame( block, cache.get( key ) );
+			assertNull( "slot shared by two keys", owners.put( block, key ) );
+			assertTrue( "grid cell shared by two slots", occupied.add( IntervalIndexer.positionToIndex( block, GRID_SIZE ) ) );
+		}
+		assertEquals( capacity, numContained );
+		assertEquals( capacity, occupied.size() );
+	}
+
+	/**
+	 * Many threads concurrently request the same keys. There are no more keys
+	 * than a stripe holds, so nothing is evicted, and every thread must get
+	 * the same block for a key.
+	 */
+	@Test
+	public void testGetOrAddIsAtomic() throws Exception
+	{
+		final ConcurrentLRUBlockCache< int[] > cache = new ConcurrentLRUBlockCache<>( BLOCK_SIZE, GRID_SIZE, 16, int[]::clone );
+		final long[] universe = keys( cache.getCapacity() / cache.getNumStripes() );
+		final int[][][] seen = new int[ NUM_THREADS ][ universe.length ][];
+
+		runConcurrently( seed -> {
+			final int t = ( int ) seed;
+			for ( int i = 0; i < universe.length; ++i )
+			{
+				// threads walk the keys in different orders
+				final int k = ( i * ( 2 * t + 1 ) ) % universe.length;
+				seen[ t ][ k ] = cache.getOrAdd( universe[ k ] );
+			}
+		} );
+
+		final IdentityHashMap< int[], Long > owners = new IdentityHashMap<>();
+		for ( int k = 0; k < universe.length; ++k )
+		{
+			for ( int t = 1; t < NUM_THREADS; ++t )
+				assertSame( seen[ 0 ][ k ], seen[ t ][ k ] );
+			assertNull( "slot shared by two keys", owners.put( seen[ 0 ][ k ], universe[ k ] ) );
+		}
+		assertEquals( universe.length, cache.size() );
+	}
+
+	private interface Worker
+	{
+		void run( long seed ) throws Exception;
+	}
+
+	/**
+	 * Run {@code worker} on {@link #NUM_THREADS} threads that start at the
+	 * same time, with seeds {@code 0, 1, ...}, and rethrow the first failure.
+	 */
+	private static void runConcurrently( final Worker worker ) throws Exception
+	{
+		final ExecutorService executor = Executors.newFixedThreadPool( NUM_THREADS );
+		try
+		{
+			final CyclicBarrier start = new CyclicBarrier( NUM_THREADS );
+			final List< Future< Void > > futures = new ArrayList<>();
+			for ( int t = 0; t < NUM_THREADS; ++t )
+			{
+				final long seed = t;
+				futures.add( executor.submit( () -> {
+					start.await();
+					worker.run( seed );
+					return null;
+				} ) );
+			}
+			for ( final Future< Void > future : futures )
+				future.get( 60, TimeUnit.SECONDS );
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	private static long[] keys( final int n )
+	{
+		final long[] keys = new long[ n ];
+		for ( int i = 0; i < n; ++i )
+			keys[ i ] = BlockKey.pack( i % 16, ( i / 16 ) % 16, i / 256, 0, i % 3, i % 10 );
+		return keys;
+	}
+
+	private static void assertInGrid( final int[] gridPos )
+	{
+		for ( int d = 0; d < 3; ++d )
+			assertTrue( gridPos[ d ] >= 0 && gridPos[ d ] < GRID_SIZE[ d ] );
+	}
+}